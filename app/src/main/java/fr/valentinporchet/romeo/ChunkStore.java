@@ -0,0 +1,247 @@
+package fr.valentinporchet.romeo;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Messages received in chunks (see ClientThread), kept in temporary files until they are
+ * complete : a transfer interrupted by the network is resumed from the last received byte,
+ * and a big drawing doesn't stay in memory while it's received.
+ * Chunks are written in order : a chunk which doesn't continue the received bytes is ignored,
+ * the sender then resumes from the offset given in the acknowledgement.
+ * The file has the length of the message from the start, and is mapped in memory once :
+ * the chunks written afterwards are read through the same mapping.
+ *
+ * Frames of a transfer (see Frames) :
+ * - TYPE_CHUNK_OPEN : [message uuid (2 longs)][length of the message]
+ * - TYPE_CHUNK : [message uuid][offset][bytes of the message]
+ * - TYPE_CHUNK_ACK (answer of the receiver) : [message uuid][number of bytes received][status]
+ *   with status 0 while the message is not complete, then the acknowledgement of the drawing
+ */
+public class ChunkStore {
+    public static final int CHUNK_SIZE = 16 * 1024;
+    public static final int CHUNK_HEADER_LENGTH = 16 + 4; // uuid, offset
+    public static final int STATUS_IN_PROGRESS = 0;
+    private static final int MAX_TRANSFERS = 4;
+
+    /**
+     * One message being received
+     */
+    private static class Transfer {
+        final File mFile;
+        final RandomAccessFile mRandomAccessFile;
+        final int mLength;
+        int mReceived = 0;
+        MappedByteBuffer mMapped; // all the message, mapped with the first call to map()
+
+        Transfer(File file, int length) throws IOException {
+            mFile = file;
+            mRandomAccessFile = new RandomAccessFile(file, "rw");
+            mLength = length;
+            mRandomAccessFile.setLength(length);
+        }
+
+        void delete() {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException e) {
+                Log.e("ChunkStore", "Error while closing", e);
+            }
+            if (!mFile.delete()) {
+                Log.w("ChunkStore", "Can't delete " + mFile);
+            }
+        }
+    }
+
+    private final File mDirectory;
+
+    // transfers by uuid of their message, the least recently used first
+    private LinkedHashMap<UUID, Transfer> mTransfers = new LinkedHashMap<UUID, Transfer>(MAX_TRANSFERS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, Transfer> eldest) {
+            if (size() > MAX_TRANSFERS) {
+                Log.i("ChunkStore", "Transfer abandoned : " + eldest.getKey());
+                eldest.getValue().delete();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * @param directory directory of the temporary files
+     */
+    public ChunkStore(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Start or resume the reception of a message
+     * @param id uuid of the message
+     * @param length length of the message
+     * @return the number of bytes already received
+     * @throws IOException if the temporary file can't be created
+     */
+    public synchronized int open(UUID id, int length) throws IOException {
+        Transfer transfer = mTransfers.get(id);
+        if (transfer != null && transfer.mLength != length) {
+            remove(id); // not the same message, we start again
+            transfer = null;
+        }
+        if (transfer == null) {
+            transfer = new Transfer(File.createTempFile("chunks", ".tmp", mDirectory), length);
+            mTransfers.put(id, transfer);
+        }
+        return transfer.mReceived;
+    }
+
+    /**
+     * Write a chunk of a message
+     * @param id uuid of the message
+     * @param offset offset of the chunk in the message
+     * @param chunk bytes of the chunk (consumed)
+     * @return the number of bytes received
+     * @throws IOException if the message is unknown (call open() first) or can't be written
+     */
+    public synchronized int write(UUID id, int offset, ByteBuffer chunk) throws IOException {
+        Transfer transfer = getTransfer(id);
+        int end = offset + chunk.remaining();
+        if (offset < 0 || end > transfer.mLength) {
+            throw new IOException("Invalid chunk : " + offset + " to " + end + " of " + transfer.mLength);
+        }
+        if (offset <= transfer.mReceived && end > transfer.mReceived) {
+            // only the bytes we don't have yet
+            chunk.position(chunk.position() + transfer.mReceived - offset);
+            FileChannel channel = transfer.mRandomAccessFile.getChannel();
+            int position = transfer.mReceived;
+            while (chunk.hasRemaining()) {
+                position += channel.write(chunk, position);
+            }
+            transfer.mReceived = end;
+        }
+        return transfer.mReceived;
+    }
+
+    /**
+     * @param id uuid of the message
+     * @return the length of the message
+     * @throws IOException if the message is unknown
+     */
+    public synchronized int getLength(UUID id) throws IOException {
+        return getTransfer(id).mLength;
+    }
+
+    /**
+     * Get the bytes received, mapped from the file (they are not copied in the heap). The
+     * file is mapped once per message, the next calls only give a new view of the mapping.
+     * @param id uuid of the message
+     * @return the received bytes, in read mode
+     * @throws IOException if the message is unknown or can't be read
+     */
+    public synchronized ByteBuffer map(UUID id) throws IOException {
+        Transfer transfer = getTransfer(id);
+        if (transfer.mMapped == null) {
+            transfer.mMapped = transfer.mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    transfer.mLength);
+        }
+        ByteBuffer received = transfer.mMapped.duplicate();
+        received.limit(transfer.mReceived);
+        return received;
+    }
+
+    /**
+     * @param id uuid of the message
+     * @return true if the message is being received
+     */
+    public synchronized boolean contains(UUID id) {
+        return mTransfers.containsKey(id);
+    }
+
+    /**
+     * @return the uuids of the messages being received
+     */
+    public synchronized Set<UUID> getIds() {
+        return new HashSet<>(mTransfers.keySet());
+    }
+
+    /**
+     * Forget a message, once handled or abandoned
+     * @param id uuid of the message
+     */
+    public synchronized void remove(UUID id) {
+        Transfer transfer = mTransfers.remove(id);
+        if (transfer != null) {
+            transfer.delete();
+        }
+    }
+
+    /**
+     * Forget all the messages
+     */
+    public synchronized void clear() {
+        for (Transfer transfer : mTransfers.values()) {
+            transfer.delete();
+        }
+        mTransfers.clear();
+    }
+
+    /**
+     * Write the payload of a TYPE_CHUNK_OPEN frame
+     */
+    public static void writeOpen(DataOutputStream out, UUID id, int length) throws IOException {
+        writeUuid(out, id);
+        out.writeInt(length);
+    }
+
+    /**
+     * Write the payload of a TYPE_CHUNK frame
+     */
+    public static void writeChunk(DataOutputStream out, UUID id, int offset, byte[] message, int length)
+            throws IOException {
+        writeUuid(out, id);
+        out.writeInt(offset);
+        out.write(message, offset, length);
+    }
+
+    /**
+     * Write the payload of a TYPE_CHUNK_ACK frame
+     */
+    public static void writeAck(DataOutputStream out, UUID id, int received, int status) throws IOException {
+        writeUuid(out, id);
+        out.writeInt(received);
+        out.writeByte(status);
+    }
+
+    /**
+     * Read a uuid written by the write methods
+     */
+    public static UUID readUuid(DataInputStream in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID id) throws IOException {
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+    }
+
+    private Transfer getTransfer(UUID id) throws IOException {
+        Transfer transfer = mTransfers.get(id);
+        if (transfer == null) {
+            throw new IOException("Unknown transfer : " + id);
+        }
+        return transfer;
+    }
+}
@@ -1,61 +1,302 @@
 package fr.valentinporchet.romeo;
 
-import android.app.Activity;
 import android.util.Log;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.UUID;
 
-public class ClientThread implements Runnable {
+/**
+ * Sending of one drawing to the penpal, on its own connection. It's run by the
+ * worker of DrawingSender, which resolves the address of the penpal.
+ * A big drawing is sent in chunks (see ChunkStore) : if the connection breaks, a new one
+ * is opened and the transfer resumes from the last byte acknowledged by the penpal.
+ * An encoded drawing is preceded by its stamp (see Latency), which old penpals skip.
+ */
+public class ClientThread {
 
     private static int SOCKET_TIMEOUT = 5000;
-    private boolean connected = false;
-    private String SERVER_ADDRESS = "192.168.1.1"; // default value
-    private int SERVER_PORT = 8080;
-    private Socket socket;
+    private static final int CHUNK_WINDOW = 4; // number of chunks sent without waiting for their ack
+    private static final int MAX_ATTEMPTS = 4; // connections tried for a chunked transfer
+    private static final long RETRY_DELAY = 500; // in ms, multiplied by the number of the attempt
     private InetAddress serverAddr;
+    private int SERVER_PORT;
+    private DrawingSender.Message mMessage;
     private ArrayList<TouchData> mDataToSend;
-    private MainActivity mainActivity;
+    private DrawingHistory mHistory;
+    private int mChunkStatus; // status of the last chunk acknowledgement
+    private int mSequence = 0; // sequence of the stamp
 
-    public ClientThread(ArrayList<TouchData> touchData, String serverIP, MainActivity mainActivity) {
-        mDataToSend = touchData;
-        SERVER_ADDRESS = serverIP;
-        this.mainActivity = mainActivity;
+    public ClientThread(ArrayList<TouchData> touchData, InetAddress serverAddr, int serverPort,
+                        DrawingHistory history) {
+        this(new DrawingSender.Message(touchData), serverAddr, serverPort, history);
     }
 
-    @Override
-    public void run() {
+    /**
+     * @param message the drawing, whose encodings are shared with the senders of the other penpals
+     */
+    public ClientThread(DrawingSender.Message message, InetAddress serverAddr, int serverPort,
+                        DrawingHistory history) {
+        mMessage = message;
+        mDataToSend = message.getDrawing();
+        this.serverAddr = serverAddr;
+        SERVER_PORT = serverPort;
+        mHistory = history;
+    }
+
+    /**
+     * @param sequence number of the drawing in the stamp, increasing (see Latency)
+     */
+    public void setSequence(int sequence) {
+        mSequence = sequence;
+    }
+
+    /**
+     * Connect to the penpal and send the drawing
+     * @throws IOException if the drawing couldn't be sent
+     */
+    public void send() throws IOException {
+        send(null);
+    }
+
+    /**
+     * Send the drawing on a connection already opened, which stays opened so other
+     * drawings can be sent after this one. Big drawings are still sent on their own
+     * connections, as their transfer can need several ones.
+     * @param socket connection to the penpal, or null to open a new one
+     * @throws IOException if the drawing couldn't be sent
+     */
+    public void send(Socket socket) throws IOException {
+        int base = mHistory.findBase(mDataToSend);
+        byte[] encoded = null;
+        try {
+            encoded = mMessage.getDelta(base);
+        } catch (IOException e) {
+            Log.w("ClientActivity", "C: Can't encode the drawing, using serialization", e);
+        }
+        boolean isChunked = encoded != null && encoded.length > ChunkStore.CHUNK_SIZE;
+        if (!isChunked && encoded != null && socket != null) {
+            // the stream of the socket must not be closed
+            OutputStream out = socket.getOutputStream();
+            writeDrawing(out, socket.getInputStream(), encoded, base);
+            return;
+        }
+        if (!isChunked) {
+            // a serialized drawing takes all the connection
+            sendOnOneConnection(encoded, base);
+            return;
+        }
+
+        Log.d("ClientActivity", "C: Sending " + (mDataToSend.size() - base) + " new paths in chunks.");
+        int ack = sendChunked(encoded);
+        if (ack == DrawingCodec.ACK_MISSING_BASE) {
+            Log.d("ClientActivity", "C: Penpal doesn't know the base drawing, sending everything.");
+            ack = sendChunked(mMessage.getDelta(0));
+        }
+        checkAck(ack);
+        mHistory.add(mDataToSend);
+    }
+
+    /**
+     * Send the drawing in one message, on a new connection
+     * @param encoded encoded drawing, or null to send it serialized
+     * @param base number of first paths not in the encoded drawing
+     * @throws IOException if the drawing couldn't be sent
+     */
+    private void sendOnOneConnection(byte[] encoded, int base) throws IOException {
+        Log.d("ClientActivity", "C: Connecting...");
+        Socket socket = new Socket();
         try {
-            serverAddr = InetAddress.getByName(SERVER_ADDRESS);
-            Log.d("ClientActivity", "C: Connecting...");
-            socket = new Socket();
             socket.connect(new InetSocketAddress(serverAddr, SERVER_PORT), SOCKET_TIMEOUT);
-            connected = true;
-
-            while (connected) {
-                try {
-                    Log.d("ClientActivity", "C: Sending data.");
-                    ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                    out.writeObject(mDataToSend);
-                    out.close();
-                    Log.d("ClientActivity", "C: Sent.");
-                    mainActivity.setStatus("Sent");
-                    connected = false; // we then close the connection
-                } catch (Exception e) {
-                    mainActivity.setStatus("Error");
-                    Log.e("ClientActivity", "S: Error", e);
+            Log.d("ClientActivity", "C: Sending data.");
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            socket.setSoTimeout(SOCKET_TIMEOUT); // for the acknowledgement
+            writeDrawing(out, socket.getInputStream(), encoded, base);
+            out.close();
+            Log.d("ClientActivity", "C: Sent.");
+        } finally {
+            socket.close();
+            Log.d("ClientActivity", "C: Closed.");
+        }
+    }
+
+    /**
+     * Write the drawing with the binary codec. If it can't be encoded this way,
+     * we fall back to the Java serialization (the server detects both).
+     * Only the paths the penpal doesn't know are sent : if it doesn't have the
+     * beginning of the drawing anymore, we send it again entirely.
+     * @param out stream of the socket
+     * @param in stream of the socket, from which we read the acknowledgement
+     * @param encoded encoded drawing, or null to send it serialized
+     * @param base number of first paths not in the encoded drawing
+     * @throws IOException if the stream is broken, or the penpal didn't acknowledge the drawing
+     */
+    private void writeDrawing(OutputStream out, InputStream in, byte[] encoded, int base) throws IOException {
+        if (encoded == null) {
+            ObjectOutputStream objectOut = new ObjectOutputStream(out);
+            objectOut.writeObject(mDataToSend);
+            objectOut.flush();
+            return;
+        }
+        Log.d("ClientActivity", "C: Encoded " + (mDataToSend.size() - base) + " new paths in " + encoded.length + " bytes.");
+        writeStamp(out);
+        out.write(encoded);
+        out.flush();
+
+        int ack = readAck(in);
+        if (ack == DrawingCodec.ACK_MISSING_BASE) {
+            Log.d("ClientActivity", "C: Penpal doesn't know the base drawing, sending everything.");
+            writeStamp(out);
+            out.write(mMessage.getDelta(0));
+            out.flush();
+            ack = readAck(in);
+        }
+        checkAck(ack);
+        // the penpal has the drawing, next responses will only contain new paths
+        mHistory.add(mDataToSend);
+    }
+
+    /**
+     * Send a message in chunks. A new connection is opened when the current one
+     * breaks, and the penpal tells us from where to resume.
+     * @param message the encoded drawing
+     * @return the acknowledgement of the drawing by the penpal
+     * @throws IOException if the message couldn't be sent after MAX_ATTEMPTS connections
+     */
+    private int sendChunked(byte[] message) throws IOException {
+        UUID id = UUID.randomUUID();
+        for (int attempt = 1; ; attempt++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(serverAddr, SERVER_PORT), SOCKET_TIMEOUT);
+                socket.setSoTimeout(SOCKET_TIMEOUT);
+                return writeChunks(socket, id, message);
+            } catch (IOException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw e;
                 }
+                Log.w("ClientActivity", "C: Transfer interrupted, resuming : " + e);
+            } finally {
+                socket.close();
+            }
+            try {
+                Thread.sleep(RETRY_DELAY * attempt);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Transfer interrupted");
             }
+        }
+    }
 
-            socket.close();
-            Log.d("ClientActivity", "C: Closed.");
-        } catch (Exception e) {
-            Log.e("ClientActivity", "C: Error", e);
-            mainActivity.setStatus("Error");
-            connected = false;
+    /**
+     * Send the chunks the penpal doesn't have yet, on a connection
+     * @return the acknowledgement of the drawing by the penpal
+     * @throws IOException if the connection broke
+     */
+    private int writeChunks(Socket socket, UUID id, byte[] message) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(ChunkStore.CHUNK_HEADER_LENGTH + ChunkStore.CHUNK_SIZE);
+        DataOutputStream payloadOut = new DataOutputStream(payload);
+
+        // the penpal tells us what it already received
+        writeStamp(out);
+        ChunkStore.writeOpen(payloadOut, id, message.length);
+        Frames.write(out, Frames.TYPE_CHUNK_OPEN, payload.toByteArray(), payload.size());
+        out.flush();
+        int acked = readChunkAck(in, id);
+        int sent = acked;
+        while (mChunkStatus == ChunkStore.STATUS_IN_PROGRESS) {
+            // a few chunks are sent in advance, so we don't wait for each ack
+            while (sent < message.length && sent - acked < CHUNK_WINDOW * ChunkStore.CHUNK_SIZE) {
+                int length = Math.min(ChunkStore.CHUNK_SIZE, message.length - sent);
+                payload.reset();
+                ChunkStore.writeChunk(payloadOut, id, sent, message, length);
+                Frames.write(out, Frames.TYPE_CHUNK, payload.toByteArray(), payload.size());
+                sent += length;
+            }
+            out.flush();
+            acked = readChunkAck(in, id);
+            sent = Math.max(sent, acked);
+        }
+        Log.d("ClientActivity", "C: Sent " + message.length + " bytes in chunks.");
+        return mChunkStatus;
+    }
+
+    /**
+     * Write the TYPE_STAMP frame of the drawing, in one write
+     * @param out stream of the socket
+     * @throws IOException if the stream is broken
+     */
+    private void writeStamp(OutputStream out) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(Latency.STAMP_LENGTH);
+        Latency.Stamp.write(new DataOutputStream(payload), mSequence);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        Frames.write(new DataOutputStream(frame), Frames.TYPE_STAMP, payload.toByteArray(), payload.size());
+        out.write(frame.toByteArray());
+    }
+
+    /**
+     * Read the next chunk acknowledgement of the server. Its status is put in mChunkStatus.
+     * @param in stream of the socket
+     * @param id uuid of the message
+     * @return the number of bytes of the message received by the server
+     * @throws IOException if the stream is broken or the server is too slow
+     */
+    private int readChunkAck(DataInputStream in, UUID id) throws IOException {
+        while (true) {
+            int type = Frames.readType(in);
+            int length = Frames.readLength(in);
+            if (type != Frames.TYPE_CHUNK_ACK) {
+                Frames.skip(in, length);
+                continue;
+            }
+            UUID ackId = ChunkStore.readUuid(in);
+            int received = in.readInt();
+            int status = in.readUnsignedByte();
+            if (ackId.equals(id)) {
+                mChunkStatus = status;
+                return received;
+            }
+        }
+    }
+
+    /**
+     * Check that the penpal has the drawing. Else it's not sent : it stays in the outbox
+     * of DrawingSender, and is sent again later.
+     * @param ack the last acknowledgement of the drawing
+     * @throws IOException if it's not ACK_OK
+     */
+    private static void checkAck(int ack) throws IOException {
+        if (ack != DrawingCodec.ACK_OK) {
+            throw new IOException("Drawing not acknowledged : " + ack);
+        }
+    }
+
+    /**
+     * Read the acknowledgement of the server
+     * @param in stream of the socket
+     * @return the acknowledgement, or -1 if there is none (closed connection, or too slow)
+     * @throws IOException if the stream is broken
+     */
+    private int readAck(InputStream in) throws IOException {
+        try {
+            return in.read();
+        } catch (SocketTimeoutException e) {
+            Log.w("ClientActivity", "C: No acknowledgement received.");
+            return -1;
         }
     }
 }
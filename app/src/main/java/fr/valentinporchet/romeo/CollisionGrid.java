@@ -0,0 +1,133 @@
+package fr.valentinporchet.romeo;
+
+import java.util.Arrays;
+
+/**
+ * Detection of the collisions between our touch positions and the ones of the penpal.
+ * The positions of the penpal are put in a uniform grid whose cells have the size of
+ * the collision distance : a position can only collide with the positions of its cell
+ * and of the 8 cells around it, instead of all of them.
+ * The arrays are kept between frames, so a detection doesn't allocate anything once
+ * they are big enough.
+ */
+public class CollisionGrid {
+    private static final int MIN_TABLE_SIZE = 16;
+
+    private final float mDistance;
+    private final float mSquaredDistance;
+
+    // grid of the other positions : hash table of cells, each one being a linked list of positions
+    private int[] mHeads = new int[MIN_TABLE_SIZE]; // first position of each bucket, -1 if none
+    private int[] mNext = new int[MIN_TABLE_SIZE]; // next position of the same bucket, -1 if none
+    private int[] mCellXs = new int[MIN_TABLE_SIZE];
+    private int[] mCellYs = new int[MIN_TABLE_SIZE];
+    private int mMask;
+
+    // results of the last detection
+    private boolean[] mCollisions = new boolean[MIN_TABLE_SIZE];
+    private boolean[] mOtherCollisions = new boolean[MIN_TABLE_SIZE];
+
+    /**
+     * @param distance two positions collide if they are closer than this distance
+     */
+    public CollisionGrid(float distance) {
+        mDistance = distance;
+        mSquaredDistance = distance * distance;
+    }
+
+    /**
+     * Find the collisions between two sets of positions. The colliding positions can then
+     * be known with isColliding() and isOtherColliding().
+     * @param positions our positions
+     * @param otherPositions positions of the penpal
+     * @return the number of colliding pairs
+     */
+    public int detect(TTData positions, TTData otherPositions) {
+        int size = positions.size(), otherSize = otherPositions.size();
+        ensureCapacity(size, otherSize);
+        Arrays.fill(mCollisions, 0, size, false);
+        Arrays.fill(mOtherCollisions, 0, otherSize, false);
+        if (size == 0 || otherSize == 0) {
+            return 0;
+        }
+
+        // we put the other positions in the grid
+        Arrays.fill(mHeads, 0, mMask + 1, -1);
+        for (int j=0; j < otherSize; j++) {
+            TTData.Position p = otherPositions.get(j);
+            int cellX = cell(p.x), cellY = cell(p.y);
+            int bucket = bucket(cellX, cellY);
+            mCellXs[j] = cellX;
+            mCellYs[j] = cellY;
+            mNext[j] = mHeads[bucket];
+            mHeads[bucket] = j;
+        }
+
+        // then we only test our positions against the ones of the neighbour cells
+        int pairs = 0;
+        for (int i=0; i < size; i++) {
+            TTData.Position p = positions.get(i);
+            int cellX = cell(p.x), cellY = cell(p.y);
+            for (int x = cellX - 1; x <= cellX + 1; x++) {
+                for (int y = cellY - 1; y <= cellY + 1; y++) {
+                    for (int j = mHeads[bucket(x, y)]; j >= 0; j = mNext[j]) {
+                        // different cells can share a bucket : we only keep the ones of this cell
+                        if (mCellXs[j] != x || mCellYs[j] != y) {
+                            continue;
+                        }
+                        TTData.Position other = otherPositions.get(j);
+                        float dx = p.x - other.x, dy = p.y - other.y;
+                        if (dx * dx + dy * dy < mSquaredDistance) {
+                            mCollisions[i] = true;
+                            mOtherCollisions[j] = true;
+                            pairs++;
+                        }
+                    }
+                }
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * @param index index of one of our positions
+     * @return true if it collided in the last detection
+     */
+    public boolean isColliding(int index) {
+        return mCollisions[index];
+    }
+
+    /**
+     * @param index index of one of the positions of the penpal
+     * @return true if it collided in the last detection
+     */
+    public boolean isOtherColliding(int index) {
+        return mOtherCollisions[index];
+    }
+
+    private int cell(float coordinate) {
+        return (int) Math.floor(coordinate / mDistance);
+    }
+
+    private int bucket(int cellX, int cellY) {
+        return ((cellX * 73856093) ^ (cellY * 19349663)) & mMask;
+    }
+
+    private void ensureCapacity(int size, int otherSize) {
+        if (size > mCollisions.length) {
+            mCollisions = new boolean[size];
+        }
+        if (otherSize > mNext.length) {
+            mNext = new int[otherSize];
+            mCellXs = new int[otherSize];
+            mCellYs = new int[otherSize];
+            mOtherCollisions = new boolean[otherSize];
+        }
+        // about 2 buckets per position, so that the lists stay short
+        int tableSize = Math.max(MIN_TABLE_SIZE, Integer.highestOneBit(Math.max(1, otherSize)) << 2);
+        if (tableSize > mHeads.length) {
+            mHeads = new int[tableSize];
+        }
+        mMask = mHeads.length - 1;
+    }
+}
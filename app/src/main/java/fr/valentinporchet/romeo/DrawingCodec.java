@@ -0,0 +1,603 @@
+package fr.valentinporchet.romeo;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Binary encoding of a drawing (list of TouchData), much smaller than the Java
+ * serialization of the same list, and decoded without reflection.
+ *
+ * Header : [magic (4 bytes)][version (1 byte)][flags (1 byte)][payload length (4 bytes)]
+ * Payload : [number of paths] then for each path :
+ *   [color][thickness][uuid (2 longs)]
+ *   [number of actions][types of actions][x of actions][y of actions]
+ *   [number of samples][times of samples][lengths of samples]
+ *
+ * With FLAG_DELTA, the points are quantized to 1/8 px, and the points and times
+ * are written as zig-zag varints of the difference with the previous one. The types
+ * of actions are packed as bits, and the lengths aren't sent but rebuilt from the points.
+ *
+ * With FLAG_INCREMENTAL, the payload starts with [number of base paths][uuid of the last
+ * base path] : only the paths after this base are sent, the receiver takes the base
+ * from its DrawingHistory.
+ */
+public final class DrawingCodec {
+    public static final int MAGIC = 0x524F4D45; // "ROME", never the start of a Java serialization stream
+    public static final byte VERSION = 2;
+    public static final int FLAG_DELTA = 1;
+    public static final int FLAG_INCREMENTAL = 2;
+    // answers of the receiver, once a drawing has been decoded
+    public static final int ACK_OK = 1;
+    public static final int ACK_MISSING_BASE = 2;
+    private static final byte VERSION_RAW = 1; // version without flags, still sent when possible
+    private static final int HEADER_LENGTH = 10;
+    private static final byte ACTION_MOVE = 0;
+    private static final byte ACTION_LINE = 1;
+    private static final float QUANTUM = 8.f; // points are quantized to 1/QUANTUM px
+    private static final float MAX_COORDINATE = 1 << 24; // keeps the quantized deltas in an int
+
+    private DrawingCodec() {}
+
+    /**
+     * Exception thrown when we receive a response to a drawing we don't know
+     */
+    public static class MissingBaseException extends IOException {
+        private static final long serialVersionUID = -6245124105023885663L;
+
+        public MissingBaseException(UUID lastUuid, int size) {
+            super("Unknown base drawing : " + lastUuid + " (" + size + " paths)");
+        }
+    }
+
+    /**
+     * Encode a drawing with the most compact encoding possible
+     * @param drawing list of paths to encode
+     * @return the encoded drawing, header included
+     * @throws IOException if a path can't be represented in this format
+     */
+    public static byte[] encode(List<TouchData> drawing) throws IOException {
+        return encode(drawing, FLAG_DELTA);
+    }
+
+    /**
+     * Encode a drawing
+     * @param drawing list of paths to encode
+     * @param flags FLAG_DELTA for the compact encoding, 0 for the exact one
+     * @return the encoded drawing, header included
+     * @throws IOException if a path can't be represented in this format
+     */
+    public static byte[] encode(List<TouchData> drawing, int flags) throws IOException {
+        return encode(drawing, 0, flags);
+    }
+
+    /**
+     * Encode the end of a drawing, the beginning being already known by the receiver
+     * @param drawing list of paths to encode
+     * @param baseCount number of first paths that are not sent (see DrawingHistory)
+     * @param flags FLAG_DELTA for the compact encoding, 0 for the exact one
+     * @return the encoded drawing, header included
+     * @throws IOException if a path can't be represented in this format
+     */
+    public static byte[] encode(List<TouchData> drawing, int baseCount, int flags) throws IOException {
+        List<TouchData> paths = drawing.subList(baseCount, drawing.size());
+        flags &= ~FLAG_INCREMENTAL;
+        if (baseCount > 0) {
+            flags |= FLAG_INCREMENTAL;
+        }
+
+        // the lengths can only be rebuilt if each sample corresponds to a line
+        if ((flags & FLAG_DELTA) != 0) {
+            for (TouchData touchData : paths) {
+                if (!canRebuildLengths(touchData)) {
+                    flags &= ~FLAG_DELTA;
+                    break;
+                }
+            }
+        }
+
+        // we first compute the (maximum) size, in order to allocate the buffer only once
+        boolean delta = (flags & FLAG_DELTA) != 0;
+        int payloadLength = 4 + (baseCount > 0 ? 4 + 16 : 0);
+        for (TouchData touchData : paths) {
+            payloadLength += 4 + 4 + 16;
+            int actionCount = touchData.mStroke.getPointCount();
+            int sampleCount = touchData.mStroke.getSampleCount();
+            if (delta) {
+                payloadLength += VarInts.MAX_VARINT_LENGTH + (actionCount + 7) / 8
+                        + actionCount * 2 * VarInts.MAX_VARINT_LENGTH;
+                payloadLength += VarInts.MAX_VARINT_LENGTH + sampleCount * VarInts.MAX_VARINT_LENGTH;
+            } else {
+                payloadLength += 4 + actionCount * (1 + 4 + 4);
+                payloadLength += 4 + sampleCount * (4 + 4);
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + payloadLength);
+        buffer.putInt(MAGIC).put(flags == 0 ? VERSION_RAW : VERSION).put((byte) flags).putInt(0);
+        if (baseCount > 0) {
+            UUID lastBaseUuid = drawing.get(baseCount - 1).uuid;
+            buffer.putInt(baseCount);
+            buffer.putLong(lastBaseUuid.getMostSignificantBits());
+            buffer.putLong(lastBaseUuid.getLeastSignificantBits());
+        }
+        buffer.putInt(paths.size());
+        for (TouchData touchData : paths) {
+            buffer.putInt(touchData.mPathColor);
+            buffer.putFloat(touchData.mPathThickness);
+            buffer.putLong(touchData.uuid.getMostSignificantBits());
+            buffer.putLong(touchData.uuid.getLeastSignificantBits());
+            if (delta) {
+                encodeDeltaPath(touchData, buffer);
+            } else {
+                encodeRawPath(touchData, buffer);
+            }
+        }
+
+        // now we know the real length of the payload
+        buffer.putInt(HEADER_LENGTH - 4, buffer.position() - HEADER_LENGTH);
+        return buffer.position() == buffer.capacity() ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static void encodeRawPath(TouchData touchData, ByteBuffer buffer) throws IOException {
+        // points of the path, one array per field
+        StrokeBuffer stroke = touchData.mStroke;
+        int pointCount = stroke.getPointCount();
+        buffer.putInt(pointCount);
+        for (int i=0; i < pointCount; i++) { buffer.put(stroke.isMove(i) ? ACTION_MOVE : ACTION_LINE); }
+        for (int i=0; i < pointCount; i++) { buffer.putFloat(stroke.getX(i)); }
+        for (int i=0; i < pointCount; i++) { buffer.putFloat(stroke.getY(i)); }
+
+        // times and lengths used by the animation. Times are offsets
+        // from the beginning of the drawing, so an int is enough
+        int sampleCount = stroke.getSampleCount();
+        buffer.putInt(sampleCount);
+        for (int i=0; i < sampleCount; i++) { buffer.putInt(checkedTime(stroke.getTime(i))); }
+        for (int i=0; i < sampleCount; i++) { buffer.putFloat(stroke.getLength(i)); }
+    }
+
+    private static void encodeDeltaPath(TouchData touchData, ByteBuffer buffer) throws IOException {
+        StrokeBuffer stroke = touchData.mStroke;
+        int pointCount = stroke.getPointCount();
+        VarInts.putVarInt(buffer, pointCount);
+
+        // types of actions, one bit each (1 for a line)
+        for (int i=0; i < pointCount; i += 8) {
+            int bits = 0;
+            for (int j=0; j < 8 && i + j < pointCount; j++) {
+                if (!stroke.isMove(i + j)) { bits |= 1 << j; }
+            }
+            buffer.put((byte) bits);
+        }
+
+        // quantized points, as differences with the previous point
+        int previousX = 0, previousY = 0;
+        for (int i=0; i < pointCount; i++) {
+            int x = quantize(stroke.getX(i));
+            int y = quantize(stroke.getY(i));
+            VarInts.putZigZag(buffer, x - previousX);
+            VarInts.putZigZag(buffer, y - previousY);
+            previousX = x; previousY = y;
+        }
+
+        // times, as differences with the previous time. Lengths are not sent.
+        int sampleCount = stroke.getSampleCount();
+        VarInts.putVarInt(buffer, sampleCount);
+        int previousTime = 0;
+        for (int i=0; i < sampleCount; i++) {
+            int time = checkedTime(stroke.getTime(i));
+            VarInts.putZigZag(buffer, time - previousTime);
+            previousTime = time;
+        }
+    }
+
+    /**
+     * Check if a path can be encoded without its lengths : there must be one sample
+     * per line, the length of each sample being the length of the path after its line
+     * @param touchData the path to check
+     * @return true if the lengths can be rebuilt from the points
+     */
+    private static boolean canRebuildLengths(TouchData touchData) {
+        StrokeBuffer stroke = touchData.mStroke;
+        int lines = 0;
+        for (int i=0; i < stroke.getPointCount(); i++) {
+            if (!stroke.isMove(i)) { lines++; }
+        }
+        return lines == stroke.getSampleCount();
+    }
+
+    private static int quantize(float coordinate) throws IOException {
+        if (!(Math.abs(coordinate) <= MAX_COORDINATE)) { // also true for NaN
+            throw new IOException("Coordinate can't be encoded : " + coordinate);
+        }
+        return Math.round(coordinate * QUANTUM);
+    }
+
+    private static int checkedTime(long time) throws IOException {
+        if (time < 0 || time > Integer.MAX_VALUE) {
+            throw new IOException("Time can't be encoded : " + time);
+        }
+        return (int) time;
+    }
+
+    /**
+     * Check if the next bytes of the stream are an encoded drawing, without consuming them
+     * @param in stream from which we read (must support mark)
+     * @return true if it's a drawing encoded by this class, false if it's something else
+     * (a Java serialization stream for example)
+     * @throws IOException if the stream is broken
+     */
+    public static boolean isEncodedDrawing(BufferedInputStream in) throws IOException {
+        in.mark(4);
+        int magic = 0;
+        for (int i=0; i < 4; i++) {
+            int b = in.read();
+            if (b == -1) { break; }
+            magic = (magic << 8) | b;
+        }
+        in.reset();
+        return magic == MAGIC;
+    }
+
+    /**
+     * Decode a complete drawing written by encode()
+     * @param in stream from which we read
+     * @return the decoded drawing
+     * @throws IOException if the stream is broken or doesn't contain a valid drawing
+     */
+    public static ArrayList<TouchData> decode(DataInputStream in) throws IOException {
+        return decode(in, null);
+    }
+
+    /**
+     * Decode a drawing written by encode()
+     * @param in stream from which we read
+     * @param history known drawings, used to rebuild responses (can be null)
+     * @return the decoded drawing
+     * @throws MissingBaseException if it's a response to a drawing we don't know. The
+     * drawing is entirely read anyway, so the stream can still be used.
+     * @throws IOException if the stream is broken or doesn't contain a valid drawing
+     */
+    public static ArrayList<TouchData> decode(DataInputStream in, DrawingHistory history) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        in.readFully(header);
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        if (headerBuffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an encoded drawing");
+        }
+        int payloadLength = checkedPayloadLength(headerBuffer.getInt(HEADER_LENGTH - 4));
+        byte[] message = Arrays.copyOf(header, HEADER_LENGTH + payloadLength);
+        in.readFully(message, HEADER_LENGTH, payloadLength);
+
+        StreamDecoder decoder = new StreamDecoder(history);
+        decoder.decodeAvailable(ByteBuffer.wrap(message), 0);
+        return decoder.finish();
+    }
+
+    /**
+     * Decoder of a drawing received little by little : each time more bytes are received,
+     * the paths which are now complete are decoded, so they can be shown before the
+     * end of the drawing is received. The path being received keeps its decoding state
+     * (see PathDecoder) : the bytes are decoded once, however long the path.
+     */
+    public static class StreamDecoder {
+        private final DrawingHistory mHistory;
+        private int mMessageLength = -1; // header included, known once the header is received
+        private int mOffset = 0; // number of bytes of the message already decoded
+        private boolean mIsDelta;
+        private boolean mIsIncremental;
+        private ArrayList<TouchData> mBase;
+        private MissingBaseException mMissingBase;
+        private int mPathCount = -1;
+        private ArrayList<TouchData> mPaths = new ArrayList<>();
+        private PathDecoder mPath; // path being received, partly decoded
+
+        /**
+         * @param history known drawings, used to rebuild responses (can be null)
+         */
+        public StreamDecoder(DrawingHistory history) {
+            mHistory = history;
+        }
+
+        /**
+         * Decode the paths which are complete in the received bytes
+         * @param in bytes received (in read mode) : the beginning of the message, and maybe more
+         * @param start position of the beginning of the message in the buffer. The bytes before
+         * start + the number of bytes already decoded may have changed since the previous call.
+         * @return true if new paths were decoded
+         * @throws IOException if the message is not a valid drawing
+         */
+        public boolean decodeAvailable(ByteBuffer in, int start) throws IOException {
+            ByteBuffer buffer = in.duplicate();
+            buffer.position(start + mOffset);
+            int decodedCount = mPaths.size();
+            try {
+                if (mMessageLength < 0) {
+                    if (buffer.remaining() < HEADER_LENGTH) {
+                        return false;
+                    }
+                    readHeader(buffer);
+                    mOffset = HEADER_LENGTH;
+                }
+                int end = start + mMessageLength;
+                buffer.limit(Math.min(buffer.limit(), end));
+
+                if (mPathCount < 0) {
+                    // if it's a response, we first get the base drawing
+                    if (mIsIncremental) {
+                        int baseCount = buffer.getInt();
+                        UUID lastBaseUuid = new UUID(buffer.getLong(), buffer.getLong());
+                        mBase = mHistory == null ? null : mHistory.get(lastBaseUuid, baseCount);
+                        if (mBase == null) {
+                            mMissingBase = new MissingBaseException(lastBaseUuid, baseCount);
+                        }
+                    }
+                    mPathCount = readCount(buffer, 4 + 4 + 16, end);
+                    mOffset = buffer.position() - start;
+                }
+                if (mMissingBase != null) {
+                    return false; // nothing can be shown, the message is just received until its end
+                }
+
+                while (mPaths.size() < mPathCount) {
+                    if (mPath == null) {
+                        mPath = new PathDecoder(mIsDelta);
+                    }
+                    TouchData path = mPath.decode(buffer, end);
+                    // the bytes decoded are not read again, even if the path is not complete
+                    mOffset = buffer.position() - start;
+                    if (path == null) {
+                        if (isComplete(in, start)) {
+                            throw new IOException("Truncated drawing");
+                        }
+                        break; // its next bytes are not received yet
+                    }
+                    mPaths.add(path);
+                    mPath = null;
+                }
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                // the beginning of the message is not entirely received : it's read again with more bytes
+                if (isComplete(in, start)) {
+                    throw new IOException("Truncated drawing", e);
+                }
+            }
+            return mPaths.size() > decodedCount;
+        }
+
+        private void readHeader(ByteBuffer buffer) throws IOException {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not an encoded drawing");
+            }
+            byte version = buffer.get();
+            if (version != VERSION_RAW && version != VERSION) {
+                throw new IOException("Unsupported drawing version : " + version);
+            }
+            int flags = buffer.get();
+            if (version == VERSION_RAW) {
+                flags = 0; // flags were not used in the first version
+            }
+            mMessageLength = HEADER_LENGTH + checkedPayloadLength(buffer.getInt());
+            mIsDelta = (flags & FLAG_DELTA) != 0;
+            mIsIncremental = (flags & FLAG_INCREMENTAL) != 0;
+        }
+
+        /**
+         * @return the number of bytes of the message already decoded, which are not read again
+         */
+        public int getDecodedLength() {
+            return mOffset;
+        }
+
+        private boolean isComplete(ByteBuffer in, int start) {
+            return mMessageLength >= 0 && in.limit() - start >= mMessageLength;
+        }
+
+        /**
+         * @return the paths decoded until now, after the base drawing if it's a response
+         */
+        public ArrayList<TouchData> getPaths() {
+            ArrayList<TouchData> paths = new ArrayList<>((mBase == null ? 0 : mBase.size()) + mPaths.size());
+            if (mBase != null) {
+                paths.addAll(mBase);
+            }
+            paths.addAll(mPaths);
+            return paths;
+        }
+
+        /**
+         * Get the drawing, once all the message was given to decodeAvailable()
+         * @return the decoded drawing
+         * @throws MissingBaseException if it's a response to a drawing we don't know
+         * @throws IOException if the drawing is not complete
+         */
+        public ArrayList<TouchData> finish() throws IOException {
+            if (mMissingBase != null) {
+                throw mMissingBase;
+            }
+            if (mPathCount < 0 || mPaths.size() < mPathCount) {
+                throw new IOException("Truncated drawing");
+            }
+            return getPaths();
+        }
+    }
+
+    private static int checkedPayloadLength(int length) throws IOException {
+        if (length < 0 || length > Frames.MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid drawing length : " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Decoding of one path, which stops when bytes are missing and continues from there
+     * once more bytes are received : the bytes already decoded are never read again, and
+     * the state of the path is kept in this object.
+     */
+    private static class PathDecoder {
+        private final boolean mIsDelta;
+        private TouchData mTouchData; // null until the beginning of the path is read
+        private int mActionCount = -1;
+        private byte[] mTypes; // types of actions, one bit each (delta only)
+        private int mPointIndex = 0;
+        private int mX = 0, mY = 0; // last quantized point (delta only)
+        private float[] mLengths; // length of the path after each line (delta only)
+        private int mLines = 0;
+        private int mSampleCount = -1;
+        private int mSampleIndex = 0;
+        private int mTime = 0; // last time (delta only)
+        private int mStepStart; // position of the step being decoded in the buffer
+
+        PathDecoder(boolean isDelta) {
+            mIsDelta = isDelta;
+        }
+
+        /**
+         * Decode the next bytes of the path
+         * @param buffer bytes received, positioned on the first byte not decoded yet
+         * @param end end of the message in the buffer (which may not be entirely received)
+         * @return the path once it's complete, or null if bytes are missing : the buffer is
+         * then positioned after the bytes decoded, where the next call will continue
+         * @throws IOException if the path is not valid
+         */
+        TouchData decode(ByteBuffer buffer, int end) throws IOException {
+            // each step changes the state only once all its bytes are read
+            try {
+                if (mTouchData == null) {
+                    mStepStart = buffer.position();
+                    int color = buffer.getInt();
+                    float thickness = buffer.getFloat();
+                    TouchData touchData = new TouchData(new UUID(buffer.getLong(), buffer.getLong()));
+                    touchData.mPathColor = color;
+                    touchData.mPathThickness = thickness;
+                    mTouchData = touchData;
+                }
+                if (mIsDelta) {
+                    decodeDelta(buffer, end);
+                } else {
+                    decodeRaw(buffer, end);
+                }
+                return mTouchData;
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                // the next step is not entirely received
+                buffer.position(mStepStart);
+                return null;
+            }
+        }
+
+        private void decodeRaw(ByteBuffer buffer, int end) throws IOException {
+            StrokeBuffer stroke = mTouchData.mStroke;
+            if (mActionCount < 0) {
+                // the actions are stored as columns : they are decoded once all received
+                mStepStart = buffer.position();
+                int actionCount = readCount(buffer, 1 + 4 + 4, end);
+                if (buffer.remaining() < actionCount * (1 + 4 + 4)) {
+                    throw new BufferUnderflowException();
+                }
+                stroke.ensurePointCapacity(actionCount);
+                int typesOffset = buffer.position();
+                int xsOffset = typesOffset + actionCount;
+                int ysOffset = xsOffset + actionCount * 4;
+                for (int i=0; i < actionCount; i++) {
+                    float x = buffer.getFloat(xsOffset + i * 4);
+                    float y = buffer.getFloat(ysOffset + i * 4);
+                    if (buffer.get(typesOffset + i) == ACTION_MOVE) {
+                        mTouchData.mPath.moveTo(x, y);
+                    } else {
+                        mTouchData.mPath.lineTo(x, y);
+                    }
+                }
+                buffer.position(ysOffset + actionCount * 4);
+                mActionCount = actionCount;
+            }
+
+            // same for the samples
+            mStepStart = buffer.position();
+            int sampleCount = readCount(buffer, 4 + 4, end);
+            if (buffer.remaining() < sampleCount * (4 + 4)) {
+                throw new BufferUnderflowException();
+            }
+            int lengthsOffset = buffer.position() + sampleCount * 4;
+            stroke.ensureSampleCapacity(sampleCount);
+            for (int i=0; i < sampleCount; i++) {
+                stroke.addSample(buffer.getInt(), buffer.getFloat(lengthsOffset + i * 4));
+            }
+            buffer.position(lengthsOffset + sampleCount * 4);
+            mSampleCount = sampleCount;
+        }
+
+        private void decodeDelta(ByteBuffer buffer, int end) throws IOException {
+            StrokeBuffer stroke = mTouchData.mStroke;
+            if (mActionCount < 0) {
+                mStepStart = buffer.position();
+                // at least 1 bit for the type and 2 bytes for the point
+                int actionCount = VarInts.getVarInt(buffer);
+                if (actionCount < 0 || actionCount > (end - buffer.position()) / 2) {
+                    throw new IOException("Invalid number of actions : " + actionCount);
+                }
+                // the types are copied : the bytes before the next point may be dropped by the caller
+                byte[] types = new byte[(actionCount + 7) / 8];
+                buffer.get(types);
+                stroke.ensurePointCapacity(actionCount);
+                mTypes = types;
+                mLengths = new float[actionCount];
+                mActionCount = actionCount;
+            }
+
+            // we rebuild the path, and its length after each line, point by point
+            while (mPointIndex < mActionCount) {
+                mStepStart = buffer.position();
+                int x = mX + VarInts.getZigZag(buffer);
+                int y = mY + VarInts.getZigZag(buffer);
+                float pointX = x / QUANTUM, pointY = y / QUANTUM;
+                if ((mTypes[mPointIndex / 8] & (1 << (mPointIndex % 8))) == 0) {
+                    mTouchData.mPath.moveTo(pointX, pointY);
+                } else {
+                    mTouchData.mPath.lineTo(pointX, pointY);
+                    mLengths[mLines++] = stroke.getLength();
+                }
+                mX = x;
+                mY = y;
+                mPointIndex++;
+            }
+
+            if (mSampleCount < 0) {
+                mStepStart = buffer.position();
+                int sampleCount = VarInts.getVarInt(buffer);
+                if (sampleCount != mLines) {
+                    throw new IOException("Invalid number of samples : " + sampleCount);
+                }
+                stroke.ensureSampleCapacity(sampleCount);
+                mSampleCount = sampleCount;
+            }
+            while (mSampleIndex < mSampleCount) {
+                mStepStart = buffer.position();
+                int time = mTime + VarInts.getZigZag(buffer);
+                stroke.addSample(time, mLengths[mSampleIndex]);
+                mTime = time;
+                mSampleIndex++;
+            }
+        }
+    }
+
+    /**
+     * Read a number of elements, and check that the buffer can contain them
+     * @param buffer buffer from which we read
+     * @param bytesPerElement minimum number of bytes taken by one element
+     * @param end end of the message in the buffer (which may not be entirely received)
+     * @return the number of elements
+     * @throws IOException if the number is invalid
+     */
+    private static int readCount(ByteBuffer buffer, int bytesPerElement, int end) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0 || (long) count * bytesPerElement > end - buffer.position()) {
+            throw new IOException("Invalid number of elements : " + count);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,177 @@
+package fr.valentinporchet.romeo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Sends our drawings to all the penpals. Each penpal has its own DrawingSender, with its
+ * own worker thread, outbox and history : a penpal which is slow or away doesn't delay the
+ * others. A drawing is encoded once for its outboxes, and once for the penpals knowing the
+ * same first paths (see DrawingSender.Message).
+ * The results of the penpals are given as one status per drawing : once all the penpals
+ * gave theirs, the worst one (see the order of the statuses of DrawingSender), and again
+ * when it changes. Only used by the UI thread.
+ */
+public class DrawingFanOut {
+    private static final int IN_PROGRESS = -1; // no result of the penpal yet
+
+    /**
+     * Results of the penpals for one drawing
+     */
+    private static class Result {
+        final HashMap<String, Integer> mStatuses = new HashMap<>(); // by address of the penpal
+        int mReported = IN_PROGRESS;
+    }
+
+    private final int mPort;
+    private final DrawingHistory mHistory;
+    private final File mDirectory;
+    private final Executor mCallbackExecutor;
+    private final DrawingSender.Callback mCallback;
+    private LinkedHashMap<String, DrawingSender> mSenders = new LinkedHashMap<>();
+    private long mPingInterval = 0;
+    // drawings still waiting for some penpals, by key (see DrawingSender.keyOf()) : the
+    // results are given on the callback executor, which may not be the UI thread
+    private final HashMap<String, Result> mResults = new HashMap<>();
+
+    /**
+     * @param port port of the penpals, unless their address gives one
+     * @param history known drawings, whose histories of the penpals are used to send only the new paths
+     * @param directory directory of the outboxes, kept between two launches of the app
+     * @param callbackExecutor executor on which the callback is called (the UI thread)
+     * @param callback receiver of the results, for all the penpals at once
+     */
+    public DrawingFanOut(int port, DrawingHistory history, File directory, Executor callbackExecutor,
+                         DrawingSender.Callback callback) {
+        mPort = port;
+        mHistory = history;
+        mDirectory = directory;
+        mCallbackExecutor = callbackExecutor;
+        mCallback = callback;
+    }
+
+    /**
+     * Change the penpals. The drawings waiting for a removed penpal stay in its outbox,
+     * and are sent if it comes back.
+     * @param addresses addresses of the penpals (see Penpals)
+     */
+    public void setAddresses(String addresses) {
+        ArrayList<String> penpals = Penpals.parse(addresses);
+        for (String address : new ArrayList<>(mSenders.keySet())) {
+            if (!penpals.contains(address)) {
+                mSenders.remove(address).shutdown();
+            }
+        }
+        for (String address : penpals) {
+            if (!mSenders.containsKey(address)) {
+                final String penpal = address;
+                DrawingSender sender = new DrawingSender(Penpals.getPort(address, mPort),
+                        mHistory.getPenpal(Penpals.getHost(address)), mDirectory, getOutboxName(address),
+                        Penpals.getHost(address), mCallbackExecutor, new DrawingSender.Callback() {
+                            @Override
+                            public void onDrawingSent(ArrayList<TouchData> drawing, int status) {
+                                onPenpalResult(penpal, drawing, status);
+                            }
+                        });
+                if (mPingInterval > 0) {
+                    sender.setPingInterval(mPingInterval);
+                }
+                mSenders.put(address, sender);
+            }
+        }
+    }
+
+    /**
+     * Send a drawing to all the penpals, in the background
+     * @param drawing the drawing (must not be modified afterwards)
+     * @return true if at least one penpal will get it, false if it's already waiting for
+     * all of them, if too many drawings are waiting or if the senders are stopped
+     */
+    public boolean send(ArrayList<TouchData> drawing) {
+        if (drawing.isEmpty() || mSenders.isEmpty()) {
+            return false;
+        }
+        // each penpal gives a result, even when its sender refuses the drawing. Only the penpals
+        // still waiting for a drawing sent again keep their status : their senders ignore it.
+        String key = DrawingSender.keyOf(drawing);
+        synchronized (mResults) {
+            Result result = mResults.get(key);
+            if (result == null) {
+                result = new Result();
+                mResults.put(key, result);
+            }
+            for (String address : mSenders.keySet()) {
+                Integer status = result.mStatuses.get(address);
+                if (status == null || (status != IN_PROGRESS && status != DrawingSender.STATUS_PENDING)) {
+                    result.mStatuses.put(address, IN_PROGRESS);
+                }
+            }
+            result.mReported = IN_PROGRESS; // the status is given again for this send
+        }
+        DrawingSender.Message message = new DrawingSender.Message(drawing);
+        boolean isSending = false;
+        for (Map.Entry<String, DrawingSender> sender : mSenders.entrySet()) {
+            isSending |= sender.getValue().send(message, Penpals.getHost(sender.getKey()));
+        }
+        return isSending;
+    }
+
+    /**
+     * Ping all the penpals regularly, to estimate their clock offsets (see Latency)
+     * @param interval time between two pings (in ms), 0 to stop
+     */
+    public void setPingInterval(long interval) {
+        mPingInterval = interval;
+        for (DrawingSender sender : mSenders.values()) {
+            sender.setPingInterval(interval);
+        }
+    }
+
+    /**
+     * Stop the worker threads. The drawings still waiting stay in the outboxes.
+     */
+    public void shutdown() {
+        for (DrawingSender sender : mSenders.values()) {
+            sender.shutdown();
+        }
+        mSenders.clear();
+    }
+
+    /**
+     * Give the status of a drawing, once all its penpals gave theirs, and if it changed
+     */
+    private void onPenpalResult(String address, ArrayList<TouchData> drawing, int status) {
+        String key = DrawingSender.keyOf(drawing);
+        int aggregated = DrawingSender.STATUS_SENT;
+        synchronized (mResults) {
+            Result result = mResults.get(key);
+            if (result == null) { // a drawing left in the outbox by the previous launch
+                result = new Result();
+                mResults.put(key, result);
+            }
+            result.mStatuses.put(address, status);
+            for (int penpalStatus : result.mStatuses.values()) {
+                if (penpalStatus == IN_PROGRESS) {
+                    return;
+                }
+                aggregated = Math.max(aggregated, penpalStatus);
+            }
+            if (!result.mStatuses.containsValue(DrawingSender.STATUS_PENDING)) {
+                mResults.remove(key); // nothing will change anymore
+            }
+            if (aggregated == result.mReported) {
+                return;
+            }
+            result.mReported = aggregated;
+        }
+        mCallback.onDrawingSent(drawing, aggregated);
+    }
+
+    private static String getOutboxName(String address) {
+        return "outbox-" + address.replaceAll("[^A-Za-z0-9.-]", "_");
+    }
+}
@@ -0,0 +1,114 @@
+package fr.valentinporchet.romeo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Recent drawings known by both phones : the ones we received from the penpal, and
+ * the ones the penpal acknowledged. A drawing is identified by the uuid of its last
+ * path and its number of paths, as paths are only added at the end of a drawing.
+ * When we send a response, the paths of a known drawing don't need to be sent again.
+ * A drawing received again (sent again by a penpal which didn't get our acknowledgement)
+ * is also recognized, so it's shown once.
+ * With several penpals, each one has its own history (see getPenpal()) : a drawing known by
+ * one penpal is not a base for the others. The drawings added to the history of a penpal are
+ * also added to this one, which is used to decode what any penpal sends.
+ */
+public class DrawingHistory {
+    private static final int MAX_DRAWINGS = 16;
+    private static final int MAX_PENPALS = 16;
+
+    private final DrawingHistory mParent; // null if it's not the history of a penpal
+
+    // drawings by uuid of their last path, the least recently used first
+    private LinkedHashMap<UUID, ArrayList<TouchData>> mDrawings =
+            new LinkedHashMap<UUID, ArrayList<TouchData>>(MAX_DRAWINGS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<UUID, ArrayList<TouchData>> eldest) {
+                    return size() > MAX_DRAWINGS;
+                }
+            };
+
+    // histories of the penpals, by address, the least recently used first
+    private LinkedHashMap<String, DrawingHistory> mPenpals =
+            new LinkedHashMap<String, DrawingHistory>(MAX_PENPALS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, DrawingHistory> eldest) {
+                    return size() > MAX_PENPALS;
+                }
+            };
+
+    public DrawingHistory() {
+        this(null);
+    }
+
+    private DrawingHistory(DrawingHistory parent) {
+        mParent = parent;
+    }
+
+    /**
+     * Get the history of one penpal, created if needed
+     * @param host address of the penpal, as given to its sender and seen by the server
+     * @return the drawings known by us and by this penpal
+     */
+    public synchronized DrawingHistory getPenpal(String host) {
+        DrawingHistory penpal = mPenpals.get(host);
+        if (penpal == null) {
+            penpal = new DrawingHistory(this);
+            mPenpals.put(host, penpal);
+        }
+        return penpal;
+    }
+
+    /**
+     * Add a drawing known by both phones, also to the history of all the penpals if it's
+     * the history of one
+     * @param drawing the drawing (copied)
+     * @return false if the drawing was already known
+     */
+    public boolean add(List<TouchData> drawing) {
+        if (drawing.isEmpty()) {
+            return false;
+        }
+        if (mParent != null) {
+            mParent.add(drawing);
+        }
+        synchronized (this) {
+            ArrayList<TouchData> known = mDrawings.put(drawing.get(drawing.size() - 1).uuid, new ArrayList<>(drawing));
+            return known == null || known.size() != drawing.size();
+        }
+    }
+
+    /**
+     * Find the biggest known drawing the given drawing starts with
+     * @param drawing drawing to send
+     * @return the number of first paths of the drawing already known by the penpal
+     */
+    public synchronized int findBase(List<TouchData> drawing) {
+        int base = 0;
+        for (Map.Entry<UUID, ArrayList<TouchData>> entry : mDrawings.entrySet()) {
+            int size = entry.getValue().size();
+            if (size > base && size <= drawing.size() && drawing.get(size - 1).uuid.equals(entry.getKey())) {
+                base = size;
+            }
+        }
+        return base;
+    }
+
+    /**
+     * Get a known drawing
+     * @param lastUuid uuid of the last path of the drawing
+     * @param size number of paths of the drawing
+     * @return the paths of the drawing, or null if we don't know it
+     */
+    public synchronized ArrayList<TouchData> get(UUID lastUuid, int size) {
+        ArrayList<TouchData> drawing = mDrawings.get(lastUuid);
+        if (drawing == null || drawing.size() != size) {
+            return null;
+        }
+        return new ArrayList<>(drawing);
+    }
+}
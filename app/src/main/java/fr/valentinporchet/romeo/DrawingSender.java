@@ -0,0 +1,498 @@
+package fr.valentinporchet.romeo;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the drawings to the penpal, one after the other, on a single worker thread.
+ * The drawings are first written in an outbox (see OutboxLog) : if the penpal can't be
+ * reached, they are sent later, even after the app was restarted. The outbox is flushed
+ * in batches, several drawings on the same connection, and retried with a delay doubled
+ * after each failure. The UI thread never waits for the disk or the network.
+ * At most MAX_QUEUED drawings wait to be sent : when the penpal has been away for a long
+ * time, new sends are refused, and the callback tells it. A drawing which is already waiting
+ * is not sent a second time.
+ * The address of the penpal is resolved once, and again only if it changes or if a send fails.
+ * For the latency overlay, the penpal can also be pinged regularly to know its clock (see Latency).
+ */
+public class DrawingSender {
+    public static final int MAX_QUEUED = 8; // drawings in the outbox, the one being sent included
+    private static final int BATCH_SIZE = 4; // drawings sent on one connection
+    private static final int SOCKET_TIMEOUT = 5000; // in ms
+    private static final long RETRY_DELAY_MIN = 1000; // in ms
+    private static final long RETRY_DELAY_MAX = 5 * 60 * 1000; // in ms
+    private static final long KEEP_ALIVE = 30; // in s, then the worker thread stops
+
+    // results of the sends, given to the callback, the worst last
+    public static final int STATUS_SENT = 0; // the penpal received the drawing
+    public static final int STATUS_PENDING = 1; // not sent yet, it stays in the outbox and will be sent later
+    public static final int STATUS_FAILED = 2; // not written in the outbox, it won't be sent
+    public static final int STATUS_REFUSED = 3; // too many drawings are waiting, it won't be sent
+
+    /**
+     * A drawing to send, encoded once even if it's sent to several penpals (see DrawingFanOut) :
+     * once for the outboxes, and once for all the penpals knowing the same first paths
+     */
+    public static class Message {
+        private final ArrayList<TouchData> mDrawing;
+        private byte[] mEncoded;
+        private final HashMap<Integer, byte[]> mDeltas = new HashMap<>(); // encodings sent, by base
+
+        /**
+         * @param drawing the drawing (must not be modified afterwards)
+         */
+        public Message(ArrayList<TouchData> drawing) {
+            mDrawing = drawing;
+        }
+
+        public ArrayList<TouchData> getDrawing() {
+            return mDrawing;
+        }
+
+        /**
+         * Get the exact encoding of the drawing, done by the first sender asking for it
+         * @return the encoded drawing (must not be modified)
+         * @throws IOException if the drawing can't be encoded
+         */
+        public synchronized byte[] getEncoded() throws IOException {
+            if (mEncoded == null) {
+                mEncoded = DrawingCodec.encode(mDrawing, 0);
+            }
+            return mEncoded;
+        }
+
+        /**
+         * Get the encoding sent to a penpal, done by the first sender asking for this base
+         * @param base number of first paths already known by the penpal, not sent
+         * @return the encoded paths (must not be modified)
+         * @throws IOException if the drawing can't be encoded
+         */
+        public synchronized byte[] getDelta(int base) throws IOException {
+            byte[] delta = mDeltas.get(base);
+            if (delta == null) {
+                long encodeStart = Latency.now();
+                delta = DrawingCodec.encode(mDrawing, base, DrawingCodec.FLAG_DELTA);
+                Latency.get().record(Latency.DRAWING, Latency.ENCODE, Latency.now() - encodeStart);
+                mDeltas.put(base, delta);
+            }
+            return delta;
+        }
+    }
+
+    /**
+     * Receiver of the results of the sends, called on the callback executor
+     */
+    public interface Callback {
+        /**
+         * @param drawing the drawing given to send() (or loaded from the outbox)
+         * @param status STATUS_SENT, STATUS_PENDING (given once, then STATUS_SENT when the
+         * penpal gets it), STATUS_FAILED or STATUS_REFUSED
+         */
+        void onDrawingSent(ArrayList<TouchData> drawing, int status);
+    }
+
+    private final int mPort;
+    private final DrawingHistory mHistory;
+    private final File mDirectory;
+    private final String mName;
+    private final Executor mCallbackExecutor;
+    private final Callback mCallback;
+    private final ScheduledThreadPoolExecutor mExecutor;
+
+    // drawings waiting in the outbox, by key (see keyOf())
+    private final HashSet<String> mQueued = new HashSet<>();
+
+    private volatile String mHost;
+
+    // only used by the worker thread
+    private OutboxLog mOutbox;
+    // drawings written in the outbox since the launch, the last ones of the outbox : their
+    // encodings are shared with the other senders, instead of being decoded from the outbox
+    private ArrayDeque<Message> mMessages = new ArrayDeque<>();
+    private ScheduledFuture<?> mRetry;
+    private long mRetryDelay = RETRY_DELAY_MIN;
+    private HashSet<String> mReportedFailures = new HashSet<>(); // the failures are reported once
+    private String mResolvedHost;
+    private InetAddress mResolvedAddress;
+    private int mSequence = 0; // of the stamps of the drawings
+    private ScheduledFuture<?> mPings;
+
+    // metrics of the outbox, updated by the worker thread
+    private volatile int mQueueDepth;
+    private volatile long mOldestQueuedTime = -1;
+
+    /**
+     * @param port port of the penpal
+     * @param history known drawings, to send only the new paths
+     * @param directory directory of the outbox, kept between two launches of the app
+     * @param host address of the penpal, for the drawings left in the outbox
+     * @param callbackExecutor executor on which the callback is called (the UI thread)
+     * @param callback receiver of the results
+     */
+    public DrawingSender(int port, DrawingHistory history, File directory, String host,
+                         Executor callbackExecutor, Callback callback) {
+        this(port, history, directory, "outbox", host, callbackExecutor, callback);
+    }
+
+    /**
+     * @param port port of the penpal
+     * @param history known drawings, to send only the new paths
+     * @param directory directory of the outbox, kept between two launches of the app
+     * @param name name of the outbox, one per penpal
+     * @param host address of the penpal, for the drawings left in the outbox
+     * @param callbackExecutor executor on which the callback is called (the UI thread)
+     * @param callback receiver of the results
+     */
+    public DrawingSender(int port, DrawingHistory history, File directory, String name, String host,
+                         Executor callbackExecutor, Callback callback) {
+        mPort = port;
+        mHistory = history;
+        mDirectory = directory;
+        mName = name;
+        mHost = host;
+        mCallbackExecutor = callbackExecutor;
+        mCallback = callback;
+        mExecutor = new ScheduledThreadPoolExecutor(1);
+        mExecutor.setKeepAliveTime(KEEP_ALIVE, TimeUnit.SECONDS);
+        mExecutor.allowCoreThreadTimeOut(true);
+        mExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        // the drawings left by the previous launch are sent
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Send a drawing, in the background
+     * @param drawing the drawing (must not be modified afterwards)
+     * @param host address of the penpal
+     * @return false if the drawing is already waiting, if too many drawings are waiting or
+     * if the sender is stopped : then the callback is only called in the last two cases, with
+     * STATUS_REFUSED or STATUS_FAILED
+     */
+    public boolean send(ArrayList<TouchData> drawing, String host) {
+        return send(new Message(drawing), host);
+    }
+
+    /**
+     * Send a drawing, in the background
+     * @param message the drawing, maybe also given to the senders of other penpals
+     * @param host address of the penpal
+     * @return false if the drawing is already waiting, if too many drawings are waiting or
+     * if the sender is stopped : then the callback is only called in the last two cases, with
+     * STATUS_REFUSED or STATUS_FAILED
+     */
+    public boolean send(final Message message, final String host) {
+        final ArrayList<TouchData> drawing = message.getDrawing();
+        if (drawing.isEmpty()) {
+            return false;
+        }
+        final String key = keyOf(drawing);
+        synchronized (mQueued) {
+            if (mQueued.size() >= MAX_QUEUED) {
+                Log.w("DrawingSender", "Too many drawings waiting, not sent");
+                report(drawing, STATUS_REFUSED);
+                return false;
+            }
+            if (!mQueued.add(key)) {
+                Log.i("DrawingSender", "Drawing already being sent");
+                return false;
+            }
+        }
+        mHost = host;
+
+        boolean isAccepted = execute(new Runnable() {
+            @Override
+            public void run() {
+                if (enqueue(message)) {
+                    // a new drawing, we don't wait for the end of the delay
+                    mRetryDelay = RETRY_DELAY_MIN;
+                    if (!flush() && mReportedFailures.add(key)) {
+                        report(drawing, STATUS_PENDING); // it will be sent later
+                    }
+                } else {
+                    synchronized (mQueued) {
+                        mQueued.remove(key);
+                    }
+                    report(drawing, STATUS_FAILED);
+                }
+            }
+        });
+        if (!isAccepted) {
+            synchronized (mQueued) {
+                mQueued.remove(key);
+            }
+            report(drawing, STATUS_FAILED);
+        }
+        return isAccepted;
+    }
+
+    /**
+     * @return the number of drawings waiting in the outbox
+     */
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * @return the time the oldest drawing of the outbox has been waiting (in ms), 0 if there is none
+     */
+    public long getOldestQueuedAge() {
+        long oldest = mOldestQueuedTime;
+        return oldest < 0 ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    /**
+     * Ping the penpal regularly, on the worker thread, to estimate its clock offset (see Latency)
+     * @param interval time between two pings (in ms), 0 to stop
+     */
+    public void setPingInterval(final long interval) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mPings != null) {
+                    mPings.cancel(false);
+                    mPings = null;
+                }
+                if (interval <= 0) {
+                    return;
+                }
+                try {
+                    mPings = mExecutor.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            ping();
+                        }
+                    }, 0, interval, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    Log.w("DrawingSender", "Sender stopped");
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop the worker thread, once the current send is finished. The drawings
+     * still waiting stay in the outbox.
+     */
+    public void shutdown() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mOutbox != null) {
+                    mOutbox.close();
+                    mOutbox = null;
+                }
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    private boolean execute(Runnable task) {
+        try {
+            mExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w("DrawingSender", "Sender stopped");
+            return false;
+        }
+    }
+
+    /***************** WORKER THREAD *****************/
+
+    private OutboxLog getOutbox() throws IOException {
+        if (mOutbox == null) {
+            mOutbox = new OutboxLog(mDirectory, mName, OutboxLog.FSYNC_ALWAYS);
+        }
+        return mOutbox;
+    }
+
+    /**
+     * Write a drawing in the outbox
+     * @return false if it couldn't be written
+     */
+    private boolean enqueue(Message message) {
+        try {
+            // the exact encoding : the drawing may be decoded and sent again in a long time
+            getOutbox().append(message.getEncoded(), System.currentTimeMillis());
+            mMessages.add(message);
+            updateMetrics();
+            return true;
+        } catch (IOException e) {
+            Log.e("DrawingSender", "Drawing not written in the outbox", e);
+            return false;
+        }
+    }
+
+    /**
+     * Send the drawings of the outbox, in batches, until it's empty or the penpal can't
+     * be reached : then we try again later
+     * @return true if the outbox is empty
+     */
+    private boolean flush() {
+        if (mRetry != null) {
+            mRetry.cancel(false);
+            mRetry = null;
+        }
+        if (mHost == null) {
+            return false; // sent with the next drawing
+        }
+        ArrayList<TouchData> current = null;
+        try {
+            OutboxLog outbox = getOutbox();
+            outbox.sync();
+            while (outbox.size() > 0) {
+                ArrayList<byte[]> batch = outbox.peek(BATCH_SIZE);
+                Socket socket = new Socket();
+                try {
+                    socket.connect(new InetSocketAddress(resolve(mHost), mPort), SOCKET_TIMEOUT);
+                    socket.setSoTimeout(SOCKET_TIMEOUT); // for the acknowledgements
+                    for (byte[] record : batch) {
+                        Message message = outbox.size() <= mMessages.size() ? mMessages.peek() : decode(record);
+                        current = message != null ? message.getDrawing() : null;
+                        if (message != null) {
+                            ClientThread client = new ClientThread(message, mResolvedAddress, mPort, mHistory);
+                            client.setSequence(++mSequence);
+                            client.send(socket);
+                        }
+                        // the drawing is removed only once the penpal has it
+                        outbox.remove(1);
+                        if (outbox.size() < mMessages.size()) {
+                            mMessages.poll();
+                        }
+                        updateMetrics();
+                        if (current != null) {
+                            sent(current);
+                        }
+                        current = null;
+                    }
+                } finally {
+                    socket.close();
+                }
+            }
+            mRetryDelay = RETRY_DELAY_MIN;
+            return true;
+        } catch (IOException e) {
+            Log.w("DrawingSender", "Penpal not reachable, " + mQueueDepth + " drawings waiting for "
+                    + getOldestQueuedAge() + " ms, next try in " + mRetryDelay + " ms : " + e);
+            // the address may have changed (DHCP), we will resolve it again
+            mResolvedHost = null;
+            mResolvedAddress = null;
+            if (current != null && mReportedFailures.add(keyOf(current))) {
+                report(current, STATUS_PENDING);
+            }
+            try {
+                mRetry = mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, mRetryDelay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e1) {
+                return false; // stopped, the outbox will be flushed next time
+            }
+            mRetryDelay = Math.min(mRetryDelay * 2, RETRY_DELAY_MAX);
+            return false;
+        }
+    }
+
+    /**
+     * Ping the penpal on a new connection. A penpal which doesn't answer (older version)
+     * just keeps an unknown clock.
+     */
+    private void ping() {
+        if (mHost == null) {
+            return;
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(resolve(mHost), mPort), SOCKET_TIMEOUT);
+            socket.setSoTimeout(SOCKET_TIMEOUT);
+            Latency.ping(socket);
+        } catch (IOException e) {
+            Log.d("DrawingSender", "Ping not answered : " + e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e("DrawingSender", "Error while closing", e);
+            }
+        }
+    }
+
+    /**
+     * Decode a drawing left in the outbox by the previous launch
+     * @return the drawing, or null if the record is not valid (it's then dropped)
+     */
+    private Message decode(byte[] record) {
+        try {
+            ArrayList<TouchData> drawing = DrawingCodec.decode(new DataInputStream(new ByteArrayInputStream(record)));
+            if (!drawing.isEmpty()) {
+                synchronized (mQueued) {
+                    mQueued.add(keyOf(drawing));
+                }
+                return new Message(drawing);
+            }
+        } catch (IOException e) {
+            Log.e("DrawingSender", "Invalid drawing in the outbox, dropped", e);
+        }
+        return null;
+    }
+
+    private void sent(ArrayList<TouchData> drawing) {
+        String key = keyOf(drawing);
+        synchronized (mQueued) {
+            mQueued.remove(key);
+        }
+        mReportedFailures.remove(key);
+        report(drawing, STATUS_SENT);
+    }
+
+    private void updateMetrics() throws IOException {
+        mQueueDepth = getOutbox().size();
+        mOldestQueuedTime = getOutbox().getOldestTime();
+    }
+
+    private InetAddress resolve(String host) throws IOException {
+        if (mResolvedAddress == null || !host.equals(mResolvedHost)) {
+            mResolvedAddress = InetAddress.getByName(host);
+            mResolvedHost = host;
+        }
+        return mResolvedAddress;
+    }
+
+    private void report(final ArrayList<TouchData> drawing, final int status) {
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onDrawingSent(drawing, status);
+            }
+        });
+    }
+
+    /**
+     * Identity of a drawing, like in DrawingHistory : paths are only added at the end
+     */
+    static String keyOf(ArrayList<TouchData> drawing) {
+        return drawing.get(drawing.size() - 1).uuid + "/" + drawing.size();
+    }
+}
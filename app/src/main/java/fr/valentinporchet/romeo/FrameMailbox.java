@@ -0,0 +1,109 @@
+package fr.valentinporchet.romeo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Mailbox of one element between a producer (the UI thread) and one consumer thread.
+ * A new element replaces the pending one if the consumer didn't take it yet : the
+ * consumer always gets the newest element, and never a backlog of old ones.
+ * No lock is taken, the producer never waits.
+ * @param <T> type of the elements
+ */
+public class FrameMailbox<T> {
+    private final AtomicReference<T> mSlot = new AtomicReference<>();
+    private volatile Thread mConsumer;
+
+    // counters, for statistics
+    private final AtomicLong mPutCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    /**
+     * Put an element in the mailbox, replacing the pending one
+     * @param element the new element (not null)
+     */
+    public void put(T element) {
+        mPutCount.incrementAndGet();
+        if (mSlot.getAndSet(element) != null) {
+            mDroppedCount.incrementAndGet(); // the consumer was too slow for this one
+        }
+        Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Take the pending element, waiting for one if needed. Only one thread may call it.
+     * @return the newest element
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public T take() throws InterruptedException {
+        mConsumer = Thread.currentThread();
+        T element;
+        while ((element = mSlot.getAndSet(null)) == null) {
+            // if an element was put since the test, park() returns at once
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return element;
+    }
+
+    /**
+     * Take the pending element, waiting at most the given time. Only one thread may call it.
+     * @param timeout maximum time to wait, in ms
+     * @return the newest element, or null if none was put in time
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public T poll(long timeout) throws InterruptedException {
+        mConsumer = Thread.currentThread();
+        long deadline = System.nanoTime() + timeout * 1000000;
+        T element;
+        while ((element = mSlot.getAndSet(null)) == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return element;
+    }
+
+    /**
+     * Take the pending element without waiting
+     * @return the newest element, or null if there is none
+     */
+    public T poll() {
+        return mSlot.getAndSet(null);
+    }
+
+    /**
+     * Give back an element taken by the consumer, if no newer one was put meanwhile.
+     * Only the consumer thread may call it.
+     * @param element the element taken
+     * @return true if it's pending again, false if a newer element replaced it
+     */
+    public boolean putBack(T element) {
+        return mSlot.compareAndSet(null, element);
+    }
+
+    /**
+     * @return the number of elements put in the mailbox
+     */
+    public long getPutCount() {
+        return mPutCount.get();
+    }
+
+    /**
+     * @return the number of elements replaced before the consumer took them
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+}
@@ -0,0 +1,119 @@
+package fr.valentinporchet.romeo;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.view.View;
+
+/**
+ * Schedule the frames of an animated view, instead of invalidating it after each draw.
+ * A frame is only requested when something new has to be drawn : at the next vsync while
+ * the animation is moving, or near the time of the next event, and nothing in between.
+ * Times are given with the monotonic clock SystemClock.uptimeMillis(), see now().
+ * All the methods must be called from the UI thread.
+ */
+public class FrameScheduler {
+    // duration of a frame at 60 fps : a deadline closer than that is drawn at the next vsync
+    private static final long FRAME_DURATION = 16;
+
+    private final View mView;
+    private final VsyncCallback mVsyncCallback; // null before Jelly Bean (no Choreographer)
+    private long mPendingTime = Long.MAX_VALUE; // time of the frame already requested
+    private long mFrameTime = -1; // vsync time of the frame being drawn, -1 if unknown
+
+    public FrameScheduler(View view) {
+        mView = view;
+        mVsyncCallback = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ? new VsyncCallback() : null;
+    }
+
+    /**
+     * Current time of the animation clock
+     * @return SystemClock.uptimeMillis(), which doesn't jump when the date of the phone changes
+     */
+    public static long now() {
+        return SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Time of the frame being drawn. When the frame was requested by the scheduler, it's
+     * the time of the vsync, so that all the views of the frame use the same time.
+     * @return the time of the frame, with the clock of now()
+     */
+    public long getFrameTime() {
+        long frameTime = mFrameTime, now = now();
+        mFrameTime = -1;
+        // a vsync time older than a frame is not the one of this draw
+        return frameTime >= 0 && now - frameTime <= FRAME_DURATION ? frameTime : now;
+    }
+
+    /**
+     * Request a frame at the next vsync
+     */
+    public void scheduleFrame() {
+        scheduleAt(now());
+    }
+
+    /**
+     * Request a frame at the given time. If a frame is already requested before this
+     * time, nothing changes.
+     * @param time time of the frame, with the clock of now()
+     */
+    public void scheduleAt(long time) {
+        long delay = time - now() - FRAME_DURATION;
+        if (delay < 0) {
+            delay = 0;
+            time = now();
+        }
+        if (time >= mPendingTime) {
+            return;
+        }
+        mPendingTime = time;
+        if (mVsyncCallback != null) {
+            mVsyncCallback.post(delay);
+        } else if (delay == 0) {
+            mView.postInvalidate();
+        } else {
+            mView.postInvalidateDelayed(delay);
+        }
+    }
+
+    /**
+     * Called at the beginning of each draw of the view : the requested frame is there
+     */
+    public void onFrame() {
+        mPendingTime = Long.MAX_VALUE;
+    }
+
+    /**
+     * Forget the requested frame, when the view doesn't animate anymore
+     */
+    public void cancel() {
+        mPendingTime = Long.MAX_VALUE;
+        if (mVsyncCallback != null) {
+            mVsyncCallback.remove();
+        }
+    }
+
+    // separate class, so that Choreographer is only loaded on Jelly Bean and later
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class VsyncCallback implements Choreographer.FrameCallback {
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+
+        void post(long delay) {
+            mChoreographer.removeFrameCallback(this);
+            mChoreographer.postFrameCallbackDelayed(this, delay);
+        }
+
+        void remove() {
+            mChoreographer.removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // same time base as uptimeMillis()
+            mFrameTime = frameTimeNanos / 1000000;
+            mView.invalidate();
+        }
+    }
+}
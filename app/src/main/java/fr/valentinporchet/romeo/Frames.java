@@ -0,0 +1,85 @@
+package fr.valentinporchet.romeo;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Framing used on the long-lived connections between two phones.
+ * A frame is : [type (1 byte)][payload length (4 bytes)][payload]
+ */
+public final class Frames {
+    // types of frames
+    public static final byte TYPE_TT_DATA = 1;
+    public static final byte TYPE_INK_POINTS = 2; // see LiveInk
+    public static final byte TYPE_INK_END_STROKE = 3;
+    public static final byte TYPE_INK_END_MESSAGE = 4;
+    public static final byte TYPE_CHUNK_OPEN = 5; // see ChunkStore
+    public static final byte TYPE_CHUNK = 6;
+    public static final byte TYPE_CHUNK_ACK = 7;
+    // 8 and 9 are used by the relay (see RelayProtocol in the relay module)
+    public static final byte TYPE_STAMP = 10; // see Latency, stamp of the next drawing
+    public static final byte TYPE_PING = 11; // [send time], answered by TYPE_PONG
+    public static final byte TYPE_PONG = 12; // [send time of the ping][time of the penpal]
+
+    // a frame bigger than this is considered as a corrupted stream
+    public static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+    private Frames() {}
+
+    /**
+     * Write a frame on the stream. The stream is not flushed.
+     * @param out stream on which we write
+     * @param type type of the frame
+     * @param payload content of the frame
+     * @param length number of bytes of the payload to write
+     * @throws IOException if the stream is broken
+     */
+    public static void write(DataOutputStream out, byte type, byte[] payload, int length) throws IOException {
+        out.writeByte(type);
+        out.writeInt(length);
+        out.write(payload, 0, length);
+    }
+
+    /**
+     * Read the header of the next frame, and return its type. The payload length
+     * can then be read with readLength().
+     * @param in stream from which we read
+     * @return type of the frame, or -1 if the stream is closed
+     * @throws IOException if the stream is broken
+     */
+    public static int readType(DataInputStream in) throws IOException {
+        return in.read();
+    }
+
+    /**
+     * Read the payload length of the current frame
+     * @param in stream from which we read
+     * @return the length of the payload
+     * @throws IOException if the stream is broken or the length is invalid
+     */
+    public static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid frame length : " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Skip the payload of a frame we don't know how to handle
+     * @param in stream from which we read
+     * @param length length of the payload
+     * @throws IOException if the stream is broken
+     */
+    public static void skip(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                in.readByte(); // throws EOFException at the end of the stream
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package fr.valentinporchet.romeo;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Received drawings waiting to be seen, the oldest first. The drawings are kept encoded
+ * (see DrawingCodec) : in memory while they fit in the memory budget, then in a file
+ * (see OutboxLog). Once a drawing is in the file, the next ones go there too, so the
+ * order is kept, and they come back in memory when the previous ones are seen.
+ * The next drawing is always in memory, whatever its size.
+ * The inbox lives as long as the app : the file is emptied when it's created.
+ */
+public class Inbox {
+    public static final int DEFAULT_MEMORY_BUDGET = 256 * 1024; // in bytes
+
+    /**
+     * A drawing in memory : encoded, or as is if it can't be encoded
+     */
+    private static class Message {
+        final byte[] mEncoded;
+        final ArrayList<TouchData> mDrawing;
+
+        Message(byte[] encoded, ArrayList<TouchData> drawing) {
+            mEncoded = encoded;
+            mDrawing = drawing;
+        }
+
+        int getSize() {
+            return mEncoded != null ? mEncoded.length : 0;
+        }
+    }
+
+    private final File mDirectory;
+    private final int mMemoryBudget;
+    private ArrayDeque<Message> mResident = new ArrayDeque<>();
+    private int mResidentSize = 0;
+    private OutboxLog mSpilled; // opened with the first drawing over the budget
+
+    /**
+     * @param directory directory of the file of the drawings over the budget (the cache of the app)
+     * @param memoryBudget size of the encoded drawings kept in memory (in bytes)
+     */
+    public Inbox(File directory, int memoryBudget) {
+        mDirectory = directory;
+        mMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * Add a received drawing at the end of the inbox
+     * @param drawing the drawing
+     */
+    public void add(ArrayList<TouchData> drawing) {
+        byte[] encoded;
+        try {
+            encoded = DrawingCodec.encode(drawing, 0);
+        } catch (IOException e) {
+            // rare enough to be kept in memory, even if it's seen before the drawings in the file
+            Log.w("Inbox", "Can't encode the drawing, kept as is", e);
+            mResident.add(new Message(null, drawing));
+            return;
+        }
+        if (getSpilledCount() == 0 && (mResident.isEmpty() || mResidentSize + encoded.length <= mMemoryBudget)) {
+            addResident(new Message(encoded, null));
+            return;
+        }
+        try {
+            getSpilled().append(encoded, System.currentTimeMillis());
+        } catch (IOException e) {
+            // better too much memory than a lost drawing
+            Log.e("Inbox", "Can't write the drawing, kept in memory", e);
+            addResident(new Message(encoded, null));
+        }
+    }
+
+    /**
+     * Take the next drawing
+     * @return the oldest drawing, or null if the inbox is empty
+     */
+    public ArrayList<TouchData> poll() {
+        while (!mResident.isEmpty()) {
+            Message message = mResident.poll();
+            mResidentSize -= message.getSize();
+            load();
+            if (message.mDrawing != null) {
+                return message.mDrawing;
+            }
+            try {
+                return DrawingCodec.decode(new DataInputStream(new ByteArrayInputStream(message.mEncoded)));
+            } catch (IOException e) {
+                Log.e("Inbox", "Invalid drawing, dropped", e); // never for one we encoded
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of drawings waiting
+     */
+    public int size() {
+        return mResident.size() + getSpilledCount();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the size of the encoded drawings in memory (in bytes)
+     */
+    public int getResidentSize() {
+        return mResidentSize;
+    }
+
+    /**
+     * Forget all the drawings
+     */
+    public void clear() {
+        mResident.clear();
+        mResidentSize = 0;
+        if (mSpilled != null) {
+            try {
+                mSpilled.remove(mSpilled.size());
+            } catch (IOException e) {
+                Log.e("Inbox", "Can't empty the file", e);
+            }
+        }
+    }
+
+    private void addResident(Message message) {
+        mResident.add(message);
+        mResidentSize += message.getSize();
+    }
+
+    /**
+     * Bring the drawings of the file back in memory, as long as they fit in the budget
+     */
+    private void load() {
+        try {
+            while (getSpilledCount() > 0) {
+                byte[] encoded = mSpilled.peek(1).get(0);
+                if (!mResident.isEmpty() && mResidentSize + encoded.length > mMemoryBudget) {
+                    return;
+                }
+                addResident(new Message(encoded, null));
+                mSpilled.remove(1);
+            }
+        } catch (IOException e) {
+            Log.e("Inbox", "Can't read the drawings over the budget, dropped", e);
+            mSpilled.close();
+            mSpilled = null;
+        }
+    }
+
+    private int getSpilledCount() {
+        return mSpilled != null ? mSpilled.size() : 0;
+    }
+
+    private OutboxLog getSpilled() throws IOException {
+        if (mSpilled == null) {
+            // only a cache : no need to wait for the disk
+            mSpilled = new OutboxLog(mDirectory, "inbox", OutboxLog.FSYNC_NEVER);
+            mSpilled.remove(mSpilled.size()); // drawings of a previous launch, already lost
+        }
+        return mSpilled;
+    }
+}
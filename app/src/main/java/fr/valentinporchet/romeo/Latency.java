@@ -0,0 +1,360 @@
+package fr.valentinporchet.romeo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Time taken by the touch through positions and the drawings, from the touch of the sender
+ * to the screen of the receiver, hop by hop :
+ * - ENCODE : on the sender, from the touch event to the encoded positions, or the encoding of the drawing
+ * - NETWORK : from the sending to the reception, with the clock offset of the penpal
+ * - DECODE : from the reception to the decoded message (waiting for a decoder included)
+ * - UI_POST : from the decoded message to its handling on the UI thread
+ * - DRAW : from the handling on the UI thread to the first frame showing it
+ * Each hop is recorded in a histogram (see LatencyHistogram), shown by LatencyOverlayView.
+ *
+ * The messages carry a stamp : [sequence (int)][send time (long)], the send time being the
+ * wall clock of the sender (in ms), and the sequence telling how many messages were missed.
+ * The touch through positions have it after the positions, the drawings in a TYPE_STAMP frame
+ * just before them on the connection. Old receivers ignore both.
+ * The clock offset of each penpal is estimated with pings (see ping()) : the sample with the
+ * shortest round trip of the last ones is kept, as it's the least delayed by the network.
+ * The durations are measured once for the app, by all its threads : see get().
+ */
+public final class Latency {
+    // kinds of messages
+    public static final int TOUCH_THROUGH = 0;
+    public static final int DRAWING = 1;
+    // hops of a message
+    public static final int ENCODE = 0;
+    public static final int NETWORK = 1;
+    public static final int DECODE = 2;
+    public static final int UI_POST = 3;
+    public static final int DRAW = 4;
+
+    public static final int STAMP_LENGTH = 4 + 8; // sequence, send time
+    private static final String[] KIND_NAMES = { "Touch through", "Drawings" };
+    private static final String[] HOP_NAMES = { "encode", "network", "decode", "ui post", "draw" };
+    private static final int CLOCK_SAMPLES = 8; // pings kept for the clock offset of a penpal
+
+    private static final Latency sInstance = new Latency();
+
+    /**
+     * Stamp of a received message
+     */
+    public static final class Stamp {
+        final int mSequence;
+        final long mSendTime; // wall clock of the sender, in ms
+
+        Stamp(int sequence, long sendTime) {
+            mSequence = sequence;
+            mSendTime = sendTime;
+        }
+
+        /**
+         * Write the stamp of a message sent now
+         * @param out stream on which we write
+         * @param sequence number of the message, increasing
+         * @throws IOException if the stream is broken
+         */
+        public static void write(DataOutputStream out, int sequence) throws IOException {
+            out.writeInt(sequence);
+            out.writeLong(System.currentTimeMillis());
+        }
+
+        /**
+         * Read the stamp at the end of a message
+         * @param in stream from which we read
+         * @return the stamp, or null if the message has none (old sender)
+         * @throws IOException if the stream is broken
+         */
+        public static Stamp read(DataInputStream in) throws IOException {
+            if (in.available() < STAMP_LENGTH) {
+                return null;
+            }
+            return new Stamp(in.readInt(), in.readLong());
+        }
+    }
+
+    private final LatencyHistogram[][] mHistograms = new LatencyHistogram[KIND_NAMES.length][HOP_NAMES.length];
+    private final long[] mReceivedCounts = new long[KIND_NAMES.length];
+    private final long[] mMissedCounts = new long[KIND_NAMES.length];
+    // last sequence received from each penpal, by kind
+    private final HashMap<String, Integer> mLastSequences = new HashMap<>();
+    // last pings of each penpal : [clock offset, round trip] in ms
+    private final HashMap<String, ArrayDeque<long[]>> mClockSamples = new HashMap<>();
+
+    private Latency() {
+        for (int kind = 0; kind < KIND_NAMES.length; kind++) {
+            for (int hop = 0; hop < HOP_NAMES.length; hop++) {
+                mHistograms[kind][hop] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * @return the measures of the app
+     */
+    public static Latency get() {
+        return sInstance;
+    }
+
+    /**
+     * @return the time used to measure the hops done on this phone (in microseconds), which only goes forward
+     */
+    public static long now() {
+        return System.nanoTime() / 1000;
+    }
+
+    /**
+     * @param kind TOUCH_THROUGH or DRAWING
+     * @param hop one of the hops
+     * @return the histogram of the durations of this hop
+     */
+    public LatencyHistogram getHistogram(int kind, int hop) {
+        return mHistograms[kind][hop];
+    }
+
+    /**
+     * @param kind TOUCH_THROUGH or DRAWING
+     * @return the number of stamped messages received
+     */
+    public synchronized long getReceivedCount(int kind) {
+        return mReceivedCounts[kind];
+    }
+
+    /**
+     * @param kind TOUCH_THROUGH or DRAWING
+     * @return the number of messages never received : lost, or replaced by newer ones by the sender
+     */
+    public synchronized long getMissedCount(int kind) {
+        return mMissedCounts[kind];
+    }
+
+    /**
+     * Record the duration of a hop
+     * @param kind TOUCH_THROUGH or DRAWING
+     * @param hop one of the hops
+     * @param duration the duration, in microseconds
+     */
+    public void record(int kind, int hop, long duration) {
+        mHistograms[kind][hop].record(duration);
+    }
+
+    /**
+     * Record the reception of a message : its NETWORK hop if the clock of the penpal is known,
+     * and the messages we missed before it. A message received before it was sent, when the
+     * estimated clock is wrong by more than the network time, is not a NETWORK sample.
+     * @param kind TOUCH_THROUGH or DRAWING
+     * @param host address of the penpal (see InetAddress.getHostAddress())
+     * @param stamp stamp of the message, or null if it has none
+     * @param receivedTime wall clock at the reception (in ms)
+     */
+    public void received(int kind, String host, Stamp stamp, long receivedTime) {
+        if (stamp == null) {
+            return;
+        }
+        synchronized (this) {
+            mReceivedCounts[kind]++;
+            Integer last = mLastSequences.put(kind + "/" + host, stamp.mSequence);
+            // the difference is used so that the sequence can wrap around, a restarted sender starts again
+            if (last != null && stamp.mSequence - last > 1) {
+                mMissedCounts[kind] += stamp.mSequence - last - 1;
+            }
+        }
+        Long offset = getClockOffset(host);
+        if (offset != null) {
+            // the send time, on our clock
+            long duration = receivedTime - (stamp.mSendTime - offset);
+            if (duration >= 0) {
+                record(kind, NETWORK, duration * 1000);
+            }
+        }
+    }
+
+    /**
+     * Add a ping of a penpal
+     * @param host address of the penpal (see InetAddress.getHostAddress())
+     * @param offset clock of the penpal minus our clock (in ms)
+     * @param roundTrip duration of the ping (in ms)
+     */
+    public synchronized void addClockSample(String host, long offset, long roundTrip) {
+        ArrayDeque<long[]> samples = mClockSamples.get(host);
+        if (samples == null) {
+            samples = new ArrayDeque<>();
+            mClockSamples.put(host, samples);
+        }
+        if (samples.size() == CLOCK_SAMPLES) {
+            samples.poll();
+        }
+        samples.add(new long[] { offset, roundTrip });
+    }
+
+    /**
+     * @param host address of the penpal (see InetAddress.getHostAddress())
+     * @return the clock of the penpal minus our clock (in ms), or null if it was never pinged
+     */
+    public Long getClockOffset(String host) {
+        long[] sample = getBestClockSample(host);
+        return sample != null ? sample[0] : null;
+    }
+
+    private synchronized long[] getBestClockSample(String host) {
+        ArrayDeque<long[]> samples = mClockSamples.get(host);
+        if (samples == null) {
+            return null;
+        }
+        long[] best = null;
+        for (long[] sample : samples) {
+            if (best == null || sample[1] < best[1]) {
+                best = sample;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimate the clock offset of the penpal : send a TYPE_PING frame, and wait for its
+     * TYPE_PONG answer, which gives the clock of the penpal. Nothing else must be read on the
+     * connection meanwhile. The other frames received before the answer are skipped.
+     * @param socket connection to the penpal, with a read timeout
+     * @throws IOException if the connection is broken, or if the penpal doesn't answer
+     */
+    public static void ping(Socket socket) throws IOException {
+        // not closed : the connection stays opened
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(8);
+        long sendTime = System.currentTimeMillis();
+        new DataOutputStream(payload).writeLong(sendTime);
+        Frames.write(out, Frames.TYPE_PING, payload.toByteArray(), payload.size());
+        out.flush();
+
+        while (true) {
+            int type = Frames.readType(in);
+            if (type < 0) {
+                throw new EOFException("No answer to the ping");
+            }
+            int length = Frames.readLength(in);
+            if (type != Frames.TYPE_PONG || length < 16) {
+                Frames.skip(in, length);
+                continue;
+            }
+            long pingTime = in.readLong();
+            long penpalTime = in.readLong();
+            Frames.skip(in, length - 16);
+            if (pingTime == sendTime) {
+                long receivedTime = System.currentTimeMillis();
+                // the penpal answered in the middle of the round trip
+                get().addClockSample(socket.getInetAddress().getHostAddress(),
+                        penpalTime - (sendTime + receivedTime) / 2, receivedTime - sendTime);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the measures, a few lines per kind of messages
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        for (int kind = 0; kind < KIND_NAMES.length; kind++) {
+            synchronized (this) {
+                summary.append(KIND_NAMES[kind]).append(" : ").append(mReceivedCounts[kind])
+                        .append(" received, ").append(mMissedCounts[kind]).append(" missed\n");
+            }
+            for (int hop = 0; hop < HOP_NAMES.length; hop++) {
+                LatencyHistogram histogram = mHistograms[kind][hop];
+                summary.append(String.format(Locale.US, "  %-8s p50 %s p90 %s p99 %s max %s (%d)\n",
+                        HOP_NAMES[hop], formatDuration(histogram.getPercentile(50)),
+                        formatDuration(histogram.getPercentile(90)), formatDuration(histogram.getPercentile(99)),
+                        formatDuration(histogram.getMax()), histogram.getCount()));
+            }
+        }
+        synchronized (this) {
+            if (mClockSamples.isEmpty()) {
+                summary.append("Clock offsets unknown : no ping answered yet\n");
+            }
+            for (String host : mClockSamples.keySet()) {
+                long[] sample = getBestClockSample(host);
+                summary.append(String.format(Locale.US, "Clock of %s : %+d ms (round trip %d ms)\n",
+                        host, sample[0], sample[1]));
+            }
+        }
+        return summary.toString();
+    }
+
+    private static String formatDuration(long duration) {
+        return duration < 10000 ? String.format(Locale.US, "%.1fms", duration / 1000.) : (duration / 1000) + "ms";
+    }
+
+    /**
+     * Write the measures in a new file : the summary, then the counts of each bucket of
+     * each histogram, in columns
+     * @param directory directory of the file
+     * @return the written file
+     * @throws IOException if the file can't be written
+     */
+    public File dump(File directory) throws IOException {
+        String date = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File file = new File(directory, "latency-" + date + ".txt");
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.print(getSummary());
+            out.println();
+            out.print("kind\thop");
+            for (long bound : LatencyHistogram.getBounds()) {
+                out.print("\t<=" + bound + "us");
+            }
+            out.println("\tmore");
+            for (int kind = 0; kind < KIND_NAMES.length; kind++) {
+                for (int hop = 0; hop < HOP_NAMES.length; hop++) {
+                    out.print(KIND_NAMES[kind] + "\t" + HOP_NAMES[hop]);
+                    for (long count : mHistograms[kind][hop].getCounts()) {
+                        out.print("\t" + count);
+                    }
+                    out.println();
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Can't write " + file);
+        }
+        return file;
+    }
+
+    /**
+     * Forget all the measures, the clock offsets included
+     */
+    public void clear() {
+        for (LatencyHistogram[] histograms : mHistograms) {
+            for (LatencyHistogram histogram : histograms) {
+                histogram.clear();
+            }
+        }
+        synchronized (this) {
+            for (int kind = 0; kind < KIND_NAMES.length; kind++) {
+                mReceivedCounts[kind] = 0;
+                mMissedCounts[kind] = 0;
+            }
+            mLastSequences.clear();
+            mClockSamples.clear();
+        }
+    }
+}
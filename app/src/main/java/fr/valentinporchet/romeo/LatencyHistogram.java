@@ -0,0 +1,95 @@
+package fr.valentinporchet.romeo;
+
+/**
+ * Histogram of durations with fixed buckets : recording a duration is cheap and never
+ * allocates, so it can be done for each message. The bounds go from 0.1 ms to 5 s, with
+ * a last bucket for the longer durations. A percentile is given as the upper bound of
+ * its bucket, precise enough to see where the time goes.
+ */
+public class LatencyHistogram {
+    // upper bounds of the buckets, in microseconds
+    private static final long[] BOUNDS = {
+            100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000,
+            100000, 200000, 500000, 1000000, 2000000, 5000000 };
+
+    private final long[] mCounts = new long[BOUNDS.length + 1];
+    private long mCount = 0;
+    private long mSum = 0;
+    private long mMax = 0;
+
+    /**
+     * @param duration the duration to add, in microseconds (a negative one is counted as 0)
+     */
+    public synchronized void record(long duration) {
+        duration = Math.max(0, duration);
+        int bucket = 0;
+        while (bucket < BOUNDS.length && duration > BOUNDS[bucket]) {
+            bucket++;
+        }
+        mCounts[bucket]++;
+        mCount++;
+        mSum += duration;
+        mMax = Math.max(mMax, duration);
+    }
+
+    /**
+     * @return the number of recorded durations
+     */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the mean of the durations (in microseconds), 0 if there is none
+     */
+    public synchronized long getMean() {
+        return mCount > 0 ? mSum / mCount : 0;
+    }
+
+    /**
+     * @return the longest duration (in microseconds)
+     */
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket of this percentile (in microseconds), or the longest
+     * duration if it's in the last bucket, 0 if there is no duration
+     */
+    public synchronized long getPercentile(double percentile) {
+        long rank = (long) Math.ceil(mCount * percentile / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < BOUNDS.length; bucket++) {
+            seen += mCounts[bucket];
+            if (seen >= rank && seen > 0) {
+                return Math.min(BOUNDS[bucket], mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * @return the upper bounds of the buckets (in microseconds), the last bucket having none
+     */
+    public static long[] getBounds() {
+        return BOUNDS.clone();
+    }
+
+    /**
+     * @return the number of durations in each bucket
+     */
+    public synchronized long[] getCounts() {
+        return mCounts.clone();
+    }
+
+    public synchronized void clear() {
+        for (int bucket = 0; bucket < mCounts.length; bucket++) {
+            mCounts[bucket] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMax = 0;
+    }
+}
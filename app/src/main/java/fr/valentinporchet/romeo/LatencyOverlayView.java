@@ -0,0 +1,77 @@
+package fr.valentinporchet.romeo;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Debug overlay showing the latency measures (see Latency), refreshed while it's visible.
+ * A long click writes them in a file of the app, to compare them later.
+ */
+public class LatencyOverlayView extends TextView {
+    private static final long REFRESH_DELAY = 500; // in ms
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            setText(Latency.get().getSummary());
+            if (getVisibility() == VISIBLE) {
+                postDelayed(this, REFRESH_DELAY);
+            }
+        }
+    };
+
+    public LatencyOverlayView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        setTypeface(Typeface.MONOSPACE);
+        setTextSize(10);
+        setTextColor(0xFFFFFFFF);
+        setBackgroundColor(0xA0000000); // readable over the drawings
+        setOnLongClickListener(new OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                dump();
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public void setVisibility(int visibility) {
+        super.setVisibility(visibility);
+        removeCallbacks(mRefresh);
+        if (visibility == VISIBLE) {
+            post(mRefresh);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        removeCallbacks(mRefresh);
+    }
+
+    /**
+     * Write the measures in the external files of the app, which can be copied from a computer
+     */
+    private void dump() {
+        File directory = getContext().getExternalFilesDir(null);
+        if (directory == null) { // no external storage
+            directory = getContext().getFilesDir();
+        }
+        try {
+            File file = Latency.get().dump(directory);
+            Toast.makeText(getContext(), "Latency written in " + file, Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e("LatencyOverlayView", "Can't write the latency", e);
+            Toast.makeText(getContext(), "Error : latency not written", Toast.LENGTH_LONG).show();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package fr.valentinporchet.romeo;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Frames of the live ink mode : the paths are sent to the penpal while they are drawn.
+ * - TYPE_INK_POINTS : the new points and samples of a path since the previous frame,
+ *   [uuid][color][thickness][first point][number of points][type, x, y of each point]
+ *   [first sample][number of samples][time, length of each sample]
+ * - TYPE_INK_END_STROKE : [uuid] the path is finished
+ * - TYPE_INK_END_MESSAGE : the drawing is finished, and will be sent normally
+ * The indexes of the first point and sample let the receiver check that nothing is missing.
+ * A frame holds at most MAX_COUNT points and samples : the next ones go in the next frames.
+ * A frame starting at the first point and the first sample replaces the path : the sender
+ * sends the whole path again from time to time, so a receiver which missed frames catches up.
+ */
+public final class LiveInk {
+    // a frame can't contain more elements (written as unsigned shorts)
+    public static final int MAX_COUNT = 0xFFFF;
+    // paths kept by the receiver, if the end of the drawing never arrives
+    public static final int MAX_PATHS = 256;
+
+    private LiveInk() {}
+
+    /**
+     * Content of a received frame. It's never modified, so it can be given to the UI thread.
+     */
+    public static class Update {
+        public final int type;
+        public final UUID uuid; // null for TYPE_INK_END_MESSAGE
+        public final int color;
+        public final float thickness;
+        public final int firstPoint;
+        public final byte[] types;
+        public final float[] xs;
+        public final float[] ys;
+        public final int firstSample;
+        public final int[] times;
+        public final float[] lengths;
+
+        private Update(int type, UUID uuid, int color, float thickness, int firstPoint, byte[] types,
+                       float[] xs, float[] ys, int firstSample, int[] times, float[] lengths) {
+            this.type = type;
+            this.uuid = uuid;
+            this.color = color;
+            this.thickness = thickness;
+            this.firstPoint = firstPoint;
+            this.types = types;
+            this.xs = xs;
+            this.ys = ys;
+            this.firstSample = firstSample;
+            this.times = times;
+            this.lengths = lengths;
+        }
+    }
+
+    /**
+     * Write the points and samples of the path added after the given indexes, at most
+     * MAX_COUNT of each
+     * @param out stream on which we write the payload
+     * @param touchData the path
+     * @param firstPoint first point to write
+     * @param firstSample first sample to write
+     * @throws IOException if the stream is broken
+     */
+    public static void writePoints(DataOutputStream out, TouchData touchData, int firstPoint, int firstSample)
+            throws IOException {
+        StrokeBuffer stroke = touchData.mStroke;
+        writeUuid(out, touchData.uuid);
+        out.writeInt(touchData.mPathColor);
+        out.writeFloat(touchData.mPathThickness);
+
+        int pointCount = Math.min(stroke.getPointCount() - firstPoint, MAX_COUNT);
+        out.writeInt(firstPoint);
+        out.writeShort(pointCount);
+        for (int i = firstPoint; i < firstPoint + pointCount; i++) {
+            out.writeByte(stroke.getType(i));
+            out.writeFloat(stroke.getX(i));
+            out.writeFloat(stroke.getY(i));
+        }
+
+        int sampleCount = Math.min(stroke.getSampleCount() - firstSample, MAX_COUNT);
+        out.writeInt(firstSample);
+        out.writeShort(sampleCount);
+        for (int i = firstSample; i < firstSample + sampleCount; i++) {
+            out.writeInt((int) Math.min(stroke.getTime(i), Integer.MAX_VALUE));
+            out.writeFloat(stroke.getLength(i));
+        }
+    }
+
+    /**
+     * Write the end of a path
+     * @param out stream on which we write the payload
+     * @param touchData the finished path
+     * @throws IOException if the stream is broken
+     */
+    public static void writeEndStroke(DataOutputStream out, TouchData touchData) throws IOException {
+        writeUuid(out, touchData.uuid);
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Read the payload of a live ink frame
+     * @param type type of the frame
+     * @param in stream from which we read the payload
+     * @return the content of the frame
+     * @throws IOException if the stream is broken or the frame is not valid
+     */
+    public static Update read(int type, DataInputStream in) throws IOException {
+        switch (type) {
+            case Frames.TYPE_INK_END_MESSAGE:
+                return new Update(type, null, 0, 0, 0, null, null, null, 0, null, null);
+            case Frames.TYPE_INK_END_STROKE:
+                return new Update(type, new UUID(in.readLong(), in.readLong()), 0, 0, 0, null, null, null, 0,
+                        null, null);
+            case Frames.TYPE_INK_POINTS:
+                UUID uuid = new UUID(in.readLong(), in.readLong());
+                int color = in.readInt();
+                float thickness = in.readFloat();
+                int firstPoint = in.readInt();
+                int pointCount = in.readUnsignedShort();
+                byte[] types = new byte[pointCount];
+                float[] xs = new float[pointCount], ys = new float[pointCount];
+                for (int i=0; i < pointCount; i++) {
+                    types[i] = in.readByte();
+                    xs[i] = in.readFloat();
+                    ys[i] = in.readFloat();
+                }
+                int firstSample = in.readInt();
+                int sampleCount = in.readUnsignedShort();
+                int[] times = new int[sampleCount];
+                float[] lengths = new float[sampleCount];
+                for (int i=0; i < sampleCount; i++) {
+                    times[i] = in.readInt();
+                    lengths[i] = in.readFloat();
+                }
+                if (firstPoint < 0 || firstSample < 0) {
+                    throw new IOException("Invalid live ink frame");
+                }
+                return new Update(type, uuid, color, thickness, firstPoint, types, xs, ys, firstSample,
+                        times, lengths);
+            default:
+                throw new IOException("Not a live ink frame : " + type);
+        }
+    }
+
+    /**
+     * Check if a frame type is a live ink one
+     * @param type type of the frame
+     * @return true if it can be read by read()
+     */
+    public static boolean isLiveInk(int type) {
+        return type == Frames.TYPE_INK_POINTS || type == Frames.TYPE_INK_END_STROKE
+                || type == Frames.TYPE_INK_END_MESSAGE;
+    }
+
+    /**
+     * Add the received points to the paths being drawn by the penpal
+     * @param paths paths received since the beginning of the drawing
+     * @param update received points
+     * @return false if points are missing before these ones (the path is then not changed,
+     * until the sender sends it again)
+     */
+    public static boolean apply(List<TouchData> paths, Update update) {
+        if (update.type != Frames.TYPE_INK_POINTS) {
+            return true;
+        }
+        // the points are usually added to the last path
+        TouchData touchData = null;
+        for (int i = paths.size() - 1; i >= 0 && touchData == null; i--) {
+            if (paths.get(i).uuid.equals(update.uuid)) {
+                touchData = paths.get(i);
+            }
+        }
+        boolean isWholePath = update.firstPoint == 0 && update.firstSample == 0;
+        if (touchData == null) {
+            if (!isWholePath) {
+                return false;
+            }
+            touchData = new TouchData(update.uuid);
+            if (paths.size() >= MAX_PATHS) {
+                paths.remove(0);
+            }
+            paths.add(touchData);
+        } else if (isWholePath && touchData.mStroke.getPointCount() > 0) {
+            // the path is sent again : it replaces the one we have
+            TouchData replaced = touchData;
+            touchData = new TouchData(update.uuid);
+            paths.set(paths.lastIndexOf(replaced), touchData);
+        }
+
+        StrokeBuffer stroke = touchData.mStroke;
+        if (update.firstPoint != stroke.getPointCount() || update.firstSample != stroke.getSampleCount()) {
+            return false;
+        }
+        touchData.mPathColor = update.color;
+        touchData.mPathThickness = update.thickness;
+        stroke.ensurePointCapacity(stroke.getPointCount() + update.types.length);
+        for (int i=0; i < update.types.length; i++) {
+            if (update.types[i] == StrokeBuffer.TYPE_MOVE) {
+                touchData.mPath.moveTo(update.xs[i], update.ys[i]);
+            } else {
+                touchData.mPath.lineTo(update.xs[i], update.ys[i]);
+            }
+        }
+        stroke.ensureSampleCapacity(stroke.getSampleCount() + update.times.length);
+        for (int i=0; i < update.times.length; i++) {
+            stroke.addSample(update.times[i], update.lengths[i]);
+        }
+        return true;
+    }
+}
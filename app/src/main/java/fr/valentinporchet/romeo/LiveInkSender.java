@@ -0,0 +1,206 @@
+package fr.valentinporchet.romeo;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Long-lived connection on which the paths are sent while they are drawn (see LiveInk).
+ * The UI thread calls flush() once per touch event : the points added since the previous
+ * call are encoded in one frame, so there is at most one frame per frame of the screen.
+ * The frames are written by the thread running this runnable, all the waiting ones before
+ * flushing the socket. If the queue is full, the points stay to be sent in the next frame.
+ * The whole path is sent again after a new connection and every RESEND_INTERVAL frames,
+ * so that the penpal catches up if frames were lost (see LiveInk).
+ * The live paths are only a preview : the drawing is still sent by DrawingSender.
+ */
+public class LiveInkSender implements Runnable {
+
+    private static int SOCKET_TIMEOUT = 5000;
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int RESEND_INTERVAL = 60; // frames of points, 1 s at 60 touch events per second
+    private static final long RECONNECT_DELAY_MIN = 250; // in ms
+    private static final long RECONNECT_DELAY_MAX = 5000; // in ms
+    private volatile boolean mRunning = true;
+    private volatile String SERVER_ADDRESS;
+    private int SERVER_PORT = MessageServer.PORT; // same server as the drawings
+    private Socket socket;
+    private DataOutputStream mOut;
+    private long mReconnectDelay = RECONNECT_DELAY_MIN;
+    private volatile boolean mIsReconnected = false; // frames may have been lost, set by the thread
+    private LinkedBlockingQueue<byte[]> mQueue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+
+    // only used by the UI thread : path being sent, and what was already given to the queue
+    private TouchData mCurrent;
+    private int mSentPoints, mSentSamples;
+    private int mFramesSinceResend;
+    private ByteArrayOutputStream mFrameBuffer = new ByteArrayOutputStream();
+    private DataOutputStream mFrameOut = new DataOutputStream(mFrameBuffer);
+
+    public LiveInkSender(String serverIP) {
+        SERVER_ADDRESS = serverIP;
+    }
+
+    /**
+     * Send the points of the path added since the previous call. Called by the UI thread.
+     * @param current path being drawn
+     * @param isStrokeEnded true if the finger was released
+     */
+    public void flush(TouchData current, boolean isStrokeEnded) {
+        StrokeBuffer stroke = current.mStroke;
+        if (current != mCurrent || mIsReconnected || mFramesSinceResend >= RESEND_INTERVAL) {
+            // new path, or the whole path is sent again
+            mCurrent = current;
+            mIsReconnected = false;
+            mFramesSinceResend = 0;
+            mSentPoints = 0;
+            mSentSamples = 0;
+        }
+        while (stroke.getPointCount() > mSentPoints || stroke.getSampleCount() > mSentSamples) {
+            try {
+                mFrameBuffer.reset();
+                LiveInk.writePoints(mFrameOut, current, mSentPoints, mSentSamples);
+                if (!offer(Frames.TYPE_INK_POINTS)) {
+                    return; // the points will be sent with the next ones
+                }
+            } catch (IOException e) {
+                Log.e("LiveInkSender", "Can't encode the points", e); // never for a ByteArrayOutputStream
+                return;
+            }
+            // only MAX_COUNT points and samples fit in a frame, the next ones go in the next frame
+            mSentPoints = Math.min(stroke.getPointCount(), mSentPoints + LiveInk.MAX_COUNT);
+            mSentSamples = Math.min(stroke.getSampleCount(), mSentSamples + LiveInk.MAX_COUNT);
+            mFramesSinceResend++;
+        }
+        if (isStrokeEnded) {
+            try {
+                mFrameBuffer.reset();
+                LiveInk.writeEndStroke(mFrameOut, current);
+                offer(Frames.TYPE_INK_END_STROKE);
+            } catch (IOException e) {
+                Log.e("LiveInkSender", "Can't encode the end of the path", e);
+            }
+        }
+    }
+
+    /**
+     * Tell the penpal that the drawing is finished. Called by the UI thread.
+     */
+    public void endMessage() {
+        mFrameBuffer.reset();
+        offer(Frames.TYPE_INK_END_MESSAGE);
+        mCurrent = null;
+    }
+
+    /**
+     * Give the frame in the buffer to the thread
+     * @return false if too many frames are waiting
+     */
+    private boolean offer(byte type) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(5 + mFrameBuffer.size());
+        try {
+            Frames.write(new DataOutputStream(frame), type, mFrameBuffer.toByteArray(), mFrameBuffer.size());
+        } catch (IOException e) {
+            return false; // never for a ByteArrayOutputStream
+        }
+        return mQueue.offer(frame.toByteArray());
+    }
+
+    /**
+     * Change the address of the penpal. The current connection is closed.
+     * @param serverIP new address
+     */
+    public void setServerIP(String serverIP) {
+        SERVER_ADDRESS = serverIP;
+        closeSocket();
+    }
+
+    /**
+     * Stop the thread and close the connection. The thread running this
+     * runnable must also be interrupted if it is waiting for frames.
+     */
+    public void stop() {
+        mRunning = false;
+        closeSocket();
+    }
+
+    @Override
+    public void run() {
+        while (mRunning) {
+            byte[] frame;
+            try {
+                frame = mQueue.take();
+            } catch (InterruptedException e) {
+                break; // we were asked to stop
+            }
+
+            try {
+                DataOutputStream out = getOutputStream();
+                // all the waiting frames are sent together
+                while (frame != null) {
+                    out.write(frame);
+                    frame = mQueue.poll();
+                }
+                out.flush();
+                mReconnectDelay = RECONNECT_DELAY_MIN;
+            } catch (IOException e) {
+                // the lost points are only missing in the preview of the penpal
+                Log.e("LiveInkSender", "C: Error", e);
+                closeSocket();
+                try {
+                    Thread.sleep(mReconnectDelay);
+                } catch (InterruptedException e1) {
+                    break;
+                }
+                mReconnectDelay = Math.min(mReconnectDelay * 2, RECONNECT_DELAY_MAX);
+            }
+        }
+        closeSocket();
+    }
+
+    /**
+     * Get the stream of the current connection, and open a new one if needed
+     * @return the stream on which we write the frames
+     * @throws IOException if the connection failed
+     */
+    private DataOutputStream getOutputStream() throws IOException {
+        synchronized (this) {
+            if (mOut != null) {
+                return mOut;
+            }
+        }
+        InetAddress serverAddr = InetAddress.getByName(SERVER_ADDRESS);
+        Socket newSocket = new Socket();
+        newSocket.setTcpNoDelay(true); // the frames are already batched
+        newSocket.connect(new InetSocketAddress(serverAddr, SERVER_PORT), SOCKET_TIMEOUT);
+        synchronized (this) {
+            if (!mRunning) { // we were stopped while connecting
+                newSocket.close();
+                throw new IOException("Sender stopped");
+            }
+            socket = newSocket;
+            mOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            mIsReconnected = true; // the next points are sent with the beginning of the path
+            return mOut;
+        }
+    }
+
+    private synchronized void closeSocket() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e("LiveInkSender", "C: Error while closing", e);
+            }
+        }
+        socket = null;
+        mOut = null;
+    }
+}
@@ -5,6 +5,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.CountDownTimer;
+import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.View;
@@ -21,10 +22,10 @@ import android.widget.LinearLayout;
 import android.widget.ProgressBar;
 import android.widget.Toast;
 
-import java.net.ServerSocket;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 public class MainActivity extends Activity {
     private MainActivity me;
@@ -32,22 +33,22 @@ public class MainActivity extends Activity {
     private boolean mUserActive = true;
     private CountDownTimer mInactiveTimer;
     private int USER_TIMEOUT = 15000;
+    private static final long PING_INTERVAL = 10000; // in ms, while the latency is shown
     private String mMessageStatus;
 
     private TouchDisplayView mTouchView;
     private TouchThroughView mTouchThroughView;
     private SwipeView mSwipeView;
+    private LatencyOverlayView mLatencyOverlay;
 
-    private ServerSocket mServerSocket;
     private ServerThread mServerThread;
     private Thread mServerSocketThread;
 
-    private ClientThread mClientThread;
-    private Thread mClientSocketThread;
+    private DrawingFanOut mDrawingFanOut;
+    private LiveInkSender mLiveInkSender;
+    private Thread mLiveInkThread;
 
-    private TTServerThread mTTServerThread;
-    private Thread mTTServerSocketThread;
-    private ServerSocket mTTServerSocket;
+    private DrawingHistory mDrawingHistory = new DrawingHistory();
 
     private SharedPreferences sharedPrefs;
     private SharedPreferences.OnSharedPreferenceChangeListener sharedPrefsListener;
@@ -95,11 +96,43 @@ public class MainActivity extends Activity {
         // initialisation of settings
         sharedPrefs = PreferenceManager.getDefaultSharedPreferences(this);
 
-        // Code for message server
-        mServerThread = new ServerThread(mServerSocket, mTouchView, mUserActive);
+        // Code for message server, which also receives the touch through positions
+        mServerThread = new ServerThread(mTouchView, mTouchThroughView, mDrawingHistory, mUserActive);
         mServerSocketThread = new Thread(mServerThread);
         mServerSocketThread.start();
 
+        // drawings are sent in the background, and the result is given back on the UI thread
+        // the drawings not sent yet are kept in the files of the app, and sent when possible
+        final Handler handler = new Handler();
+        mDrawingFanOut = new DrawingFanOut(MessageServer.PORT, mDrawingHistory, getFilesDir(), new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        }, new DrawingSender.Callback() {
+            @Override
+            public void onDrawingSent(ArrayList<TouchData> drawing, int status) {
+                if (status == DrawingSender.STATUS_SENT) {
+                    setStatus("Sent");
+                } else if (status == DrawingSender.STATUS_PENDING) {
+                    // the drawing is not lost, it stays in the outbox to be sent later
+                    setStatus("Pending");
+                    Toast.makeText(getApplication(), "Penpal not reachable : the drawing will be sent later",
+                            Toast.LENGTH_LONG).show();
+                } else if (status == DrawingSender.STATUS_REFUSED) {
+                    Toast.makeText(getApplication(), "Error : too many drawings waiting for the penpal, not sent",
+                            Toast.LENGTH_LONG).show();
+                } else {
+                    setStatus("Error");
+                }
+            }
+        });
+        mDrawingFanOut.setAddresses(sharedPrefs.getString("preference_penpal_IP", "192.168.1.1"));
+
+        // the latency of the messages, for debugging
+        mLatencyOverlay = (LatencyOverlayView) findViewById(R.id.latency_overlay);
+        updateLatencyOverlay(sharedPrefs.getBoolean("preference_latency_overlay", false));
+
         // add listener to settings, and update the gender icon
         sharedPrefsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
             @Override
@@ -110,6 +143,22 @@ public class MainActivity extends Activity {
                 } else if (key.equals("preference_penpal_IP")) {
                     Log.i("MainActivity", "IP changed. Updating server thread...");
                     mTouchThroughView.setServerIP(sharedPreferences.getString(key, "192.168.1.1"));
+                    mDrawingFanOut.setAddresses(sharedPreferences.getString(key, "192.168.1.1"));
+                    if (mLiveInkSender != null) {
+                        mLiveInkSender.setServerIP(getLiveInkPenpal());
+                    }
+                } else if (key.equals("preference_tt_datagrams")) {
+                    Log.i("MainActivity", "Touch through transport changed...");
+                    mTouchThroughView.setUseDatagrams(sharedPreferences.getBoolean(key, false));
+                } else if (key.equals("preference_live_ink")) {
+                    Log.i("MainActivity", "Live ink changed...");
+                    stopLiveInk();
+                    if (mUserActive) { // else it's started in onResume()
+                        startLiveInk();
+                    }
+                } else if (key.equals("preference_latency_overlay")) {
+                    Log.i("MainActivity", "Latency overlay changed...");
+                    updateLatencyOverlay(sharedPreferences.getBoolean(key, false));
                 } else if (key.equals("preference_other_visible")) {
                     Log.i("MainActivity", "Other icon visibility changed...");
                     updateGenderIconVisibility(sharedPreferences.getBoolean(key, true));
@@ -135,13 +184,9 @@ public class MainActivity extends Activity {
         mTouchView.setPopupView(popupView);
         popupView.setDrawingProgressBar((ProgressBar) findViewById(R.id.drawing_progressbar));
 
-        // code for touch through server
-        mTTServerThread = new TTServerThread(mTTServerSocket, mTouchThroughView);
-        mTTServerSocketThread = new Thread(mTTServerThread);
-        mTTServerSocketThread.start();
-
         // and we add the server IP to the client thread of touch through
         mTouchThroughView.setServerIP(sharedPrefs.getString("preference_penpal_IP", "192.168.1.1"));
+        mTouchThroughView.setUseDatagrams(sharedPrefs.getBoolean("preference_tt_datagrams", false));
         mColorsButtons = (LinearLayout) findViewById(R.id.colors_buttons);
 
         // initializing countdown timer
@@ -381,14 +426,18 @@ public class MainActivity extends Activity {
     private void sendDrawingData() {
         // if there is data to send
         if (!mTouchView.getTouchData().isEmpty()) {
-            setStatus("Sending");
-            // we create the new client thread with the data and the server IP in preferences
-            mClientThread = new ClientThread(new ArrayList<>(mTouchView.getTouchData()),
-                    sharedPrefs.getString("preference_penpal_IP", "192.168.1.1"), me);
-            // then we start it
-            mClientSocketThread = new Thread(mClientThread);
-            mClientSocketThread.start(); // we start the thread
-            startCircleLoadingAnimation(); // we start the circle animation
+            // we give a copy of the data to the senders of the penpals in preferences
+            // the penpal may have seen the paths live, they are now sent for good
+            if (mLiveInkSender != null) {
+                mLiveInkSender.endMessage();
+            }
+            boolean isSending = mDrawingFanOut.send(new ArrayList<>(mTouchView.getTouchData()));
+            if (isSending) {
+                setStatus("Sending");
+                startCircleLoadingAnimation(); // we start the circle animation
+            } else { // the same drawing is already being sent, or too many are waiting (see the callback)
+                Log.i("MainActivity", "Drawing not sent again");
+            }
         } else {
             Toast.makeText(getApplication(), "Error : no drawing to send", Toast.LENGTH_LONG).show();
         }
@@ -454,6 +503,16 @@ public class MainActivity extends Activity {
         genderIcon.setVisibility(visible ? View.VISIBLE : View.INVISIBLE);
     }
 
+    // PART CONCERNING THE LATENCY OVERLAY
+    /**
+     * Show or hide the latency of the messages. While it's shown, the penpals are pinged
+     * to know their clocks, needed for the time spent in the network.
+     */
+    private void updateLatencyOverlay(boolean visible) {
+        mLatencyOverlay.setVisibility(visible ? View.VISIBLE : View.GONE);
+        mDrawingFanOut.setPingInterval(visible ? PING_INTERVAL : 0);
+    }
+
     // PART CONCERNING THE ACTIVE/INACTIVE PROCESS
     @Override
     public void onUserInteraction(){
@@ -472,6 +531,9 @@ public class MainActivity extends Activity {
         mUserActive = false; // as soon as we touch the screen, the user is active...
         mServerThread.setStatus(mUserActive);
         mInactiveTimer.cancel();
+        // we don't keep the touch through connection opened in background
+        mTouchThroughView.stopSending();
+        stopLiveInk();
     }
 
     @Override
@@ -483,5 +545,42 @@ public class MainActivity extends Activity {
         // ... and we restart the timer
         mInactiveTimer.cancel();
         mInactiveTimer.start();
+        // and we reopen the touch through connection
+        mTouchThroughView.startSending();
+        startLiveInk();
+    }
+
+    /**
+     * Open the connection used to send our paths while we draw them, if enabled in the settings
+     */
+    private void startLiveInk() {
+        if (mLiveInkSender == null && sharedPrefs.getBoolean("preference_live_ink", false)) {
+            mLiveInkSender = new LiveInkSender(getLiveInkPenpal());
+            mLiveInkThread = new Thread(mLiveInkSender);
+            mLiveInkThread.start();
+            mTouchView.setLiveInkSender(mLiveInkSender);
+        }
+    }
+
+    /**
+     * @return the penpal to which our paths are sent while we draw them : the first one
+     * of the settings (on the default port), the others will see the drawing once sent
+     */
+    private String getLiveInkPenpal() {
+        ArrayList<String> penpals = Penpals.parse(sharedPrefs.getString("preference_penpal_IP", "192.168.1.1"));
+        return penpals.isEmpty() ? "192.168.1.1" : Penpals.getHost(penpals.get(0));
+    }
+
+    /**
+     * Close the connection used to send our paths while we draw them
+     */
+    private void stopLiveInk() {
+        if (mLiveInkSender != null) {
+            mTouchView.setLiveInkSender(null);
+            mLiveInkSender.stop();
+            mLiveInkThread.interrupt();
+            mLiveInkSender = null;
+            mLiveInkThread = null;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,920 @@
+package fr.valentinporchet.romeo;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server receiving everything the penpal sends, on a single thread : all the connections
+ * are non-blocking and handled by one Selector, so a slow client doesn't stall the others.
+ * On the same port, each connection can send :
+ * - drawings encoded by DrawingCodec (starting with its magic number), acknowledged by one byte
+ * - frames (see Frames), like the touch through positions or the paths being drawn
+ * - a drawing serialized by ObjectOutputStream (old clients) : the connection is then read
+ *   by a blocking stream on a small pool of threads, as the length of a serialization
+ *   stream is not known
+ * - a big drawing in chunks (see ChunkStore), kept in a temporary file until it's complete :
+ *   the transfer can be resumed on a new connection
+ * The touch through positions can also be sent in datagrams on the same port (see TTDatagrams).
+ * The legacy port is served the same way : the old clients send their touch through positions
+ * there, serialized on a new connection each time, or in datagrams.
+ * The pings of the penpal (see Latency) are answered with our clock, and the time taken by
+ * the received messages is recorded.
+ * The drawings are decoded by a pool of worker threads, so several penpals sending at once
+ * use all the cores. While a drawing of a connection is decoded, the connection is not read :
+ * its messages stay in order, and a client sending faster than we decode waits for us.
+ * The received messages are given to the listener on the thread of the server (positions,
+ * live ink), on a worker thread (drawings) or on the thread reading the old client. Each drawing
+ * is a new list, which the server doesn't use anymore once given.
+ * A big drawing is decoded while it is received : its first paths are given to the listener
+ * before the end of the drawing is received.
+ * A client which stops in the middle of a message, or doesn't read our answers, is
+ * disconnected after READ_TIMEOUT ms.
+ */
+public class MessageServer implements Runnable {
+    // port of the server, for drawings and touch through
+    public static final int PORT = 8080;
+    // port on which the touch through positions were sent before
+    public static final int LEGACY_TT_PORT = 8181;
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final int FRAME_HEADER_LENGTH = 5; // type, length
+    private static final int DRAWING_HEADER_LENGTH = 10; // magic, version, flags, length
+    private static final int SERIALIZATION_FIRST_BYTE = 0xAC; // STREAM_MAGIC of ObjectOutputStream
+    private static final int READ_TIMEOUT = 15000; // in ms
+    private static final int MAX_WAITING_DECODINGS = 16; // then the connections wait without being read
+    private static final int LEGACY_READER_COUNT = 2; // threads reading the old clients
+    private static final int MAX_WAITING_LEGACY_CONNECTIONS = 8; // then the old clients are disconnected
+
+    /**
+     * Receiver of the decoded messages
+     */
+    public interface Listener {
+        /**
+         * The first paths of a drawing were received, the others are still being received.
+         * Called each time new paths are decoded, and then onDrawingReceived() is called.
+         * Several drawings can be received at once, from several penpals.
+         * @param drawingId number of the drawing, the same until it's received
+         * @param paths the paths received until now (base drawing included for a response)
+         * @param firstByteTime time at which the drawing started to be received (see FrameScheduler.now())
+         */
+        void onDrawingProgress(long drawingId, ArrayList<TouchData> paths, long firstByteTime);
+
+        /**
+         * A complete drawing was received (and acknowledged)
+         * @param drawingId number of the drawing, given before to onDrawingProgress()
+         * @param drawing the drawing
+         * @param firstByteTime time at which the drawing started to be received (see FrameScheduler.now())
+         */
+        void onDrawingReceived(long drawingId, ArrayList<TouchData> drawing, long firstByteTime);
+
+        /**
+         * Positions of the touch through were received
+         * @param positions the positions
+         */
+        void onPositionsReceived(TTData positions);
+
+        /**
+         * Points of a path being drawn by the penpal were received (see LiveInk)
+         * @param update the points, or the end of the path or of the drawing
+         */
+        void onInkReceived(LiveInk.Update update);
+    }
+
+    private final int mPort;
+    private final int mLegacyPort;
+    private final DrawingHistory mHistory;
+    private final Listener mListener;
+
+    private Selector mSelector;
+    private ServerSocketChannel mServerChannel;
+    private ServerSocketChannel mLegacyServerChannel;
+    private DatagramChannel mDatagramChannel;
+    private DatagramChannel mLegacyDatagramChannel;
+    private volatile boolean mRunning = true;
+    private int mReadTimeout = READ_TIMEOUT;
+
+    private ByteBuffer mDatagramBuffer = ByteBuffer.allocate(TTDatagrams.MAX_DATAGRAM_LENGTH);
+    private TTDatagrams.Receiver mDatagramReceiver = new TTDatagrams.Receiver();
+    // connections sending a serialized drawing, given to the legacy readers after the selection
+    private ArrayList<Connection> mLegacyConnections = new ArrayList<>();
+    private ThreadPoolExecutor mLegacyReaders;
+    // drawings received in chunks, in temporary files (java.io.tmpdir is the cache of the app)
+    private ChunkStore mChunkStore = new ChunkStore(new File(System.getProperty("java.io.tmpdir")));
+    private HashMap<UUID, ChunkedDrawing> mChunkedDrawings = new HashMap<>();
+    private long mLastDrawingId = 0; // numbers of the drawings given to the listener
+
+    // decoding of the drawings : decodings not accepted by the pool yet, and finished ones
+    private ThreadPoolExecutor mDecoders;
+    private ArrayDeque<Decoding> mWaitingDecodings = new ArrayDeque<>();
+    private ConcurrentLinkedQueue<Decoding> mFinishedDecodings = new ConcurrentLinkedQueue<>();
+
+    /**
+     * State of one connection : what was received but not handled yet, and what must be sent
+     */
+    private static class Connection {
+        final SocketChannel mChannel;
+        ByteBuffer mIn = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        ByteBuffer mOut = ByteBuffer.allocate(16);
+        boolean mIsFirstMessage = true;
+        boolean mIsEnded = false; // the client closed its side of the connection
+        long mMessageStartTime = -1; // time at which the first byte of the current message was received
+        long mLastActivity = now(); // last time bytes were received or sent
+        DrawingCodec.StreamDecoder mDecoder; // decoder of the drawing being received
+        long mDrawingId; // number of the drawing being received, for the listener
+        int mDecodedLength = 0; // number of bytes of the drawing given to the decoder
+        boolean mIsDecoding = false; // the connection isn't read until the end of the decoding
+        Latency.Stamp mStamp; // stamp of the next drawing (see Frames.TYPE_STAMP)
+
+        Connection(SocketChannel channel) {
+            mChannel = channel;
+        }
+    }
+
+    /**
+     * Decoding of a drawing of a connection, on a worker thread. Once done, it's given
+     * back to the thread of the server, which answers the client and reads the connection again.
+     */
+    private abstract class Decoding implements Runnable {
+        final SelectionKey mKey;
+        final Connection mConnection;
+        final long mStartTime = Latency.now(); // the time waiting for a decoder is part of the decoding
+        private IOException mError;
+
+        Decoding(SelectionKey key, Connection connection) {
+            mKey = key;
+            mConnection = connection;
+        }
+
+        @Override
+        public void run() {
+            try {
+                decode();
+            } catch (IOException e) {
+                mError = e;
+            } catch (RuntimeException e) {
+                mError = new IOException("Invalid drawing", e);
+            }
+            mFinishedDecodings.add(this);
+            mSelector.wakeup();
+        }
+
+        /**
+         * Decode the drawing, on a worker thread
+         */
+        abstract void decode() throws IOException;
+
+        /**
+         * Handle the result of the decoding, on the thread of the server
+         */
+        abstract void finish() throws IOException;
+
+        void finishOrThrow() throws IOException {
+            if (mError != null) {
+                throw mError;
+            }
+            finish();
+        }
+    }
+
+    /**
+     * Decoding of a drawing received in chunks, which can continue on another connection
+     */
+    private static class ChunkedDrawing {
+        final DrawingCodec.StreamDecoder mDecoder;
+        final long mDrawingId;
+        final long mFirstByteTime;
+        Latency.Stamp mStamp; // given on the connection which opened the transfer
+
+        ChunkedDrawing(DrawingHistory history, long drawingId, long firstByteTime) {
+            mDecoder = new DrawingCodec.StreamDecoder(history);
+            mDrawingId = drawingId;
+            mFirstByteTime = firstByteTime;
+        }
+    }
+
+    /**
+     * @param port port of the server (0 for any free port)
+     * @param legacyPort other port on which we accept connections, -1 for none
+     * @param history known drawings, used to rebuild the responses
+     * @param listener receiver of the messages
+     */
+    public MessageServer(int port, int legacyPort, DrawingHistory history, Listener listener) {
+        mPort = port;
+        mLegacyPort = legacyPort;
+        mHistory = history;
+        mListener = listener;
+    }
+
+    private static int getDecoderCount() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Open the ports of the server. Done by run() if it wasn't done before.
+     * @throws IOException if a port can't be opened
+     */
+    public synchronized void open() throws IOException {
+        if (mSelector != null) {
+            return;
+        }
+        mSelector = Selector.open();
+        mDecoders = new ThreadPoolExecutor(getDecoderCount(), getDecoderCount(), 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_WAITING_DECODINGS));
+        mDecoders.allowCoreThreadTimeOut(true);
+        // each old client blocks its thread until the end of its drawing, so they don't use the decoders
+        mLegacyReaders = new ThreadPoolExecutor(LEGACY_READER_COUNT, LEGACY_READER_COUNT, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_WAITING_LEGACY_CONNECTIONS));
+        mLegacyReaders.allowCoreThreadTimeOut(true);
+        mServerChannel = openServerChannel(mPort);
+        if (mLegacyPort >= 0) {
+            try {
+                mLegacyServerChannel = openServerChannel(mLegacyPort);
+                // the old clients in datagram mode send their positions there too
+                mLegacyDatagramChannel = openDatagramChannel(mLegacyPort);
+            } catch (IOException e) {
+                Log.w("MessageServer", "Legacy port " + mLegacyPort + " not available", e);
+            }
+        }
+        mDatagramChannel = openDatagramChannel(getPort());
+    }
+
+    private DatagramChannel openDatagramChannel(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        channel.register(mSelector, SelectionKey.OP_READ);
+        return channel;
+    }
+
+    private ServerSocketChannel openServerChannel(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().setReuseAddress(true);
+        channel.socket().bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        channel.register(mSelector, SelectionKey.OP_ACCEPT);
+        return channel;
+    }
+
+    /**
+     * Change the time after which a stalled client is disconnected. Must be called before run().
+     * @param readTimeout the time, in ms
+     */
+    public void setReadTimeout(int readTimeout) {
+        mReadTimeout = readTimeout;
+    }
+
+    /**
+     * @return the port of the server, once opened
+     */
+    public int getPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stop the server and close all its connections
+     */
+    public void close() {
+        mRunning = false;
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            open();
+            Log.i("MessageServer", "Listening on port " + getPort());
+            while (mRunning) {
+                mSelector.select(mReadTimeout / 4);
+                finishDecodings();
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        handle(key);
+                    } catch (IOException e) {
+                        if (key.attachment() instanceof Connection) {
+                            // only this connection is concerned
+                            Log.i("MessageServer", "Connection closed : " + e.getMessage());
+                            closeConnection(key);
+                        } else { // the server channels stay opened
+                            Log.e("MessageServer", "Error", e);
+                        }
+                    }
+                }
+                startLegacyConnections();
+                closeStalledConnections();
+            }
+        } catch (IOException e) {
+            Log.e("MessageServer", "Server stopped", e);
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void handle(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+            if (channel != null) {
+                channel.configureBlocking(false);
+                channel.socket().setSoTimeout(mReadTimeout); // only used if it's an old client
+                channel.socket().setTcpNoDelay(true); // for the acknowledgements
+                channel.register(mSelector, SelectionKey.OP_READ, new Connection(channel));
+            }
+        } else if (key.channel() == mDatagramChannel || key.channel() == mLegacyDatagramChannel) {
+            readDatagrams((DatagramChannel) key.channel());
+        } else {
+            Connection connection = (Connection) key.attachment();
+            if (key.isWritable()) {
+                flush(key, connection);
+            }
+            if (key.isValid() && key.isReadable() && !connection.mIsDecoding) {
+                read(key, connection);
+            }
+        }
+    }
+
+    /***************** STREAMS *****************/
+
+    private void read(SelectionKey key, Connection connection) throws IOException {
+        int count = connection.mChannel.read(connection.mIn);
+        if (count > 0) {
+            connection.mLastActivity = now();
+        }
+        connection.mIsEnded = count == -1;
+        connection.mIn.flip();
+        handleReceived(key, connection);
+    }
+
+    /**
+     * Handle the received bytes of the buffer (in read mode). If a drawing must be decoded,
+     * the connection is not read until the end of the decoding, and the buffer stays as is.
+     */
+    private void handleReceived(SelectionKey key, Connection connection) throws IOException {
+        try {
+            handleMessages(key, connection);
+        } finally {
+            if (!connection.mIsDecoding) {
+                connection.mIn.compact();
+            }
+        }
+        if (!key.isValid()) {
+            return;
+        }
+        updateInterest(key, connection);
+        if (connection.mIsEnded && !connection.mIsDecoding) {
+            if (connection.mIn.position() > 0) {
+                throw new IOException("Connection closed in the middle of a message");
+            }
+            closeConnection(key);
+        }
+    }
+
+    /**
+     * Handle all the complete messages of the buffer (in read mode). An incomplete
+     * message stays in the buffer, which is grown if needed to receive all of it.
+     */
+    private void handleMessages(SelectionKey key, Connection connection) throws IOException {
+        ByteBuffer in = connection.mIn;
+        while (key.isValid() && !connection.mIsDecoding && in.hasRemaining()) {
+            int start = in.position();
+            int first = in.get(start) & 0xFF;
+            int messageLength;
+            if (connection.mMessageStartTime < 0) {
+                connection.mMessageStartTime = FrameScheduler.now();
+            }
+            if (first == SERIALIZATION_FIRST_BYTE && connection.mIsFirstMessage) {
+                // old client : the stream will be read by its own thread
+                key.cancel();
+                mLegacyConnections.add(connection);
+                return;
+            } else if (first == (DrawingCodec.MAGIC >>> 24)) {
+                if (in.remaining() < DRAWING_HEADER_LENGTH) {
+                    break;
+                }
+                if (in.getInt(start) != DrawingCodec.MAGIC) {
+                    throw new IOException("Unknown message");
+                }
+                messageLength = DRAWING_HEADER_LENGTH + checkLength(in.getInt(start + 6));
+            } else {
+                if (in.remaining() < FRAME_HEADER_LENGTH) {
+                    break;
+                }
+                messageLength = FRAME_HEADER_LENGTH + checkLength(in.getInt(start + 1));
+            }
+
+            if (in.remaining() < messageLength) {
+                if (messageLength > in.capacity()) {
+                    // the buffer is in read mode here, and compacted by the caller
+                    ByteBuffer bigger = ByteBuffer.allocate(messageLength);
+                    bigger.put(in);
+                    bigger.flip();
+                    connection.mIn = bigger;
+                }
+                if (first == (DrawingCodec.MAGIC >>> 24) && connection.mIn.remaining() > connection.mDecodedLength) {
+                    // the paths already received can be shown
+                    connection.mDecodedLength = connection.mIn.remaining();
+                    decodeDrawing(key, connection, connection.mIn.position(), -1);
+                }
+                break;
+            }
+
+            connection.mIsFirstMessage = false;
+            if (first == (DrawingCodec.MAGIC >>> 24)) {
+                Latency.get().received(Latency.DRAWING, getHost(connection), connection.mStamp,
+                        System.currentTimeMillis());
+                connection.mStamp = null;
+                // the end of the message is handled once decoded (see endMessage())
+                decodeDrawing(key, connection, start, start + messageLength);
+                break;
+            }
+            handleFrame(key, connection, in, start, messageLength);
+            endMessage(connection, start + messageLength);
+        }
+    }
+
+    /**
+     * Go to the next message of the connection
+     * @param end position of the end of the current message in the buffer
+     */
+    private static void endMessage(Connection connection, int end) {
+        connection.mIn.position(end);
+        connection.mMessageStartTime = -1;
+        connection.mDecoder = null;
+        connection.mDecodedLength = 0;
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < 0 || length > Frames.MAX_PAYLOAD_LENGTH) {
+            throw new IOException("Invalid message length : " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Decode the paths of the drawing received until now on a worker thread, and give them
+     * to the listener if there are new ones. If all the drawing is received, the decoded
+     * drawing is given to the listener, and then acknowledged.
+     * @param start position of the drawing in the buffer
+     * @param end position of the end of the drawing in the buffer, -1 if it's not entirely received
+     */
+    private void decodeDrawing(SelectionKey key, final Connection connection, final int start, final int end) {
+        if (connection.mDecoder == null) {
+            connection.mDecoder = new DrawingCodec.StreamDecoder(mHistory);
+            connection.mDrawingId = ++mLastDrawingId;
+        }
+        final DrawingCodec.StreamDecoder decoder = connection.mDecoder;
+        final long drawingId = connection.mDrawingId;
+        final ByteBuffer in = connection.mIn;
+        final long firstByteTime = connection.mMessageStartTime;
+        startDecoding(new Decoding(key, connection) {
+            private int mAck;
+
+            @Override
+            void decode() throws IOException {
+                if (decoder.decodeAvailable(in, start) && end < 0) {
+                    mListener.onDrawingProgress(drawingId, decoder.getPaths(), firstByteTime);
+                }
+                if (end < 0) {
+                    return;
+                }
+                ArrayList<TouchData> drawing;
+                try {
+                    drawing = decoder.finish();
+                } catch (DrawingCodec.MissingBaseException e) {
+                    // the client will send the whole drawing
+                    Log.i("MessageServer", e.getMessage());
+                    mAck = DrawingCodec.ACK_MISSING_BASE;
+                    return;
+                }
+                Latency.get().record(Latency.DRAWING, Latency.DECODE, Latency.now() - mStartTime);
+                // a drawing sent again is acknowledged again, but shown once
+                if (mHistory.getPenpal(getHost(connection)).add(drawing)) {
+                    mListener.onDrawingReceived(drawingId, drawing, firstByteTime);
+                } else {
+                    Log.i("MessageServer", "Drawing received again, ignored");
+                }
+                mAck = DrawingCodec.ACK_OK;
+            }
+
+            @Override
+            void finish() throws IOException {
+                if (end >= 0) {
+                    send(mKey, connection, mAck);
+                    endMessage(connection, end);
+                }
+            }
+        });
+    }
+
+    private void handleFrame(SelectionKey key, Connection connection, ByteBuffer in, int start, int frameLength)
+            throws IOException {
+        DataInputStream message = new DataInputStream(
+                new ByteArrayInputStream(in.array(), in.arrayOffset() + start, frameLength));
+        int type = Frames.readType(message);
+        Frames.readLength(message);
+        if (type == Frames.TYPE_CHUNK_OPEN || type == Frames.TYPE_CHUNK) {
+            handleChunk(key, connection, type, message, in, start + frameLength);
+        } else if (type == Frames.TYPE_TT_DATA) {
+            long receivedTime = System.currentTimeMillis();
+            long decodeStart = Latency.now();
+            TTData positions = TTData.readFrom(message);
+            positions.setStamp(Latency.Stamp.read(message));
+            Latency.get().received(Latency.TOUCH_THROUGH, getHost(connection), positions.getStamp(), receivedTime);
+            Latency.get().record(Latency.TOUCH_THROUGH, Latency.DECODE, Latency.now() - decodeStart);
+            mListener.onPositionsReceived(positions);
+        } else if (type == Frames.TYPE_STAMP) {
+            connection.mStamp = Latency.Stamp.read(message);
+        } else if (type == Frames.TYPE_PING) {
+            sendPong(key, connection, message.readLong());
+        } else if (LiveInk.isLiveInk(type)) {
+            mListener.onInkReceived(LiveInk.read(type, message));
+        } // else it's an unknown frame, we skip it
+    }
+
+    /**
+     * Handle a frame of a drawing sent in chunks, and acknowledge it
+     * @param message the frame, after its header
+     * @param in buffer containing the frame
+     * @param end end of the frame in the buffer
+     */
+    private void handleChunk(SelectionKey key, Connection connection, int type, DataInputStream message,
+                             ByteBuffer in, int end) throws IOException {
+        UUID id = ChunkStore.readUuid(message);
+        int received;
+        if (type == Frames.TYPE_CHUNK_OPEN) {
+            int length = message.readInt();
+            if (length < 0 || length > DRAWING_HEADER_LENGTH + Frames.MAX_PAYLOAD_LENGTH) {
+                throw new IOException("Invalid chunked message length : " + length);
+            }
+            received = mChunkStore.open(id, length);
+            // the decoding of the abandoned transfers is forgotten too
+            mChunkedDrawings.keySet().retainAll(mChunkStore.getIds());
+            if (!mChunkedDrawings.containsKey(id)) {
+                mChunkedDrawings.put(id, new ChunkedDrawing(mHistory, ++mLastDrawingId, connection.mMessageStartTime));
+            }
+            if (connection.mStamp != null) {
+                mChunkedDrawings.get(id).mStamp = connection.mStamp;
+                connection.mStamp = null;
+            }
+        } else {
+            int offset = message.readInt();
+            // the bytes of the chunk are written from the buffer of the connection
+            ByteBuffer chunk = ByteBuffer.wrap(in.array(), in.arrayOffset() + end - message.available(),
+                    message.available());
+            received = mChunkStore.write(id, offset, chunk);
+        }
+
+        final ChunkedDrawing chunked = mChunkedDrawings.get(id);
+        if (chunked == null) {
+            throw new IOException("Unknown transfer : " + id);
+        }
+        final UUID transferId = id;
+        final int receivedLength = received;
+        final boolean isComplete = received == mChunkStore.getLength(id);
+        final ByteBuffer receivedBytes = mChunkStore.map(id);
+        if (isComplete) {
+            // a new transfer of the same drawing would be a new one
+            mChunkedDrawings.remove(id);
+            Latency.get().received(Latency.DRAWING, getHost(connection), chunked.mStamp, System.currentTimeMillis());
+        }
+        startDecoding(new Decoding(key, connection) {
+            private int mStatus = ChunkStore.STATUS_IN_PROGRESS;
+
+            @Override
+            void decode() throws IOException {
+                ArrayList<TouchData> drawing;
+                // the transfer may continue on another connection, decoded at the same time
+                synchronized (chunked) {
+                    // the paths already received can be shown
+                    if (chunked.mDecoder.decodeAvailable(receivedBytes, 0) && !isComplete) {
+                        mListener.onDrawingProgress(chunked.mDrawingId, chunked.mDecoder.getPaths(),
+                                chunked.mFirstByteTime);
+                    }
+                    if (!isComplete) {
+                        return;
+                    }
+                    try {
+                        drawing = chunked.mDecoder.finish();
+                    } catch (DrawingCodec.MissingBaseException e) {
+                        // the client will send the whole drawing
+                        Log.i("MessageServer", e.getMessage());
+                        mStatus = DrawingCodec.ACK_MISSING_BASE;
+                        return;
+                    }
+                }
+                Latency.get().record(Latency.DRAWING, Latency.DECODE, Latency.now() - mStartTime);
+                if (mHistory.getPenpal(getHost(mConnection)).add(drawing)) {
+                    mListener.onDrawingReceived(chunked.mDrawingId, drawing, chunked.mFirstByteTime);
+                } else {
+                    Log.i("MessageServer", "Drawing received again, ignored");
+                }
+                mStatus = DrawingCodec.ACK_OK;
+            }
+
+            @Override
+            void finish() throws IOException {
+                if (isComplete) {
+                    mChunkStore.remove(transferId);
+                }
+                sendChunkAck(mKey, mConnection, transferId, receivedLength, mStatus);
+            }
+        });
+    }
+
+    /***************** DECODING *****************/
+
+    /**
+     * Give a decoding to the pool, or keep it until the pool can take it. Until the end
+     * of the decoding, the connection is not read.
+     */
+    private void startDecoding(Decoding decoding) {
+        decoding.mConnection.mIsDecoding = true;
+        if (!mWaitingDecodings.isEmpty() || !execute(decoding)) {
+            mWaitingDecodings.add(decoding);
+        }
+    }
+
+    private boolean execute(Decoding decoding) {
+        try {
+            mDecoders.execute(decoding);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false; // too many decodings already waiting
+        }
+    }
+
+    /**
+     * Answer the clients of the finished decodings, read their connections again, and give
+     * the waiting decodings to the pool
+     */
+    private void finishDecodings() {
+        Decoding decoding;
+        while ((decoding = mFinishedDecodings.poll()) != null) {
+            Connection connection = decoding.mConnection;
+            connection.mIsDecoding = false;
+            if (!decoding.mKey.isValid()) {
+                continue; // closed in the meantime
+            }
+            try {
+                decoding.finishOrThrow();
+                handleReceived(decoding.mKey, connection);
+            } catch (IOException e) {
+                Log.i("MessageServer", "Connection closed : " + e.getMessage());
+                closeConnection(decoding.mKey);
+            }
+        }
+        while (!mWaitingDecodings.isEmpty() && execute(mWaitingDecodings.peek())) {
+            mWaitingDecodings.poll();
+        }
+    }
+
+    private void sendChunkAck(SelectionKey key, Connection connection, UUID id, int received, int status)
+            throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        ChunkStore.writeAck(new DataOutputStream(payload), id, received, status);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        Frames.write(new DataOutputStream(frame), Frames.TYPE_CHUNK_ACK, payload.toByteArray(), payload.size());
+        send(key, connection, frame.toByteArray());
+    }
+
+    /**
+     * Answer a ping of the client (see Latency.ping())
+     * @param pingTime send time of the ping, on the clock of the client
+     */
+    private void sendPong(SelectionKey key, Connection connection, long pingTime) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(16);
+        DataOutputStream payloadOut = new DataOutputStream(payload);
+        payloadOut.writeLong(pingTime);
+        payloadOut.writeLong(System.currentTimeMillis());
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        Frames.write(new DataOutputStream(frame), Frames.TYPE_PONG, payload.toByteArray(), payload.size());
+        send(key, connection, frame.toByteArray());
+    }
+
+    /**
+     * Send a byte to the client, without waiting
+     */
+    private void send(SelectionKey key, Connection connection, int b) throws IOException {
+        send(key, connection, new byte[] {(byte) b});
+    }
+
+    /**
+     * Send bytes to the client, without waiting
+     */
+    private void send(SelectionKey key, Connection connection, byte[] bytes) throws IOException {
+        if (connection.mOut.remaining() < bytes.length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(connection.mOut.capacity() * 2,
+                    connection.mOut.position() + bytes.length));
+            connection.mOut.flip();
+            bigger.put(connection.mOut);
+            connection.mOut = bigger;
+        }
+        connection.mOut.put(bytes);
+        flush(key, connection);
+    }
+
+    private void flush(SelectionKey key, Connection connection) throws IOException {
+        connection.mOut.flip();
+        if (connection.mChannel.write(connection.mOut) > 0) {
+            connection.mLastActivity = now();
+        }
+        connection.mOut.compact();
+        updateInterest(key, connection);
+    }
+
+    /**
+     * Read the connection unless a drawing is decoded, and write when the client
+     * doesn't read fast enough
+     */
+    private static void updateInterest(SelectionKey key, Connection connection) {
+        int ops = connection.mIsDecoding || connection.mIsEnded ? 0 : SelectionKey.OP_READ;
+        if (connection.mOut.position() > 0) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    /**
+     * Give the connections of old clients to the legacy readers, which read the serialized drawing.
+     * When too many old clients are waiting, the new ones are disconnected.
+     */
+    private void startLegacyConnections() throws IOException {
+        if (mLegacyConnections.isEmpty()) {
+            return;
+        }
+        mSelector.selectNow(); // the canceled keys are removed, so the channels can be blocking
+        for (final Connection connection : mLegacyConnections) {
+            connection.mChannel.configureBlocking(true);
+            connection.mIn.flip();
+            byte[] received = new byte[connection.mIn.remaining()];
+            connection.mIn.get(received);
+            // the stream of the socket, unlike Channels.newInputStream(), stops after READ_TIMEOUT
+            final InputStream in = new SequenceInputStream(new ByteArrayInputStream(received),
+                    connection.mChannel.socket().getInputStream());
+            final long drawingId = ++mLastDrawingId;
+            try {
+                mLegacyReaders.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        readSerialized(connection.mChannel, in, drawingId, connection.mMessageStartTime);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.w("MessageServer", "Too many old clients, disconnected");
+                connection.mChannel.close();
+            }
+        }
+        mLegacyConnections.clear();
+    }
+
+    /**
+     * Read the object sent by an old client : a drawing, or the touch through positions
+     * sent on the legacy port
+     */
+    @SuppressWarnings("unchecked")
+    private void readSerialized(SocketChannel channel, InputStream in, long drawingId, long firstByteTime) {
+        try {
+            Object received = new ObjectInputStream(in).readObject();
+            if (received instanceof TTData) {
+                mListener.onPositionsReceived((TTData) received);
+            } else {
+                mListener.onDrawingReceived(drawingId, (ArrayList<TouchData>) received, firstByteTime);
+            }
+        } catch (Exception e) {
+            Log.i("MessageServer", "Serialized object not received : " + e);
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e("MessageServer", "Error while closing", e);
+            }
+        }
+    }
+
+    /***************** DATAGRAMS *****************/
+
+    private void readDatagrams(DatagramChannel channel) throws IOException {
+        while (true) {
+            mDatagramBuffer.clear();
+            SocketAddress source = channel.receive(mDatagramBuffer);
+            if (source == null) {
+                return; // no more datagram for now
+            }
+            long receivedTime = System.currentTimeMillis();
+            long decodeStart = Latency.now();
+            TTData positions;
+            try {
+                positions = mDatagramReceiver.read(mDatagramBuffer.array(), mDatagramBuffer.position());
+            } catch (IOException e) {
+                Log.w("MessageServer", "Invalid datagram ignored", e);
+                continue;
+            }
+            if (positions != null) { // else older than the last positions
+                Latency.get().received(Latency.TOUCH_THROUGH,
+                        ((InetSocketAddress) source).getAddress().getHostAddress(), positions.getStamp(), receivedTime);
+                Latency.get().record(Latency.TOUCH_THROUGH, Latency.DECODE, Latency.now() - decodeStart);
+                mListener.onPositionsReceived(positions);
+            }
+        }
+    }
+
+    /***************** CLOSING *****************/
+
+    /**
+     * Close the connections of the clients which stopped in the middle of a message, or which
+     * don't read our answers
+     */
+    private void closeStalledConnections() {
+        long now = now();
+        for (SelectionKey key : mSelector.keys()) {
+            if (!(key.attachment() instanceof Connection) || !key.isValid()) {
+                continue;
+            }
+            Connection connection = (Connection) key.attachment();
+            boolean isWaiting = connection.mIn.position() > 0 || connection.mOut.position() > 0;
+            if (isWaiting && !connection.mIsDecoding && now - connection.mLastActivity > mReadTimeout) {
+                Log.i("MessageServer", "Stalled connection closed");
+                closeConnection(key);
+            }
+        }
+    }
+
+    private void closeConnection(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            Log.e("MessageServer", "Error while closing", e);
+        }
+    }
+
+    /**
+     * @return the address of the client, for its history (see DrawingHistory.getPenpal()) and
+     * its clock offset (see Latency)
+     */
+    private static String getHost(Connection connection) {
+        return connection.mChannel.socket().getInetAddress().getHostAddress();
+    }
+
+    /**
+     * @return the time used for the read timeout (in ms), which only goes forward
+     */
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private void closeAll() {
+        if (mDecoders != null) {
+            mDecoders.shutdown();
+        }
+        if (mLegacyReaders != null) {
+            mLegacyReaders.shutdown();
+        }
+        mChunkStore.clear();
+        if (mSelector == null) {
+            return;
+        }
+        for (SelectionKey key : mSelector.keys()) {
+            closeConnection(key);
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            Log.e("MessageServer", "Error while closing", e);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package fr.valentinporchet.romeo;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Messages waiting to be sent, appended to a file so they are not lost if the app is stopped.
+ * Record : [payload length (4 bytes)][time of the append (8 bytes)][CRC32 of the payload (4 bytes)][payload]
+ * A second file contains the offset of the first record not sent yet : sent records are only
+ * skipped, and the log is emptied once everything is sent. A record partially written when
+ * the app was killed is detected by its length or CRC, and dropped with the following bytes.
+ *
+ * The fsync policy tells when the records are forced to the disk :
+ * - FSYNC_ALWAYS : at each append, nothing is lost even if the phone is turned off
+ * - FSYNC_BATCH : at most every SYNC_INTERVAL ms, and before the records are sent
+ * - FSYNC_NEVER : when the system wants, only a crash of the app is survived
+ */
+public class OutboxLog {
+    public static final int FSYNC_ALWAYS = 0;
+    public static final int FSYNC_BATCH = 1;
+    public static final int FSYNC_NEVER = 2;
+    private static final long SYNC_INTERVAL = 1000; // in ms
+    private static final int RECORD_HEADER_LENGTH = 4 + 8 + 4;
+    private static final int MAX_RECORD_LENGTH = 32 * 1024 * 1024;
+
+    /**
+     * Position of a record waiting in the log
+     */
+    private static class Record {
+        final long mOffset;
+        final int mLength;
+        final long mTime;
+
+        Record(long offset, int length, long time) {
+            mOffset = offset;
+            mLength = length;
+            mTime = time;
+        }
+    }
+
+    private final int mFsyncPolicy;
+    private final RandomAccessFile mLog;
+    private final RandomAccessFile mHead;
+    private ArrayList<Record> mRecords = new ArrayList<>();
+    private boolean mIsDirty = false;
+    private long mLastSync = 0;
+
+    /**
+     * Open the log, with the records not sent before
+     * @param directory directory of the files (kept between two launches of the app)
+     * @param name name of the log
+     * @param fsyncPolicy FSYNC_ALWAYS, FSYNC_BATCH or FSYNC_NEVER
+     * @throws IOException if the files can't be opened
+     */
+    public OutboxLog(File directory, String name, int fsyncPolicy) throws IOException {
+        mFsyncPolicy = fsyncPolicy;
+        mLog = new RandomAccessFile(new File(directory, name + ".log"), "rw");
+        mHead = new RandomAccessFile(new File(directory, name + ".head"), "rw");
+        load();
+    }
+
+    private void load() throws IOException {
+        long offset = mHead.length() >= 8 ? mHead.readLong() : 0;
+        long end = mLog.length();
+        CRC32 crc = new CRC32();
+        byte[] payload = new byte[0];
+        while (offset + RECORD_HEADER_LENGTH <= end) {
+            mLog.seek(offset);
+            int length = mLog.readInt();
+            long time = mLog.readLong();
+            int checksum = mLog.readInt();
+            if (length < 0 || length > MAX_RECORD_LENGTH || offset + RECORD_HEADER_LENGTH + length > end) {
+                break;
+            }
+            if (payload.length < length) {
+                payload = new byte[length];
+            }
+            mLog.readFully(payload, 0, length);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            mRecords.add(new Record(offset, length, time));
+            offset += RECORD_HEADER_LENGTH + length;
+        }
+        if (offset < end) {
+            Log.w("OutboxLog", "Dropping " + (end - offset) + " bytes not entirely written");
+            mLog.setLength(offset);
+        }
+        if (mRecords.isEmpty()) {
+            clear();
+        }
+    }
+
+    /**
+     * Add a message at the end of the log
+     * @param payload the message
+     * @param time time of the append (System.currentTimeMillis(), kept between two launches)
+     * @throws IOException if it can't be written
+     */
+    public synchronized void append(byte[] payload, long time) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        long offset = mLog.length();
+        mLog.seek(offset);
+        // one write for the record, so it's either entirely in the file or detected when loaded
+        byte[] record = new byte[RECORD_HEADER_LENGTH + payload.length];
+        ByteBuffer.wrap(record).putInt(payload.length).putLong(time).putInt((int) crc.getValue())
+                .put(payload);
+        mLog.write(record);
+        mRecords.add(new Record(offset, payload.length, time));
+        mIsDirty = true;
+        if (mFsyncPolicy == FSYNC_ALWAYS
+                || (mFsyncPolicy == FSYNC_BATCH && System.currentTimeMillis() - mLastSync >= SYNC_INTERVAL)) {
+            sync();
+        }
+    }
+
+    /**
+     * Force the appended records to the disk (unless the policy is FSYNC_NEVER)
+     * @throws IOException if the disk failed
+     */
+    public synchronized void sync() throws IOException {
+        if (mIsDirty && mFsyncPolicy != FSYNC_NEVER) {
+            mLog.getFD().sync();
+            mLastSync = System.currentTimeMillis();
+        }
+        mIsDirty = false;
+    }
+
+    /**
+     * @return the number of messages waiting
+     */
+    public synchronized int size() {
+        return mRecords.size();
+    }
+
+    /**
+     * @return the time of the append of the oldest message waiting, -1 if there is none
+     */
+    public synchronized long getOldestTime() {
+        return mRecords.isEmpty() ? -1 : mRecords.get(0).mTime;
+    }
+
+    /**
+     * Read the first messages waiting
+     * @param max maximum number of messages
+     * @return the messages, the oldest first
+     * @throws IOException if the log can't be read
+     */
+    public synchronized ArrayList<byte[]> peek(int max) throws IOException {
+        int count = Math.min(max, mRecords.size());
+        ArrayList<byte[]> payloads = new ArrayList<>(count);
+        for (int i=0; i < count; i++) {
+            Record record = mRecords.get(i);
+            byte[] payload = new byte[record.mLength];
+            mLog.seek(record.mOffset + RECORD_HEADER_LENGTH);
+            mLog.readFully(payload);
+            payloads.add(payload);
+        }
+        return payloads;
+    }
+
+    /**
+     * Remove the first messages, once sent
+     * @param count number of messages to remove
+     * @throws IOException if the log can't be written
+     */
+    public synchronized void remove(int count) throws IOException {
+        count = Math.min(count, mRecords.size());
+        if (count == 0) {
+            return;
+        }
+        mRecords.subList(0, count).clear();
+        if (mRecords.isEmpty()) {
+            clear(); // the files don't grow forever
+        } else {
+            writeHead(mRecords.get(0).mOffset);
+        }
+    }
+
+    private void clear() throws IOException {
+        // if we are stopped in between, the head is after the end of the log : it's empty too
+        mLog.setLength(0);
+        writeHead(0);
+        mIsDirty = false;
+    }
+
+    private void writeHead(long offset) throws IOException {
+        mHead.seek(0);
+        mHead.writeLong(offset);
+        if (mFsyncPolicy != FSYNC_NEVER) {
+            mHead.getFD().sync();
+        }
+    }
+
+    /**
+     * Close the files. The messages waiting will be loaded next time.
+     */
+    public synchronized void close() {
+        try {
+            sync();
+            mLog.close();
+            mHead.close();
+        } catch (IOException e) {
+            Log.e("OutboxLog", "Error while closing", e);
+        }
+    }
+}
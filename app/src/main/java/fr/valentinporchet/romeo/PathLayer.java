@@ -0,0 +1,186 @@
+package fr.valentinporchet.romeo;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PathMeasure;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Offscreen bitmap in which the finished paths are drawn only once. Each frame, the
+ * view just copies the bitmap and draws what is still changing on top of it.
+ * The paths are supposed to be only added at the end of the list : if the beginning
+ * of the list changes, invalidate() must be called (this is also detected when possible).
+ *
+ * The path being animated is also drawn in the bitmap, little by little : each frame,
+ * only the part revealed since the previous frame is rasterized.
+ */
+public class PathLayer {
+    private Bitmap mBitmap;
+    private Canvas mCanvas = new Canvas();
+    private int mWidth, mHeight;
+    private int mDrawnCount; // number of first paths of the list drawn in the bitmap
+    private TouchData mLastDrawn; // last path drawn in the bitmap
+
+    // path partially drawn in the bitmap (the animated one), and its drawn length
+    private TouchData mPartial;
+    private float mPartialLength;
+    private PathMeasure mMeasure = new PathMeasure();
+    private Path mSegment = new Path();
+
+    /**
+     * Set the size of the layer (size of the view). The bitmap is created when needed.
+     * @param width width of the view
+     * @param height height of the view
+     */
+    public void setSize(int width, int height) {
+        if (width != mWidth || height != mHeight) {
+            mWidth = width;
+            mHeight = height;
+            release();
+        }
+    }
+
+    /**
+     * Forget the paths drawn in the bitmap, they will be drawn again
+     */
+    public void invalidate() {
+        mDrawnCount = 0;
+        mLastDrawn = null;
+        mPartial = null;
+        if (mBitmap != null) {
+            mBitmap.eraseColor(Color.TRANSPARENT);
+        }
+    }
+
+    /**
+     * Free the bitmap, when the view doesn't need it anymore
+     */
+    public void release() {
+        if (mBitmap != null) {
+            mBitmap.recycle();
+            mBitmap = null;
+        }
+        mDrawnCount = 0;
+        mLastDrawn = null;
+        mPartial = null;
+    }
+
+    /**
+     * Draw the first paths of the list on the canvas. Only the paths which are not
+     * already in the bitmap are rasterized.
+     * @param canvas canvas of the view
+     * @param data paths of the view
+     * @param count number of first paths to draw
+     * @param paint paint used for the paths
+     */
+    public void draw(Canvas canvas, List<TouchData> data, int count, Paint paint) {
+        if (!ensureBitmap()) {
+            // no bitmap, we draw the paths directly
+            drawPaths(canvas, data, 0, count, paint);
+            return;
+        }
+
+        update(data, count, paint);
+        if (mDrawnCount > 0) {
+            canvas.drawBitmap(mBitmap, 0, 0, null);
+        }
+    }
+
+    /**
+     * Draw the first paths of the list, and the beginning of the next one, on the canvas.
+     * Only the part of the next path after the previously drawn length is rasterized.
+     * @param canvas canvas of the view
+     * @param data paths of the view
+     * @param index index of the animated path (the paths before it are drawn entirely)
+     * @param length length of the animated path to draw
+     * @param paint paint used for the paths
+     * @return false if there is no bitmap : then nothing is drawn
+     */
+    public boolean drawBeginning(Canvas canvas, List<TouchData> data, int index, float length, Paint paint) {
+        if (!ensureBitmap()) {
+            return false;
+        }
+
+        update(data, index, paint);
+        TouchData current = data.get(index);
+        if (current != mPartial) { // new animated path
+            mPartial = current;
+            mPartialLength = 0;
+            mMeasure.setPath(current.mPath, false);
+        }
+        if (length > mPartialLength) {
+            drawSegment(current, mPartialLength, length, paint);
+            mPartialLength = length;
+        }
+        canvas.drawBitmap(mBitmap, 0, 0, null);
+        return true;
+    }
+
+    /**
+     * Make sure the first paths of the list are in the bitmap
+     */
+    private void update(List<TouchData> data, int count, Paint paint) {
+        // if the paths in the bitmap are not the beginning of the list anymore, we start again
+        if (count < mDrawnCount || (mDrawnCount > 0 && data.get(mDrawnCount - 1) != mLastDrawn)) {
+            invalidate();
+        }
+        for (int i=mDrawnCount; i < count; i++) {
+            TouchData touchData = data.get(i);
+            if (touchData == mPartial) {
+                // its beginning is already drawn, we only add the end
+                drawSegment(touchData, mPartialLength, Float.MAX_VALUE, paint);
+                mPartial = null;
+            } else {
+                paint.setColor(touchData.mPathColor);
+                paint.setStrokeWidth(touchData.mPathThickness);
+                mCanvas.drawPath(touchData.mPath, paint);
+            }
+        }
+        if (count > mDrawnCount) {
+            mDrawnCount = count;
+            mLastDrawn = data.get(count - 1);
+        }
+    }
+
+    /**
+     * Draw a part of the partial path in the bitmap
+     */
+    private void drawSegment(TouchData touchData, float from, float to, Paint paint) {
+        paint.setColor(touchData.mPathColor);
+        paint.setStrokeWidth(touchData.mPathThickness);
+        mSegment.rewind(); // we empty the segment path
+        mMeasure.getSegment(from, to, mSegment, true); // we add the new part to the segment
+        mSegment.rLineTo(0, 0); // workaround for KITKAT and earlier versions, see the doc of getSegment()
+        mCanvas.drawPath(mSegment, paint);
+    }
+
+    private void drawPaths(Canvas canvas, List<TouchData> data, int from, int to, Paint paint) {
+        for (int i=from; i < to; i++) {
+            TouchData touchData = data.get(i);
+            paint.setColor(touchData.mPathColor);
+            paint.setStrokeWidth(touchData.mPathThickness);
+            canvas.drawPath(touchData.mPath, paint);
+        }
+    }
+
+    private boolean ensureBitmap() {
+        if (mBitmap == null && mWidth > 0 && mHeight > 0) {
+            try {
+                mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+                mCanvas.setBitmap(mBitmap);
+                mDrawnCount = 0;
+                mLastDrawn = null;
+                mPartial = null;
+            } catch (OutOfMemoryError e) {
+                Log.w("PathLayer", "Not enough memory for the layer, drawing without it");
+                mWidth = mHeight = 0;
+            }
+        }
+        return mBitmap != null;
+    }
+}
@@ -0,0 +1,63 @@
+package fr.valentinporchet.romeo;
+
+import java.util.ArrayList;
+
+/**
+ * Addresses of the penpals, as written in the settings : one address, or several ones
+ * separated by commas or spaces when the drawings are shown on several phones.
+ * An address can give the port of the penpal after a colon ("192.168.1.2:8080"), when it
+ * doesn't use the default one.
+ */
+public final class Penpals {
+
+    private Penpals() {}
+
+    /**
+     * @param addresses the addresses written in the settings
+     * @return the addresses, without duplicates, in the order they were written
+     */
+    public static ArrayList<String> parse(String addresses) {
+        ArrayList<String> penpals = new ArrayList<>();
+        if (addresses == null) {
+            return penpals;
+        }
+        for (String address : addresses.split("[,;\\s]+")) {
+            if (!address.isEmpty() && !penpals.contains(address)) {
+                penpals.add(address);
+            }
+        }
+        return penpals;
+    }
+
+    /**
+     * @param address an address returned by parse()
+     * @return the host of the penpal, without the port
+     */
+    public static String getHost(String address) {
+        int colon = getPortColon(address);
+        return colon < 0 ? address : address.substring(0, colon);
+    }
+
+    /**
+     * @param address an address returned by parse()
+     * @param defaultPort port used if the address doesn't give one
+     * @return the port of the penpal
+     */
+    public static int getPort(String address, int defaultPort) {
+        int colon = getPortColon(address);
+        if (colon < 0) {
+            return defaultPort;
+        }
+        try {
+            return Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return defaultPort;
+        }
+    }
+
+    private static int getPortColon(String address) {
+        int colon = address.lastIndexOf(':');
+        // an IPv6 address has several colons, its port can't be given
+        return colon >= 0 && address.indexOf(':') == colon ? colon : -1;
+    }
+}
@@ -41,10 +41,12 @@ public class PopupView extends View {
 
     // variables for the path
     private Paint mPathPaint = new Paint();
+    private PathLayer mPathLayer = new PathLayer(); // bitmap with the finished paths
 
     // variables used for animation of paths
     private Path mSegment = new Path();
     private PathMeasure mPathMeasure = new PathMeasure();
+    private FrameScheduler mFrameScheduler = new FrameScheduler(this);
     private long mChrono = 0; // general chrono for animation
     private float mSegmentOfPathToDraw;
     private int mCount;
@@ -96,6 +98,8 @@ public class PopupView extends View {
                 // if an animation is ongoing, we wait until it's finished
                 if (!mIsAnimationDrawing) {
                     this.setVisibility(INVISIBLE);
+                    // the layer is not needed until the next popup
+                    mPathLayer.release();
                 }
                 break;
             }
@@ -118,46 +122,62 @@ public class PopupView extends View {
 
     /***************** DRAWING FUNCTIONS *****************/
 
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        // the layer must have the size of the view
+        mPathLayer.setSize(w, h);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mFrameScheduler.cancel();
+        mPathLayer.release();
+    }
+
     /*
      * Main drawing function
      */
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        mFrameScheduler.onFrame();
 
         // if we are drawing an animation
         if (mIsAnimationDrawing) {
             // we calculate the number of paths to draw depending on when we started the animation
-            long progress = java.lang.System.currentTimeMillis() - mChrono;
+            long progress = mFrameScheduler.getFrameTime() - mChrono;
             TouchData currentPath = mTouchData.get(mCurrentPath);
 
             // we update the progressBar
             mCurrentProgress = (long)(((progress - mMinProgress) / (float)(mMaxProgress - mMinProgress)) * 100);
             mDrawingProgressBar.setProgress((int) mCurrentProgress);
 
-            // if the time that passed is superior to the last amount we have to reach, then
-            // we are in a new step of the movement : we update the segment to draw with the value
-            // saved for this time in mTempPathLengths
-            if ((currentPath.mTimeForPaths.size() > mCount) && (progress > currentPath.mTimeForPaths.get(mCount))) {
-                mSegmentOfPathToDraw = currentPath.mTempPathLengths.get(mCount);
-                mCount++;
-            }
+            // we find the samples of the stroke reached at this time (even if frames were late),
+            // and update the segment to draw with the length interpolated between the samples
+            mCount = currentPath.mStroke.findSample(progress);
+            mSegmentOfPathToDraw = Math.max(mSegmentOfPathToDraw, currentPath.mStroke.getLengthAt(progress));
 
             // we draw the right amount of paths. Cast to int in order to avoid bugs
             // when the segment to draw is almost equal to the length of the path measure
             if ((int)mSegmentOfPathToDraw < (int)mPathMeasure.getLength()) {
-                // first we draw the previous finished paths (if there are any)
-                this.drawFinishedPaths(canvas);
-
-                // we apply the current color and thickness of last path
-                mPathPaint.setColor(currentPath.mPathColor);
-                mPathPaint.setStrokeWidth(currentPath.mPathThickness);
-
-                // then we draw the segment of the current animated path
-                mSegment.rewind(); // we empty the segment path
-                mPathMeasure.getSegment(0, mSegmentOfPathToDraw, mSegment, true); // we add the right path to the segment
-                mSegment.rLineTo(0, 0); // workaround for KITKAT and earlier versions, see the doc of getSegment()
-                canvas.drawPath(mSegment, mPathPaint); // we draw it
+                // the finished paths and the beginning of the current one are in the layer,
+                // where only the new part of the segment is added
+                if (!mPathLayer.drawBeginning(canvas, mTouchData, mCurrentPath, mSegmentOfPathToDraw, mPathPaint)) {
+                    // no layer : first we draw the previous finished paths (if there are any)
+                    this.drawFinishedPaths(canvas);
+
+                    // we apply the current color and thickness of last path
+                    mPathPaint.setColor(currentPath.mPathColor);
+                    mPathPaint.setStrokeWidth(currentPath.mPathThickness);
+
+                    // then we draw the segment of the current animated path
+                    mSegment.rewind(); // we empty the segment path
+                    mPathMeasure.getSegment(0, mSegmentOfPathToDraw, mSegment, true); // we add the right path to the segment
+                    mSegment.rLineTo(0, 0); // workaround for KITKAT and earlier versions, see the doc of getSegment()
+                    canvas.drawPath(mSegment, mPathPaint); // we draw it
+                }
             } else { // else the animation of the path is over
                 // if it's not the last path, we will draw the next one next time
                 if (mCurrentPath < mTouchData.size()-1) {
@@ -171,25 +191,35 @@ public class PopupView extends View {
                 } else { // else we finished to draw the whole animation
                     mIsAnimationDrawing = false;
                     mAnimationDone = true;
-                    for (TouchData touchData: mTouchData) {
-                        mPathPaint.setColor(touchData.mPathColor);
-                        mPathPaint.setStrokeWidth(touchData.mPathThickness);
-                        canvas.drawPath(touchData.mPath, mPathPaint);
-                    }
+                    this.drawAllPaths(canvas);
                     Log.i("PopupView", "Animation done.");
                     // we hide the progressBar
                     mDrawingProgressBar.setProgress(0);
                 }
             }
-            this.postInvalidate();
+            this.scheduleNextFrame();
         } else { // else we just draw the paths
-            if (!mTouchData.isEmpty()) {
-                for (TouchData touchData : mTouchData) {
-                    mPathPaint.setColor(touchData.mPathColor);
-                    mPathPaint.setStrokeWidth(touchData.mPathThickness);
-                    canvas.drawPath(touchData.mPath, mPathPaint);
-                }
-            }
+            this.drawAllPaths(canvas);
+        }
+    }
+
+    /**
+     * Request the next frame of the animation, only when there will be something new to draw :
+     * right away while the path grows between two samples or to go to the next path,
+     * else when the next sample of the current path is due
+     */
+    private void scheduleNextFrame() {
+        if (!mIsAnimationDrawing) {
+            mFrameScheduler.cancel();
+            return;
+        }
+        StrokeBuffer stroke = mTouchData.get(mCurrentPath).mStroke;
+        if (mCount == stroke.getSampleCount()
+                || (mCount > 0 && stroke.getLength(mCount) > stroke.getLength(mCount - 1))) {
+            mFrameScheduler.scheduleFrame();
+        } else {
+            // the sample is used when the progress is strictly greater than its time
+            mFrameScheduler.scheduleAt(mChrono + stroke.getTime(mCount) + 1);
         }
     }
 
@@ -198,11 +228,22 @@ public class PopupView extends View {
      * @param canvas Canvas in which we draw
      */
     private void drawFinishedPaths(Canvas canvas) {
-        for (int i=0; i < mCurrentPath; i++) {
-            // we set the color of the current path, and then we draw it
-            mPathPaint.setColor(mTouchData.get(i).mPathColor);
-            mPathPaint.setStrokeWidth(mTouchData.get(i).mPathThickness);
-            canvas.drawPath(mTouchData.get(i).mPath, mPathPaint);
+        // they are drawn only once in the layer, which is then copied on the canvas
+        mPathLayer.draw(canvas, mTouchData, mCurrentPath, mPathPaint);
+    }
+
+    /**
+     * Draw all the paths on the canvas. The last one can still be changing, so it's
+     * not drawn in the layer.
+     * @param canvas Canvas in which we draw
+     */
+    private void drawAllPaths(Canvas canvas) {
+        mPathLayer.draw(canvas, mTouchData, Math.max(0, mTouchData.size() - 1), mPathPaint);
+        if (!mTouchData.isEmpty()) {
+            TouchData last = mTouchData.get(mTouchData.size() - 1);
+            mPathPaint.setColor(last.mPathColor);
+            mPathPaint.setStrokeWidth(last.mPathThickness);
+            canvas.drawPath(last.mPath, mPathPaint);
         }
     }
 
@@ -213,6 +254,7 @@ public class PopupView extends View {
      */
     public void launchAnimation(ArrayList<TouchData> data) {
         mTouchData = new ArrayList<>(data);
+        mPathLayer.invalidate();
         // if there is no drawing, we display an error notification
         if (mTouchData.isEmpty()) {
             Toast.makeText(getContext(), "Error : no drawing to animate", Toast.LENGTH_LONG).show();
@@ -222,7 +264,7 @@ public class PopupView extends View {
             mIsAnimationDrawing = true;
 
             // and we start the chrono for the animation
-            mChrono = java.lang.System.currentTimeMillis();
+            mChrono = FrameScheduler.now();
             mPathMeasure = new PathMeasure(mTouchData.get(0).mPath, false);
 
             // and we initialize the number of paths to draw
@@ -233,7 +275,7 @@ public class PopupView extends View {
             // and get the value of the max time for animation
             TouchData last = mTouchData.get(mTouchData.size()-1);
             mMinProgress = 0;
-            mMaxProgress = last.mTimeForPaths.get(last.mTimeForPaths.size()-1);
+            mMaxProgress = last.mStroke.getTime(last.mStroke.getSampleCount()-1);
 
             this.postInvalidate();
         }
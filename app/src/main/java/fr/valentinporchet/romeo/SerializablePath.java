@@ -4,42 +4,98 @@ import android.graphics.Path;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
 
 /**
  * Credits : Rabie Jradi from StackOverflow
  * http://stackoverflow.com/questions/4919740/how-to-serialize-an-object-of-android-graphics-path
+ *
+ * The actions are stored in a StrokeBuffer (primitive arrays), which is also the
+ * one written by DrawingCodec. The serialization still writes the list of actions of
+ * the old versions, so that old and new phones can read each other's drawings.
  */
 public class SerializablePath extends Path implements Serializable {
 
     private static final long serialVersionUID = -5974912367682897467L;
 
-    private ArrayList<PathAction> actions = new ArrayList<>();
+    // serialized form of the old versions : the list of the ActionMove and ActionLine
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("actions", ArrayList.class)
+    };
+
+    private transient StrokeBuffer mStroke;
+
+    public SerializablePath() {
+        this(new StrokeBuffer());
+    }
+
+    /**
+     * Constructor of a path backed by the given buffer
+     * @param stroke buffer in which the actions are stored
+     */
+    public SerializablePath(StrokeBuffer stroke) {
+        mStroke = stroke;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ArrayList<PathAction> actions = new ArrayList<>(mStroke.getPointCount());
+        for (int i=0; i < mStroke.getPointCount(); i++) {
+            if (mStroke.isMove(i)) {
+                actions.add(new ActionMove(mStroke.getX(i), mStroke.getY(i)));
+            } else {
+                actions.add(new ActionLine(mStroke.getX(i), mStroke.getY(i)));
+            }
+        }
+        out.putFields().put("actions", actions);
+        out.writeFields();
+    }
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
-        in.defaultReadObject();
+        ArrayList<?> actions = (ArrayList<?>) in.readFields().get("actions", null);
+        mStroke = new StrokeBuffer();
+        if (actions != null) {
+            mStroke.ensurePointCapacity(actions.size());
+            for (Object action : actions) {
+                PathAction pathAction = (PathAction) action;
+                if (pathAction.getType() == PathAction.PathActionType.MOVE_TO) {
+                    mStroke.moveTo(pathAction.getX(), pathAction.getY());
+                } else {
+                    mStroke.lineTo(pathAction.getX(), pathAction.getY());
+                }
+            }
+        }
         drawThisPath();
     }
 
     @Override
     public void moveTo(float x, float y) {
-        actions.add(new ActionMove(x, y));
+        mStroke.moveTo(x, y);
         super.moveTo(x, y);
     }
 
     @Override
     public void lineTo(float x, float y){
-        actions.add(new ActionLine(x, y));
+        mStroke.lineTo(x, y);
         super.lineTo(x, y);
     }
 
+    /**
+     * Get the buffer in which the actions of this path are stored
+     * @return the buffer
+     */
+    public StrokeBuffer getStroke() {
+        return mStroke;
+    }
+
     private void drawThisPath(){
-        for(PathAction p : actions){
-            if(p.getType().equals(PathAction.PathActionType.MOVE_TO)){
-                super.moveTo(p.getX(), p.getY());
-            } else if(p.getType().equals(PathAction.PathActionType.LINE_TO)){
-                super.lineTo(p.getX(), p.getY());
+        for (int i=0; i < mStroke.getPointCount(); i++) {
+            if (mStroke.isMove(i)) {
+                super.moveTo(mStroke.getX(i), mStroke.getY(i));
+            } else {
+                super.lineTo(mStroke.getX(i), mStroke.getY(i));
             }
         }
     }
@@ -51,6 +107,7 @@ public class SerializablePath extends Path implements Serializable {
         public float getY();
     }
 
+    // only used by the serialization, with the serialVersionUID of the old versions
     public class ActionMove implements PathAction, Serializable{
         private static final long serialVersionUID = -7198142191254133295L;
 
@@ -104,4 +161,4 @@ public class SerializablePath extends Path implements Serializable {
         }
 
     }
-}
\ No newline at end of file
+}
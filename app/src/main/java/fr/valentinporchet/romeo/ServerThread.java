@@ -3,92 +3,91 @@ package fr.valentinporchet.romeo;
 import android.os.Handler;
 import android.util.Log;
 
-import java.io.ObjectInputStream;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Enumeration;
 
-public class ServerThread implements Runnable {
+/**
+ * Thread of the server receiving the drawings and the touch through positions of the
+ * penpal (see MessageServer). The received messages are given to the views on the UI thread,
+ * and the time they wait for it is recorded (see Latency).
+ */
+public class ServerThread implements Runnable, MessageServer.Listener {
     private String SERVER_ADDRESS = getLocalAddress();
-    private int SERVER_PORT = 8080;
     private Handler handler = new Handler();
-    private ServerSocket mServerSocket;
-    private ArrayList<TouchData> mReceived;
+    private MessageServer mServer;
     private TouchDisplayView mTouchView;
-    private boolean mStatus;
+    private TouchThroughView mTouchThroughView;
+    private volatile boolean mStatus;
 
-    public ServerThread(ServerSocket serverSocket, TouchDisplayView touchView, boolean userActive) {
+    public ServerThread(TouchDisplayView touchView, TouchThroughView touchThroughView, DrawingHistory history,
+                        boolean userActive) {
         super();
-        mServerSocket = serverSocket;
         mTouchView = touchView;
+        mTouchThroughView = touchThroughView;
         mStatus = userActive;
+        mServer = new MessageServer(MessageServer.PORT, MessageServer.LEGACY_TT_PORT, history, this);
     }
 
     @Override
     public void run() {
-        try {
-            if (SERVER_ADDRESS != null) {
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        Log.i("ServerHandler", "Listening on IP: " + SERVER_ADDRESS);
-                    }
-                });
-                mServerSocket = new ServerSocket(SERVER_PORT);
-                while (true) { // server will always be running
-                    // listen for incoming clients
-                    Socket client = mServerSocket.accept();
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            Log.i("ServerHandler", "Connected.");
-                        }
-                    });
+        if (SERVER_ADDRESS != null) {
+            Log.i("ServerHandler", "Listening on IP: " + SERVER_ADDRESS);
+            mServer.run(); // server will always be running
+        } else {
+            Log.i("ServerHandler", "Couldn't detect internet connection.");
+        }
+    }
 
-                    try {
-                        Log.v("ServerHandler", "Waiting...");
-                        ObjectInputStream in = new ObjectInputStream(client.getInputStream());
-                        mReceived = (ArrayList<TouchData>) in.readObject();
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                Log.i("ServerHandler", "New data received ! Animating...");
-                                // we launch the mReceived animation
-                                mTouchView.launchReceivedAnimation(mReceived, mStatus);
-                            }
-                        });
-                        in.close();
-                    } catch (Exception e) {
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                Log.i("ServerHandler", "Oops. Connection interrupted. Please reconnect your phones.");
-                            }
-                        });
-                        e.printStackTrace();
-                    }
-                }
-            } else {
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        Log.i("ServerHandler", "Couldn't detect internet connection.");
-                    }
-                });
+    @Override
+    public void onDrawingProgress(final long drawingId, final ArrayList<TouchData> paths, final long firstByteTime) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // the animation can start with the first paths
+                mTouchView.onReceivedDrawingProgress(drawingId, paths, firstByteTime, mStatus);
             }
-        } catch (Exception e) {
-            handler.post(new Runnable() {
-                @Override
-                public void run() {
-                    Log.i("ServerHandler", "Error");
-                }
-            });
-            e.printStackTrace();
-        }
+        });
+    }
+
+    @Override
+    public void onDrawingReceived(final long drawingId, final ArrayList<TouchData> drawing, final long firstByteTime) {
+        final long decodedTime = Latency.now();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Latency.get().record(Latency.DRAWING, Latency.UI_POST, Latency.now() - decodedTime);
+                Log.i("ServerHandler", "New data received ! Animating...");
+                // we launch the received animation
+                mTouchView.launchReceivedAnimation(drawingId, drawing, firstByteTime, mStatus);
+            }
+        });
+    }
+
+    @Override
+    public void onPositionsReceived(final TTData positions) {
+        final long decodedTime = Latency.now();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Latency.get().record(Latency.TOUCH_THROUGH, Latency.UI_POST, Latency.now() - decodedTime);
+                // we display the received positions
+                mTouchThroughView.getOtherPositions(positions);
+            }
+        });
+    }
+
+    @Override
+    public void onInkReceived(final LiveInk.Update update) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // we display the path being drawn by the penpal
+                mTouchView.onLiveInkReceived(update, mStatus);
+            }
+        });
     }
 
     /**
@@ -0,0 +1,277 @@
+package fr.valentinporchet.romeo;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Storage of one path in primitive arrays, instead of one object per point :
+ * - the points of the path (type of action, x and y)
+ * - the samples used by the animation (time of the event, and length of the path at this time)
+ * Arrays grow like an ArrayList, so adding an element is O(1) amortized.
+ * The length of the path is updated with each new line, so it's never measured again.
+ */
+public class StrokeBuffer implements Serializable {
+    private static final long serialVersionUID = 2684211317473029165L;
+
+    // types of the points
+    public static final byte TYPE_MOVE = 0;
+    public static final byte TYPE_LINE = 1;
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // points of the path
+    private transient byte[] mTypes;
+    private transient float[] mXs;
+    private transient float[] mYs;
+    private transient int mPointCount;
+
+    // length of the path, as measured by PathMeasure (first contour only)
+    private transient float mLength;
+    private transient boolean mIsLengthComplete;
+
+    // samples of the animation
+    private transient long[] mTimes;
+    private transient float[] mLengths;
+    private transient int mSampleCount;
+
+    public StrokeBuffer() {
+        mTypes = new byte[DEFAULT_CAPACITY];
+        mXs = new float[DEFAULT_CAPACITY];
+        mYs = new float[DEFAULT_CAPACITY];
+        mTimes = new long[DEFAULT_CAPACITY];
+        mLengths = new float[DEFAULT_CAPACITY];
+    }
+
+    /***************** POINTS *****************/
+
+    public void moveTo(float x, float y) {
+        addPoint(TYPE_MOVE, x, y);
+    }
+
+    public void lineTo(float x, float y) {
+        addPoint(TYPE_LINE, x, y);
+    }
+
+    private void addPoint(byte type, float x, float y) {
+        updateLength(type, x, y);
+        if (mPointCount == mTypes.length) {
+            growPoints(mPointCount + 1);
+        }
+        mTypes[mPointCount] = type;
+        mXs[mPointCount] = x;
+        mYs[mPointCount] = y;
+        mPointCount++;
+    }
+
+    /**
+     * Add the length of the new segment to the length of the path. Like PathMeasure,
+     * we only measure the first contour which has a length, and compute the length
+     * of a line in float precision.
+     */
+    private void updateLength(byte type, float x, float y) {
+        if (mIsLengthComplete || mPointCount == 0) {
+            return;
+        }
+        if (type == TYPE_MOVE) {
+            // a new contour begins : the first one is over if it has a length
+            mIsLengthComplete = mLength > 0;
+        } else {
+            float dx = x - mXs[mPointCount - 1];
+            float dy = y - mYs[mPointCount - 1];
+            mLength += (float) Math.sqrt(dx * dx + dy * dy);
+        }
+    }
+
+    /**
+     * Length of the path, equal to new PathMeasure(path, false).getLength(), but in O(1)
+     * @return the length of the first contour of the path
+     */
+    public float getLength() {
+        return mLength;
+    }
+
+    public int getPointCount() {
+        return mPointCount;
+    }
+
+    public byte getType(int index) {
+        return mTypes[checkPoint(index)];
+    }
+
+    public boolean isMove(int index) {
+        return getType(index) == TYPE_MOVE;
+    }
+
+    public float getX(int index) {
+        return mXs[checkPoint(index)];
+    }
+
+    public float getY(int index) {
+        return mYs[checkPoint(index)];
+    }
+
+    /**
+     * Make sure that the given number of points can be added without reallocation
+     * @param capacity number of points
+     */
+    public void ensurePointCapacity(int capacity) {
+        if (capacity > mTypes.length) {
+            growPoints(capacity);
+        }
+    }
+
+    private void growPoints(int minCapacity) {
+        int capacity = Math.max(minCapacity, Math.max(DEFAULT_CAPACITY, mTypes.length + (mTypes.length >> 1)));
+        mTypes = Arrays.copyOf(mTypes, capacity);
+        mXs = Arrays.copyOf(mXs, capacity);
+        mYs = Arrays.copyOf(mYs, capacity);
+    }
+
+    private int checkPoint(int index) {
+        if (index < 0 || index >= mPointCount) {
+            throw new IndexOutOfBoundsException("Point " + index + " of " + mPointCount);
+        }
+        return index;
+    }
+
+    /***************** SAMPLES *****************/
+
+    /**
+     * Add a sample for the animation
+     * @param time time of the event, from the beginning of the drawing
+     * @param length length of the path at this time
+     */
+    public void addSample(long time, float length) {
+        if (mSampleCount == mTimes.length) {
+            growSamples(mSampleCount + 1);
+        }
+        mTimes[mSampleCount] = time;
+        mLengths[mSampleCount] = length;
+        mSampleCount++;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    public long getTime(int index) {
+        return mTimes[checkSample(index)];
+    }
+
+    public float getLength(int index) {
+        return mLengths[checkSample(index)];
+    }
+
+    /**
+     * Find how many samples are reached at the given time, with a binary search
+     * (the times of the samples are in increasing order)
+     * @param time time from the beginning of the drawing
+     * @return the number of samples whose time is strictly before the given time
+     */
+    public int findSample(long time) {
+        int low = 0, high = mSampleCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mTimes[middle] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Length of the path drawn at the given time, interpolated between the two samples
+     * around this time, so that the animation moves at each frame and not only at each sample
+     * @param time time from the beginning of the drawing
+     * @return 0 before the first sample, the last length after the last one
+     */
+    public float getLengthAt(long time) {
+        int next = findSample(time);
+        if (next == 0) {
+            return 0;
+        }
+        if (next == mSampleCount) {
+            return mLengths[next - 1];
+        }
+        long previousTime = mTimes[next - 1];
+        float previousLength = mLengths[next - 1];
+        // previousTime < time <= mTimes[next], so there is no division by zero
+        float ratio = (time - previousTime) / (float) (mTimes[next] - previousTime);
+        return previousLength + (mLengths[next] - previousLength) * ratio;
+    }
+
+    /**
+     * Make sure that the given number of samples can be added without reallocation
+     * @param capacity number of samples
+     */
+    public void ensureSampleCapacity(int capacity) {
+        if (capacity > mTimes.length) {
+            growSamples(capacity);
+        }
+    }
+
+    private void growSamples(int minCapacity) {
+        int capacity = Math.max(minCapacity, Math.max(DEFAULT_CAPACITY, mTimes.length + (mTimes.length >> 1)));
+        mTimes = Arrays.copyOf(mTimes, capacity);
+        mLengths = Arrays.copyOf(mLengths, capacity);
+    }
+
+    private int checkSample(int index) {
+        if (index < 0 || index >= mSampleCount) {
+            throw new IndexOutOfBoundsException("Sample " + index + " of " + mSampleCount);
+        }
+        return index;
+    }
+
+    /***************** SERIALIZATION *****************/
+
+    // only the used part of the arrays is written
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        int pointCount = mPointCount, sampleCount = mSampleCount;
+        out.writeInt(pointCount);
+        out.writeObject(Arrays.copyOf(mTypes, pointCount));
+        out.writeObject(Arrays.copyOf(mXs, pointCount));
+        out.writeObject(Arrays.copyOf(mYs, pointCount));
+        out.writeInt(sampleCount);
+        out.writeObject(Arrays.copyOf(mTimes, sampleCount));
+        out.writeObject(Arrays.copyOf(mLengths, sampleCount));
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        mPointCount = in.readInt();
+        mTypes = (byte[]) in.readObject();
+        mXs = (float[]) in.readObject();
+        mYs = (float[]) in.readObject();
+        mSampleCount = in.readInt();
+        mTimes = (long[]) in.readObject();
+        mLengths = (float[]) in.readObject();
+        if (mPointCount < 0 || mTypes.length != mPointCount || mXs.length != mPointCount || mYs.length != mPointCount
+                || mSampleCount < 0 || mTimes.length != mSampleCount || mLengths.length != mSampleCount) {
+            throw new IOException("Invalid stroke");
+        }
+
+        // we measure the path again, as the length is not serialized
+        int pointCount = mPointCount;
+        mPointCount = 0;
+        while (mPointCount < pointCount) {
+            updateLength(mTypes[mPointCount], mXs[mPointCount], mYs[mPointCount]);
+            mPointCount++;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StrokeBuffer{" +
+                "points=" + mPointCount +
+                ", times=" + Arrays.toString(Arrays.copyOf(mTimes, mSampleCount)) +
+                ", lengths=" + Arrays.toString(Arrays.copyOf(mLengths, mSampleCount)) +
+                '}';
+    }
+}
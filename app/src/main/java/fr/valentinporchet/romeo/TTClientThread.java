@@ -2,52 +2,286 @@ package fr.valentinporchet.romeo;
 
 import android.util.Log;
 
-import java.io.ObjectOutputStream;
-import java.lang.reflect.Array;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.ArrayList;
 
+/**
+ * Long-lived connection to the touch through server of the penpal. All the
+ * positions are sent as frames on the same socket, which is reopened when broken.
+ * Only the newest positions are sent : if the network is slower than the touch events,
+ * the positions not sent yet are replaced, so the penpal never sees old positions.
+ * In datagram mode, the positions are sent in UDP datagrams instead (see TTDatagrams) :
+ * a lost datagram is not sent again, so it doesn't delay the next positions. Only the
+ * empty positions are sent again a few times, until newer ones are given (see TTDatagrams).
+ * The positions are encoded once by the caller (see Packet), so the same bytes can be
+ * given to the threads of several penpals (see TTFanOut).
+ */
 public class TTClientThread implements Runnable {
 
     private static int SOCKET_TIMEOUT = 5000;
-    private boolean connected = false;
-    private String SERVER_ADDRESS = "192.168.1.1"; // default value
-    private int SERVER_PORT = 8181;
+    private static final long RECONNECT_DELAY_MIN = 250; // in ms
+    private static final long RECONNECT_DELAY_MAX = 5000; // in ms
+    private volatile boolean mRunning = true;
+    private volatile String SERVER_ADDRESS = "192.168.1.1"; // default value
+    private int SERVER_PORT = MessageServer.PORT; // same server as the drawings
     private Socket socket;
-    private InetAddress serverAddr;
-    private TTData mDataToSend;
+    private DataOutputStream mOut;
+    private long mReconnectDelay = RECONNECT_DELAY_MIN;
+    private FrameMailbox<Packet> mMailbox = new FrameMailbox<>();
+    private volatile long mSentCount;
 
-    public TTClientThread(TTData data, String serverIP) {
-        mDataToSend = data;
+    // datagram mode
+    private volatile boolean mUseDatagrams = false;
+    private DatagramSocket mDatagramSocket;
+    private InetAddress mDatagramAddress; // address of the penpal, resolved once
+
+    /**
+     * Positions encoded for the network, in a frame or in a datagram
+     */
+    public static final class Packet {
+        final byte[] mBytes;
+        final boolean mIsDatagram;
+        final boolean mIsEmpty; // no finger on the screen
+
+        private Packet(byte[] bytes, boolean isDatagram, boolean isEmpty) {
+            mBytes = bytes;
+            mIsDatagram = isDatagram;
+            mIsEmpty = isEmpty;
+        }
+
+        /**
+         * Encode positions
+         * @param data the positions
+         * @param isDatagram true for a datagram (see TTDatagrams), false for a frame (see Frames)
+         * @param session random number of the sender, for the datagrams
+         * @param sequence number of the positions, increasing (see Latency)
+         * @return the encoded positions, or null if they don't fit in a datagram
+         */
+        public static Packet encode(TTData data, boolean isDatagram, int session, int sequence) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            try {
+                if (isDatagram) {
+                    TTDatagrams.write(out, session, sequence, data);
+                    if (buffer.size() > TTDatagrams.MAX_DATAGRAM_LENGTH) {
+                        Log.w("TTClientActivity", "C: Too many positions for a datagram, not sent");
+                        return null;
+                    }
+                } else {
+                    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                    DataOutputStream payloadOut = new DataOutputStream(payload);
+                    data.writeTo(payloadOut);
+                    Latency.Stamp.write(payloadOut, sequence); // ignored by old receivers
+                    Frames.write(out, Frames.TYPE_TT_DATA, payload.toByteArray(), payload.size());
+                }
+            } catch (IOException e) {
+                return null; // never for a ByteArrayOutputStream
+            }
+            return new Packet(buffer.toByteArray(), isDatagram, data.isEmpty());
+        }
+    }
+
+    public TTClientThread(String serverIP) {
+        this(serverIP, MessageServer.PORT);
+    }
+
+    /**
+     * @param serverIP address of the penpal
+     * @param serverPort port of the penpal
+     */
+    public TTClientThread(String serverIP, int serverPort) {
         SERVER_ADDRESS = serverIP;
+        SERVER_PORT = serverPort;
+    }
+
+    /**
+     * Give positions to send to the penpal. If the previous ones weren't sent yet, they
+     * are dropped, as positions are only useful when they are recent.
+     * @param packet the encoded positions, shared with other threads
+     */
+    public void send(Packet packet) {
+        mMailbox.put(packet);
+    }
+
+    /**
+     * @return the number of positions given to send()
+     */
+    public long getQueuedCount() {
+        return mMailbox.getPutCount();
+    }
+
+    /**
+     * @return the number of positions replaced by newer ones before being sent
+     */
+    public long getDroppedCount() {
+        return mMailbox.getDroppedCount();
+    }
+
+    /**
+     * @return the number of positions sent to the penpal
+     */
+    public long getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * Change the address of the penpal. The current connection is closed, and the
+     * next data will be sent to the new address.
+     * @param serverIP new address
+     */
+    public void setServerIP(String serverIP) {
+        SERVER_ADDRESS = serverIP;
+        closeSocket();
+    }
+
+    /**
+     * Choose how the positions are sent
+     * @param useDatagrams true to send them in UDP datagrams, false on a TCP connection
+     */
+    public void setUseDatagrams(boolean useDatagrams) {
+        mUseDatagrams = useDatagrams;
+        closeSocket();
+    }
+
+    /**
+     * Stop the thread and close the connection. The thread running this
+     * runnable must also be interrupted if it is waiting for data.
+     */
+    public void stop() {
+        mRunning = false;
+        closeSocket();
     }
 
     @Override
     public void run() {
-        try {
-            serverAddr = InetAddress.getByName(SERVER_ADDRESS);
-            Log.d("TTClientActivity", "C: Connecting to ..." + SERVER_ADDRESS);
-            socket = new Socket();
-            socket.connect(new InetSocketAddress(serverAddr, SERVER_PORT), SOCKET_TIMEOUT);
-            connected = true;
-
-            while (connected) {
+        Packet lastPacket = null;
+        int repeatsLeft = 0; // number of times the last empty datagram is still sent again
+        while (mRunning) {
+            Packet packet;
+            try {
+                packet = repeatsLeft > 0 ? mMailbox.poll(TTDatagrams.EMPTY_REPEAT_INTERVAL) : mMailbox.take();
+            } catch (InterruptedException e) {
+                break; // we were asked to stop
+            }
+            boolean isRepeat = packet == null;
+            if (isRepeat) { // no newer positions, the empty ones are sent again
+                packet = lastPacket;
+                repeatsLeft--;
+            } else {
+                lastPacket = packet;
+                repeatsLeft = packet.mIsDatagram && packet.mIsEmpty ? TTDatagrams.EMPTY_REPEAT_COUNT : 0;
+            }
+
+            try {
+                if (packet.mIsDatagram) {
+                    sendDatagram(packet.mBytes);
+                } else {
+                    // the frame is sent on the opened connection
+                    DataOutputStream out = getOutputStream();
+                    out.write(packet.mBytes);
+                    out.flush();
+                }
+                if (!isRepeat) {
+                    mSentCount++; // only written by this thread
+                }
+                mReconnectDelay = RECONNECT_DELAY_MIN;
+            } catch (IOException e) {
+                Log.e("TTClientActivity", "C: Error", e);
+                closeSocket();
+                if (!packet.mIsDatagram && !mUseDatagrams) {
+                    // the frame is sent again on the new connection, unless newer positions replace it
+                    mMailbox.putBack(packet);
+                }
+                // we wait a bit before reconnecting, longer and longer while it fails
                 try {
-                    Log.d("TTClientActivity", "C: Sending data.");
-                    ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                    out.writeObject(mDataToSend);
-                    out.close();
-                    connected = false;
-                    Log.d("TTClientActivity", "C: Sent.");
-                } catch (Exception e) {
-                    Log.e("TTClientActivity", "S: Error", e);
+                    Thread.sleep(mReconnectDelay);
+                } catch (InterruptedException e1) {
+                    break;
                 }
+                mReconnectDelay = Math.min(mReconnectDelay * 2, RECONNECT_DELAY_MAX);
             }
-        } catch (Exception e) {
-            Log.e("TTClientActivity", "C: Error", e);
-            connected = false;
         }
+        closeSocket();
+        Log.d("TTClientActivity", "C: Closed. Sent " + mSentCount + " of " + getQueuedCount()
+                + " positions, " + getDroppedCount() + " replaced by newer ones.");
+    }
+
+    /**
+     * Send the positions in one datagram
+     * @param datagram the encoded positions
+     * @throws IOException if the datagram couldn't be sent
+     */
+    private void sendDatagram(byte[] datagram) throws IOException {
+        DatagramSocket socket;
+        InetAddress address;
+        synchronized (this) {
+            if (mDatagramSocket == null) {
+                mDatagramSocket = new DatagramSocket();
+                mDatagramAddress = null;
+            }
+            socket = mDatagramSocket;
+            address = mDatagramAddress;
+        }
+        if (address == null) {
+            address = InetAddress.getByName(SERVER_ADDRESS);
+            synchronized (this) {
+                if (mDatagramSocket == socket) { // else the address changed meanwhile
+                    mDatagramAddress = address;
+                }
+            }
+        }
+        socket.send(new DatagramPacket(datagram, datagram.length, address, SERVER_PORT));
+    }
+
+    /**
+     * Get the stream of the current connection, and open a new one if needed
+     * @return the stream on which we write the frames
+     * @throws IOException if the connection failed
+     */
+    private DataOutputStream getOutputStream() throws IOException {
+        synchronized (this) {
+            if (mOut != null) {
+                return mOut;
+            }
+        }
+        InetAddress serverAddr = InetAddress.getByName(SERVER_ADDRESS);
+        Log.d("TTClientActivity", "C: Connecting to ..." + SERVER_ADDRESS);
+        Socket newSocket = new Socket();
+        newSocket.setTcpNoDelay(true); // positions are small, we don't want to wait for more
+        newSocket.connect(new InetSocketAddress(serverAddr, SERVER_PORT), SOCKET_TIMEOUT);
+        Log.d("TTClientActivity", "C: Connected.");
+        synchronized (this) {
+            if (!mRunning) { // we were stopped while connecting
+                newSocket.close();
+                throw new IOException("Client stopped");
+            }
+            socket = newSocket;
+            mOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            return mOut;
+        }
+    }
+
+    private synchronized void closeSocket() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e("TTClientActivity", "C: Error while closing", e);
+            }
+        }
+        socket = null;
+        mOut = null;
+        if (mDatagramSocket != null) {
+            mDatagramSocket.close();
+        }
+        mDatagramSocket = null;
+        mDatagramAddress = null;
     }
 }
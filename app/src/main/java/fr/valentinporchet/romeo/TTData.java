@@ -1,5 +1,8 @@
 package fr.valentinporchet.romeo;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -8,6 +11,9 @@ import java.util.Iterator;
  * Created by Valentin on 25/01/2016.
  */
 public class TTData implements Serializable, Iterable<TTData.Position> {
+    // the one computed for the old versions, which had no serialVersionUID
+    private static final long serialVersionUID = 3203060627155987918L;
+
     // little class for position storage
     public class Position implements Serializable {
         public float x; public float y;
@@ -19,12 +25,26 @@ public class TTData implements Serializable, Iterable<TTData.Position> {
 
     private ArrayList<Position> mPositions;
     private int mColor;
+    private transient Latency.Stamp mStamp; // of the received positions
 
     public TTData() {
         mPositions = new ArrayList<>();
         mColor = 0xFF000000;
     }
 
+    /**
+     * Copy constructor, used to send a snapshot of the positions while the
+     * original one keeps being updated by the touch events
+     * @param other data to copy
+     */
+    public TTData(TTData other) {
+        mPositions = new ArrayList<>(other.size());
+        for (Position p : other) {
+            add(p.x, p.y);
+        }
+        mColor = other.mColor;
+    }
+
     // METHODS FOR ITERABLE
     public Iterator<Position> iterator() {
         Iterator<Position> itPos = mPositions.iterator();
@@ -60,4 +80,47 @@ public class TTData implements Serializable, Iterable<TTData.Position> {
     public int getColor() {
         return mColor;
     }
+
+    // METHODS FOR LATENCY
+    /**
+     * @return the stamp of the received positions, or null if the sender didn't give one
+     */
+    public Latency.Stamp getStamp() {
+        return mStamp;
+    }
+
+    public void setStamp(Latency.Stamp stamp) {
+        mStamp = stamp;
+    }
+
+    // METHODS FOR NETWORK FRAMES
+    /**
+     * Write the data in a compact way : color, number of positions, then the positions
+     * @param out stream on which we write
+     * @throws IOException if the stream is broken
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(mColor);
+        out.writeShort(mPositions.size());
+        for (Position p : mPositions) {
+            out.writeFloat(p.x);
+            out.writeFloat(p.y);
+        }
+    }
+
+    /**
+     * Read data written by writeTo()
+     * @param in stream from which we read
+     * @return the read data
+     * @throws IOException if the stream is broken
+     */
+    public static TTData readFrom(DataInputStream in) throws IOException {
+        TTData data = new TTData();
+        data.setColor(in.readInt());
+        int size = in.readUnsignedShort();
+        for (int i=0; i < size; i++) {
+            data.add(in.readFloat(), in.readFloat());
+        }
+        return data;
+    }
 }
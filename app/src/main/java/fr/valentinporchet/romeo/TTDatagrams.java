@@ -0,0 +1,90 @@
+package fr.valentinporchet.romeo;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Format of the touch through positions sent in UDP datagrams, one datagram per positions :
+ * [magic (2 bytes)][session (4 bytes)][sequence (4 bytes)][TTData][stamp (see Latency)]
+ * Datagrams can be lost or arrive out of order : the sequence number lets the receiver
+ * ignore positions older than the ones it displays. The session is chosen randomly by
+ * each sender, so that the sequence of a restarted sender is not compared to the old one.
+ * The empty positions sent when the fingers are up are sent again a few times (see
+ * TTClientThread) : if they were lost, the old positions would stay on the penpal's screen.
+ * The copies have the same sequence, so the receiver ignores them once one arrived.
+ */
+public final class TTDatagrams {
+    private static final short MAGIC = 0x5454; // "TT"
+
+    // a datagram bigger than this could be fragmented
+    public static final int MAX_DATAGRAM_LENGTH = 1400;
+
+    // the empty positions are sent again this number of times, if there are no newer ones
+    public static final int EMPTY_REPEAT_COUNT = 3;
+    public static final long EMPTY_REPEAT_INTERVAL = 40; // in ms
+
+    private TTDatagrams() {}
+
+    /**
+     * Write the datagram of positions
+     * @param out stream on which we write
+     * @param session session of the sender
+     * @param sequence number of the positions in the session
+     * @param data positions
+     * @throws IOException if the stream is broken
+     */
+    public static void write(DataOutputStream out, int session, int sequence, TTData data) throws IOException {
+        out.writeShort(MAGIC);
+        out.writeInt(session);
+        out.writeInt(sequence);
+        data.writeTo(out);
+        Latency.Stamp.write(out, sequence);
+    }
+
+    /**
+     * Receiver of the datagrams of one penpal, which only keeps the newest positions
+     */
+    public static class Receiver {
+        private boolean mHasReceived = false;
+        private int mSession;
+        private int mLastSequence;
+        private long mStaleCount;
+
+        /**
+         * Read a received datagram
+         * @param datagram content of the datagram
+         * @param length length of the datagram
+         * @return the positions, or null if they are older than the last returned ones
+         * @throws IOException if the datagram is not valid
+         */
+        public TTData read(byte[] datagram, int length) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(datagram, 0, length));
+            if (in.readShort() != MAGIC) {
+                throw new IOException("Not a touch through datagram");
+            }
+            int session = in.readInt();
+            int sequence = in.readInt();
+            TTData data = TTData.readFrom(in);
+            data.setStamp(Latency.Stamp.read(in));
+
+            // the difference is used so that the sequence can wrap around
+            if (mHasReceived && session == mSession && sequence - mLastSequence <= 0) {
+                mStaleCount++;
+                return null;
+            }
+            mHasReceived = true;
+            mSession = session;
+            mLastSequence = sequence;
+            return data;
+        }
+
+        /**
+         * @return the number of datagrams ignored because they were too old
+         */
+        public long getStaleCount() {
+            return mStaleCount;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package fr.valentinporchet.romeo;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+/**
+ * Sends our touch through positions to all the penpals. The positions are encoded once,
+ * and the same bytes are given to the thread of each penpal (see TTClientThread). Each
+ * thread only keeps the newest positions : a slow penpal only misses positions, it
+ * doesn't delay the others. Only used by the UI thread.
+ */
+public class TTFanOut {
+    // the penpals see one sender : one session, one sequence of datagrams
+    private final int mSession = new Random().nextInt();
+    private int mSequence = 0;
+    private boolean mUseDatagrams = false;
+    private boolean mIsStarted = false;
+    private ArrayList<String> mAddresses = new ArrayList<>();
+    private LinkedHashMap<String, TTClientThread> mClients = new LinkedHashMap<>();
+    private LinkedHashMap<String, Thread> mThreads = new LinkedHashMap<>();
+
+    /**
+     * Change the penpals. The threads of the penpals still there are kept.
+     * @param addresses addresses of the penpals (see Penpals)
+     */
+    public void setAddresses(String addresses) {
+        mAddresses = Penpals.parse(addresses);
+        if (!mIsStarted) {
+            return;
+        }
+        for (String address : new ArrayList<>(mClients.keySet())) {
+            if (!mAddresses.contains(address)) {
+                stopClient(address);
+            }
+        }
+        startClients();
+    }
+
+    /**
+     * Choose how the positions are sent
+     * @param useDatagrams true to send them in UDP datagrams, false on TCP connections
+     */
+    public void setUseDatagrams(boolean useDatagrams) {
+        mUseDatagrams = useDatagrams;
+        for (TTClientThread client : mClients.values()) {
+            client.setUseDatagrams(useDatagrams);
+        }
+    }
+
+    /**
+     * Start the threads sending to the penpals
+     */
+    public void start() {
+        mIsStarted = true;
+        startClients();
+    }
+
+    /**
+     * Stop the threads and close their connections
+     */
+    public void stop() {
+        mIsStarted = false;
+        for (String address : new ArrayList<>(mClients.keySet())) {
+            stopClient(address);
+        }
+    }
+
+    public boolean isStarted() {
+        return mIsStarted;
+    }
+
+    /**
+     * Send positions to all the penpals
+     * @param data the positions, which can be modified once this returns
+     */
+    public void send(TTData data) {
+        if (mClients.isEmpty()) {
+            return;
+        }
+        TTClientThread.Packet packet = TTClientThread.Packet.encode(data, mUseDatagrams, mSession, ++mSequence);
+        if (packet == null) {
+            return;
+        }
+        for (TTClientThread client : mClients.values()) {
+            client.send(packet);
+        }
+    }
+
+    /**
+     * @return the number of positions replaced by newer ones before being sent, for all the penpals
+     */
+    public long getDroppedCount() {
+        long count = 0;
+        for (TTClientThread client : mClients.values()) {
+            count += client.getDroppedCount();
+        }
+        return count;
+    }
+
+    private void startClients() {
+        for (String address : mAddresses) {
+            if (!mClients.containsKey(address)) {
+                TTClientThread client = new TTClientThread(Penpals.getHost(address),
+                        Penpals.getPort(address, MessageServer.PORT));
+                client.setUseDatagrams(mUseDatagrams);
+                Thread thread = new Thread(client);
+                thread.start();
+                mClients.put(address, client);
+                mThreads.put(address, thread);
+            }
+        }
+    }
+
+    private void stopClient(String address) {
+        mClients.remove(address).stop();
+        mThreads.remove(address).interrupt();
+    }
+}
@@ -1,5 +1,9 @@
 package fr.valentinporchet.romeo;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.UUID;
@@ -8,10 +12,24 @@ import java.util.UUID;
  * Class used to store data about touch events (one path)
  */
 public class TouchData implements Serializable {
-    // As Path is not Serializable, we use a custom class
-    public SerializablePath mPath = new SerializablePath();
-    public ArrayList<Float> mTempPathLengths = new ArrayList<>();
-    public ArrayList<Long> mTimeForPaths = new ArrayList<>();
+    // the one computed for the old versions, which had no serialVersionUID
+    private static final long serialVersionUID = -1567588237042539284L;
+
+    // serialized form of the old versions, which still send serialized drawings :
+    // the samples are written as two lists
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("mPath", SerializablePath.class),
+            new ObjectStreamField("mTempPathLengths", ArrayList.class),
+            new ObjectStreamField("mTimeForPaths", ArrayList.class),
+            new ObjectStreamField("mPathColor", int.class),
+            new ObjectStreamField("mPathThickness", float.class),
+            new ObjectStreamField("uuid", UUID.class)
+    };
+
+    // points, times and lengths of the path, stored in primitive arrays
+    public StrokeBuffer mStroke = new StrokeBuffer();
+    // As Path is not Serializable, we use a custom class, backed by mStroke
+    public SerializablePath mPath = new SerializablePath(mStroke);
     public int mPathColor;
     public float mPathThickness;
     public UUID uuid;
@@ -20,12 +38,58 @@ public class TouchData implements Serializable {
         uuid = UUID.randomUUID();
     }
 
+    /**
+     * Constructor used when we rebuild received data
+     * @param uuid identifier of the path
+     */
+    public TouchData(UUID uuid) {
+        this.uuid = uuid;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ArrayList<Float> lengths = new ArrayList<>(mStroke.getSampleCount());
+        ArrayList<Long> times = new ArrayList<>(mStroke.getSampleCount());
+        for (int i=0; i < mStroke.getSampleCount(); i++) {
+            lengths.add(mStroke.getLength(i));
+            times.add(mStroke.getTime(i));
+        }
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("mPath", mPath);
+        fields.put("mTempPathLengths", lengths);
+        fields.put("mTimeForPaths", times);
+        fields.put("mPathColor", mPathColor);
+        fields.put("mPathThickness", mPathThickness);
+        fields.put("uuid", uuid);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        mPath = (SerializablePath) fields.get("mPath", null);
+        if (mPath == null) {
+            mStroke = new StrokeBuffer();
+            mPath = new SerializablePath(mStroke);
+        } else {
+            mStroke = mPath.getStroke();
+        }
+        ArrayList<?> lengths = (ArrayList<?>) fields.get("mTempPathLengths", null);
+        ArrayList<?> times = (ArrayList<?>) fields.get("mTimeForPaths", null);
+        if (lengths != null && times != null) {
+            int sampleCount = Math.min(lengths.size(), times.size());
+            mStroke.ensureSampleCapacity(sampleCount);
+            for (int i=0; i < sampleCount; i++) {
+                mStroke.addSample((Long) times.get(i), (Float) lengths.get(i));
+            }
+        }
+        mPathColor = fields.get("mPathColor", 0);
+        mPathThickness = fields.get("mPathThickness", 0.f);
+        uuid = (UUID) fields.get("uuid", null);
+    }
+
     @Override
     public String toString() {
         return "TouchData{" +
-                "mPath=" + mPath +
-                ", mTempPathLengths=" + mTempPathLengths +
-                ", mTimeForPaths=" + mTimeForPaths +
+                "mStroke=" + mStroke +
                 ", mPathColor=" + mPathColor +
                 ", mPathThickness=" + mPathThickness +
                 ", uuid=" + uuid +
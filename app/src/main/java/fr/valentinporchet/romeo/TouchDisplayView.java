@@ -26,6 +26,8 @@ public class TouchDisplayView extends View {
     private final float DEFAULT_THICKNESS = 15.f;
     private final float MAX_TIME_THICKNESS = 1.f;
     private final long MOVE_TIME_MINIMUM = 30; // minimum time between two moves (in ms)
+    private final long RECEIVE_TIMEOUT = 10000; // maximum time waiting for the next received paths (in ms)
+    private final long LIVE_INK_TIMEOUT = 30000; // time the live paths stay without news of the penpal (in ms)
 
     /**
      * Private variables
@@ -38,15 +40,42 @@ public class TouchDisplayView extends View {
 
     // containers of paths to draw and to animate
     private ArrayList<TouchData> mTouchData = new ArrayList<>();
-    private ArrayList<TouchData> mTempReceivedData = new ArrayList<>();
+    private Inbox mInbox; // received drawings waiting to be seen, created with the first one
+
+    // live ink : paths being drawn by the penpal, and our paths sent while we draw them
+    private ArrayList<TouchData> mLiveInk = new ArrayList<>();
+    private boolean mIsLiveInkEnded = false;
+    private LiveInkSender mLiveInkSender;
+    // the penpal may stop before the end of the drawing : its paths are then removed
+    private Runnable mLiveInkExpiry = new Runnable() {
+        @Override
+        public void run() {
+            Log.i("TouchDisplayView", "Live paths expired");
+            mLiveInk.clear();
+            mIsLiveInkEnded = false;
+            invalidate();
+        }
+    };
+
+    // drawing animated while it's received : its next paths are still coming
+    private boolean mIsReceiving = false;
+    private long mReceivingId; // number of this drawing (see MessageServer.Listener)
+    private boolean mIsWaitingForPaths = false; // the animation reached the last received path
+    private long mWaitingSince;
+    // time to first ink : from the first byte of the drawing received to the first frame of its animation
+    private long mFirstByteTime = -1;
+    private long mTimeToFirstInk = -1;
+    private long mReceivedTime = -1; // when the last received drawing was handled, until it's drawn (see Latency)
 
     // variables for the path
     private Paint mPathPaint = new Paint();
+    private PathLayer mPathLayer = new PathLayer(); // bitmap with the finished paths
     private int mLastSelectedColor = 0xFF242424; // black by default
 
     // variables used for animation of paths
     private Path mSegment = new Path();
     private PathMeasure mPathMeasure = new PathMeasure();
+    private FrameScheduler mFrameScheduler = new FrameScheduler(this);
     private long mChrono = 0, mTouchChrono = 0, mMoveChrono = 0; // general chrono for animation, and chrono for thickness of the path
     private ProgressBar mDrawingProgressBar;
     private long mMinProgress, mCurrentProgress, mMaxProgress; // used for progressBar. min is useful for responses
@@ -141,6 +170,12 @@ public class TouchDisplayView extends View {
             }
         }
 
+        // we send the new points of the path to the penpal, once per event
+        if (mLiveInkSender != null && !mIsAnimationDrawing && !mTouchData.isEmpty()) {
+            mLiveInkSender.flush(mTouchData.get(mTouchData.size() - 1),
+                    (action & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_UP);
+        }
+
         // trigger redraw on UI thread
         this.postInvalidate();
         return true;
@@ -160,7 +195,7 @@ public class TouchDisplayView extends View {
             mAnimationDone = false;
 
             // we initialize the chrono
-            mChrono = java.lang.System.currentTimeMillis();
+            mChrono = FrameScheduler.now();
         }
 
         // we add a new touchdata
@@ -204,11 +239,10 @@ public class TouchDisplayView extends View {
         // and we update the current path
 
         // just add a line toward the new position
-        mTouchData.get(mTouchData.size()-1).mPath.lineTo(x, y);
-        // and the time of the event
-        mTouchData.get(mTouchData.size()-1).mTimeForPaths.add(java.lang.System.currentTimeMillis() - mChrono);
-        // and the current length of the path
-        mTouchData.get(mTouchData.size()-1).mTempPathLengths.add(new PathMeasure(mTouchData.get(mTouchData.size()-1).mPath, false).getLength());
+        TouchData current = mTouchData.get(mTouchData.size()-1);
+        current.mPath.lineTo(x, y);
+        // and the time of the event, with the current length of the path (updated by lineTo)
+        current.mStroke.addSample(FrameScheduler.now() - mChrono, current.mStroke.getLength());
     }
 
     /**
@@ -224,9 +258,9 @@ public class TouchDisplayView extends View {
             mTouchData.get(mTouchData.size()-1).mPathThickness = DEFAULT_THICKNESS * DENSITY;
 
             // add a new little line
-            mTouchData.get(mTouchData.size()-1).mPath.lineTo(x+1, y+1);
-            mTouchData.get(mTouchData.size()-1).mTimeForPaths.add(java.lang.System.currentTimeMillis() - mChrono);
-            mTouchData.get(mTouchData.size() - 1).mTempPathLengths.add(new PathMeasure(mTouchData.get(mTouchData.size() - 1).mPath, false).getLength());
+            TouchData current = mTouchData.get(mTouchData.size()-1);
+            current.mPath.lineTo(x+1, y+1);
+            current.mStroke.addSample(FrameScheduler.now() - mChrono, current.mStroke.getLength());
 
             mIsFirstTimeMoving = false;
         } // else, don't do anything special
@@ -234,46 +268,69 @@ public class TouchDisplayView extends View {
 
     /***************** DRAWING FUNCTIONS *****************/
 
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        // the layer must have the size of the view
+        mPathLayer.setSize(w, h);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mFrameScheduler.cancel();
+        mPathLayer.release();
+    }
+
     /*
      * Main drawing function
      */
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        mFrameScheduler.onFrame();
+        if (mFirstByteTime >= 0) {
+            this.reportFirstInk();
+        }
+        if (mReceivedTime >= 0) {
+            Latency.get().record(Latency.DRAWING, Latency.DRAW, Latency.now() - mReceivedTime);
+            mReceivedTime = -1;
+        }
 
         // if we are drawing an animation
         if (mIsAnimationDrawing) {
             // we calculate the number of paths to draw depending on when we started the animation
-            long progress = java.lang.System.currentTimeMillis() - mChrono;
+            long progress = mFrameScheduler.getFrameTime() - mChrono;
             TouchData currentPath = mTouchData.get(mCurrentPath);
 
             // we update the progressBar
             mCurrentProgress = (long)(((progress - mMinProgress) / (float)(mMaxProgress - mMinProgress)) * 100);
             mDrawingProgressBar.setProgress((int) mCurrentProgress);
 
-            // if the time that passed is superior to the last amount we have to reach, then
-            // we are in a new step of the movement : we update the segment to draw with the value
-            // saved for this time in mTempPathLengths
-            if ((currentPath.mTimeForPaths.size() > mCount) && (progress > currentPath.mTimeForPaths.get(mCount))) {
-                mSegmentOfPathToDraw = currentPath.mTempPathLengths.get(mCount);
-                mCount++;
-            }
+            // we find the samples of the stroke reached at this time (even if frames were late),
+            // and update the segment to draw with the length interpolated between the samples
+            mCount = currentPath.mStroke.findSample(progress);
+            mSegmentOfPathToDraw = Math.max(mSegmentOfPathToDraw, currentPath.mStroke.getLengthAt(progress));
 
             // we draw the right amount of paths. Cast to int in order to avoid bugs
             // when the segment to draw is almost equal to the length of the path measure
             if ((int)mSegmentOfPathToDraw < (int)mPathMeasure.getLength()) {
-                // first we draw the previous finished paths (if there are any)
-                this.drawFinishedPaths(canvas);
-
-                // we apply the current color and thickness of last path
-                mPathPaint.setColor(currentPath.mPathColor);
-                mPathPaint.setStrokeWidth(currentPath.mPathThickness);
-
-                // then we draw the segment of the current animated path
-                mSegment.rewind(); // we empty the segment path
-                mPathMeasure.getSegment(0, mSegmentOfPathToDraw, mSegment, true); // we add the right path to the segment
-                mSegment.rLineTo(0, 0); // workaround for KITKAT and earlier versions, see the doc of getSegment()
-                canvas.drawPath(mSegment, mPathPaint); // we draw it
+                // the finished paths and the beginning of the current one are in the layer,
+                // where only the new part of the segment is added
+                if (!mPathLayer.drawBeginning(canvas, mTouchData, mCurrentPath, mSegmentOfPathToDraw, mPathPaint)) {
+                    // no layer : first we draw the previous finished paths (if there are any)
+                    this.drawFinishedPaths(canvas);
+
+                    // we apply the current color and thickness of last path
+                    mPathPaint.setColor(currentPath.mPathColor);
+                    mPathPaint.setStrokeWidth(currentPath.mPathThickness);
+
+                    // then we draw the segment of the current animated path
+                    mSegment.rewind(); // we empty the segment path
+                    mPathMeasure.getSegment(0, mSegmentOfPathToDraw, mSegment, true); // we add the right path to the segment
+                    mSegment.rLineTo(0, 0); // workaround for KITKAT and earlier versions, see the doc of getSegment()
+                    canvas.drawPath(mSegment, mPathPaint); // we draw it
+                }
             } else { // else the animation of the path is over
                 // if it's not the last path, we will draw the next one next time
                 if (mCurrentPath < mTouchData.size()-1) {
@@ -284,28 +341,55 @@ public class TouchDisplayView extends View {
                     mCount = 0;
                     // we draw the finished paths anyway
                     this.drawFinishedPaths(canvas);
+                } else if (mIsReceiving) { // else if the next paths are still being received, we wait
+                    if (!mIsWaitingForPaths) {
+                        mIsWaitingForPaths = true;
+                        mWaitingSince = FrameScheduler.now();
+                    } else if (FrameScheduler.now() - mWaitingSince > RECEIVE_TIMEOUT) {
+                        // the end of the drawing won't come, the animation will be finished next frame
+                        Log.w("TouchDisplayView", "End of the drawing not received.");
+                        mIsReceiving = false;
+                        mIsWaitingForPaths = false;
+                    }
+                    this.drawAllPaths(canvas);
                 } else { // else we finished to draw the whole animation
                     mIsAnimationDrawing = false;
                     mAnimationDone = true;
-                    for (TouchData touchData: mTouchData) {
-                        mPathPaint.setColor(touchData.mPathColor);
-                        mPathPaint.setStrokeWidth(touchData.mPathThickness);
-                        canvas.drawPath(touchData.mPath, mPathPaint);
-                    }
+                    this.drawAllPaths(canvas);
                     Log.i("TouchDisplayView", "Animation done.");
                     // we hide the progressBar
                     mDrawingProgressBar.setProgress(0);
                 }
             }
-            this.postInvalidate();
+            this.scheduleNextFrame();
         } else { // else we just draw the paths
-            if (!mTouchData.isEmpty()) {
-                for (TouchData touchData : mTouchData) {
-                    mPathPaint.setColor(touchData.mPathColor);
-                    mPathPaint.setStrokeWidth(touchData.mPathThickness);
-                    canvas.drawPath(touchData.mPath, mPathPaint);
-                }
-            }
+            this.drawAllPaths(canvas);
+        }
+        this.drawLiveInk(canvas);
+    }
+
+    /**
+     * Request the next frame of the animation, only when there will be something new to draw :
+     * right away while the path grows between two samples or to go to the next path,
+     * else when the next sample of the current path is due
+     */
+    private void scheduleNextFrame() {
+        if (!mIsAnimationDrawing) {
+            mFrameScheduler.cancel();
+            return;
+        }
+        if (mIsWaitingForPaths) {
+            // the next frame is requested when paths are received, or to stop waiting
+            mFrameScheduler.scheduleAt(mWaitingSince + RECEIVE_TIMEOUT + 1);
+            return;
+        }
+        StrokeBuffer stroke = mTouchData.get(mCurrentPath).mStroke;
+        if (mCount == stroke.getSampleCount()
+                || (mCount > 0 && stroke.getLength(mCount) > stroke.getLength(mCount - 1))) {
+            mFrameScheduler.scheduleFrame();
+        } else {
+            // the sample is used when the progress is strictly greater than its time
+            mFrameScheduler.scheduleAt(mChrono + stroke.getTime(mCount) + 1);
         }
     }
 
@@ -314,11 +398,34 @@ public class TouchDisplayView extends View {
      * @param canvas Canvas in which we draw
      */
     private void drawFinishedPaths(Canvas canvas) {
-        for (int i=0; i < mCurrentPath; i++) {
-            // we set the color of the current path, and then we draw it
-            mPathPaint.setColor(mTouchData.get(i).mPathColor);
-            mPathPaint.setStrokeWidth(mTouchData.get(i).mPathThickness);
-            canvas.drawPath(mTouchData.get(i).mPath, mPathPaint);
+        // they are drawn only once in the layer, which is then copied on the canvas
+        mPathLayer.draw(canvas, mTouchData, mCurrentPath, mPathPaint);
+    }
+
+    /**
+     * Draw all the paths on the canvas. The last one can still be changing, so it's
+     * not drawn in the layer.
+     * @param canvas Canvas in which we draw
+     */
+    private void drawAllPaths(Canvas canvas) {
+        mPathLayer.draw(canvas, mTouchData, Math.max(0, mTouchData.size() - 1), mPathPaint);
+        if (!mTouchData.isEmpty()) {
+            TouchData last = mTouchData.get(mTouchData.size() - 1);
+            mPathPaint.setColor(last.mPathColor);
+            mPathPaint.setStrokeWidth(last.mPathThickness);
+            canvas.drawPath(last.mPath, mPathPaint);
+        }
+    }
+
+    /**
+     * Draw the paths being drawn by the penpal, above ours
+     * @param canvas Canvas in which we draw
+     */
+    private void drawLiveInk(Canvas canvas) {
+        for (TouchData touchData : mLiveInk) {
+            mPathPaint.setColor(touchData.mPathColor);
+            mPathPaint.setStrokeWidth(touchData.mPathThickness);
+            canvas.drawPath(touchData.mPath, mPathPaint);
         }
     }
 
@@ -342,6 +449,7 @@ public class TouchDisplayView extends View {
         if ((!mIsAnimationDrawing) && (!mTouchData.isEmpty())){
             // we remove the last data in the touch data array
             mTouchData.remove(mTouchData.size() - 1);
+            mPathLayer.invalidate();
             // trigger the redraw
             this.postInvalidate();
         }
@@ -356,6 +464,7 @@ public class TouchDisplayView extends View {
         if (!mIsAnimationDrawing) {
             // we empty the touch data
             mTouchData.clear();
+            mPathLayer.invalidate();
             // trigger the redraw
             this.postInvalidate();
         }
@@ -374,7 +483,7 @@ public class TouchDisplayView extends View {
             mIsAnimationDrawing = true;
 
             // and we start the chrono for the animation
-            mChrono = java.lang.System.currentTimeMillis();
+            mChrono = FrameScheduler.now();
             mPathMeasure = new PathMeasure(mTouchData.get(0).mPath, false);
 
             // and we initialize the number of paths to draw
@@ -385,7 +494,7 @@ public class TouchDisplayView extends View {
             // and get the value of the max time for animation
             TouchData last = mTouchData.get(mTouchData.size()-1);
             mMinProgress = 0;
-            mMaxProgress = last.mTimeForPaths.get(last.mTimeForPaths.size()-1);
+            mMaxProgress = last.mStroke.getTime(last.mStroke.getSampleCount()-1);
 
             this.postInvalidate();
         }
@@ -409,27 +518,192 @@ public class TouchDisplayView extends View {
 
             // we put the chrono to the current time - the time elapsed for the animation
             TouchData current = mTouchData.get(mCurrentPath);
-            mChrono = java.lang.System.currentTimeMillis() - current.mTimeForPaths.get(0);
+            mChrono = FrameScheduler.now() - current.mStroke.getTime(0);
             mPathMeasure = new PathMeasure(current.mPath, false);
 
             // and initialize the number of paths to draw
             mCount = 0;
-            mSegmentOfPathToDraw = current.mTempPathLengths.get(mCount);
+            mSegmentOfPathToDraw = current.mStroke.getLength(mCount);
 
             // and get the value of the max time for animation
             TouchData last = mTouchData.get(mTouchData.size()-1);
-            mMinProgress = current.mTimeForPaths.get(0);
-            mMaxProgress = last.mTimeForPaths.get(last.mTimeForPaths.size()-1);
+            mMinProgress = current.mStroke.getTime(0);
+            mMaxProgress = last.mStroke.getTime(last.mStroke.getSampleCount()-1);
 
             this.postInvalidate();
         }
     }
 
+    /**
+     * Method called when points of a path being drawn by the penpal are received
+     * @param update received points
+     * @param isUserActive true if the user is looking at the screen
+     */
+    public void onLiveInkReceived(LiveInk.Update update, boolean isUserActive) {
+        // the paths are only shown to an active user, and not during an animation
+        if (!isUserActive || mIsAnimationDrawing) {
+            return;
+        }
+        removeCallbacks(mLiveInkExpiry);
+        postDelayed(mLiveInkExpiry, LIVE_INK_TIMEOUT);
+        if (update.type == Frames.TYPE_INK_END_MESSAGE) {
+            // the paths stay on screen until the drawing is received
+            mIsLiveInkEnded = true;
+            return;
+        }
+        if (mIsLiveInkEnded) { // a new drawing starts
+            mLiveInk.clear();
+            mIsLiveInkEnded = false;
+        }
+        if (!LiveInk.apply(mLiveInk, update)) {
+            Log.v("TouchDisplayView", "Live points missing, waiting for the path to be sent again");
+        }
+        this.postInvalidate();
+    }
+
+    /**
+     * Give the sender of our paths while we draw them
+     * @param liveInkSender the sender, or null to disable live ink
+     */
+    public void setLiveInkSender(LiveInkSender liveInkSender) {
+        mLiveInkSender = liveInkSender;
+    }
+
+    /**
+     * Show received data at once : it was already drawn live
+     * @param data received data
+     */
+    private void showReceivedData(ArrayList<TouchData> data) {
+        mTouchData = data;
+        mPathLayer.invalidate();
+        mAnimationDone = true;
+        this.postInvalidate();
+    }
+
+    /**
+     * Method called when the first paths of a drawing are received, before the end of the drawing.
+     * If the drawing would be animated once received, the animation starts now with these paths.
+     * @param drawingId number of the drawing, as several can be received at once
+     * @param paths paths received until now
+     * @param firstByteTime time at which the drawing started to be received
+     * @param isUserActive true if the user is looking at the screen
+     */
+    public void onReceivedDrawingProgress(long drawingId, ArrayList<TouchData> paths, long firstByteTime,
+                                          boolean isUserActive) {
+        if (mIsReceiving) {
+            if (drawingId != mReceivingId) {
+                return; // another drawing, it will be handled once received
+            }
+            // new paths of the drawing being animated
+            mTouchData = paths;
+            this.continueReceivedAnimation();
+            return;
+        }
+        // the paths drawn live are already shown, the drawing will be shown at once
+        if (!isUserActive || mIsAnimationDrawing || !mLiveInk.isEmpty()) {
+            return;
+        }
+        if (mTouchData.isEmpty()) {
+            Log.i("TouchDisplayView", "Launching the first received paths now !");
+            mIsReceiving = true;
+            mReceivingId = drawingId;
+            mTouchData = paths;
+            mPathLayer.invalidate();
+            mFirstByteTime = firstByteTime;
+            launchAnimation();
+        } else if (paths.size() > mTouchData.size() && isResponse(paths)) {
+            Log.i("TouchDisplayView", "Launching the first received paths of the response now !");
+            mIsReceiving = true;
+            mReceivingId = drawingId;
+            mFirstByteTime = firstByteTime;
+            launchResponseAnimation(paths);
+        }
+    }
+
+    /**
+     * Update the animation with the paths received since it started
+     */
+    private void continueReceivedAnimation() {
+        // the progressBar goes until the last received path
+        TouchData last = mTouchData.get(mTouchData.size()-1);
+        mMaxProgress = last.mStroke.getTime(last.mStroke.getSampleCount()-1);
+        if (mIsWaitingForPaths) {
+            // the time spent waiting is not part of the animation
+            mChrono += FrameScheduler.now() - mWaitingSince;
+            mIsWaitingForPaths = false;
+        }
+        this.postInvalidate();
+    }
+
+    /**
+     * Log the time to first ink of the received drawing, now that its first frame is drawn
+     */
+    private void reportFirstInk() {
+        mTimeToFirstInk = FrameScheduler.now() - mFirstByteTime;
+        mFirstByteTime = -1;
+        Log.i("TouchDisplayView", "Time to first ink : " + mTimeToFirstInk + " ms");
+    }
+
+    /**
+     * @return the time between the first byte of the last received drawing and the first
+     * frame of its animation (in ms), or -1 if no drawing was animated when received
+     */
+    public long getTimeToFirstInk() {
+        return mTimeToFirstInk;
+    }
+
+    /**
+     * Check if the received data corresponds to the actual displayed data + new data
+     * @param data received data
+     * @return true if the received data is a response to the displayed one
+     */
+    private boolean isResponse(ArrayList<TouchData> data) {
+        // if the current data is longer than the received data, it's
+        // obviously not a response
+        if (mTouchData.size() > data.size()) {
+            return false;
+        }
+        for (int i=0; i < mTouchData.size(); i++) {
+            // if the two data aren't equals (not the same uuid), it's a brand new data
+            if (!mTouchData.get(i).uuid.equals(data.get(i).uuid)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Method called to launch a received animation by network
+     * @param drawingId number of the drawing, given before to onReceivedDrawingProgress()
+     * @param data received data
+     * @param firstByteTime time at which the drawing started to be received
+     * @param isUserActive true if the user is looking at the screen
      */
-    public void launchReceivedAnimation(ArrayList<TouchData> data, boolean isUserActive) {
+    public void launchReceivedAnimation(long drawingId, ArrayList<TouchData> data, long firstByteTime,
+                                        boolean isUserActive) {
         Log.i("TouchDisplayView", "Analyzing received data...");
+        mReceivedTime = Latency.now();
+        // if the beginning of the drawing is already being animated, we give it the end
+        if (mIsReceiving && drawingId == mReceivingId) {
+            mIsReceiving = false;
+            if (isResponse(data)) {
+                mTouchData = data;
+                this.continueReceivedAnimation();
+                return;
+            }
+        } else if (mIsReceiving) {
+            Log.i("TouchDisplayView", "Received during the animation of another drawing : storing...");
+            mReceivedTime = -1;
+            getInbox().add(data);
+            mLittleEnvelope.setVisibility(VISIBLE);
+            return;
+        }
+        // if the user saw the last path being drawn, the drawing isn't animated again
+        boolean isShownLive = !mLiveInk.isEmpty() && isUserActive
+                && mLiveInk.get(mLiveInk.size() - 1).uuid.equals(data.get(data.size() - 1).uuid);
+        mLiveInk.clear();
+        mIsLiveInkEnded = false;
+        removeCallbacks(mLiveInkExpiry);
         // we just replace the current data by the received data, and launch the animation
         // if the current data is null. Else we will do some checking...
         if (mTouchData.isEmpty()) {
@@ -438,40 +712,36 @@ public class TouchDisplayView extends View {
             // and store the data in a temp variable
             if (isUserActive) {
                 Log.i("TouchDisplayView", "Launching received data now !");
+                mFirstByteTime = firstByteTime;
+                if (isShownLive) {
+                    showReceivedData(data);
+                    return;
+                }
                 mTouchData = data;
+                mPathLayer.invalidate();
                 launchAnimation();
             } else {
                 Log.i("TouchDisplayView", "Storing data and displaying envelope...");
-                mTempReceivedData = data;
+                mReceivedTime = -1; // it will be seen later
+                getInbox().add(data);
                 mLetterButton.setVisibility(VISIBLE);
             }
         } else {
             // we check if the received data corresponds to the actual displayed data + new data.
             // if so, just display the new data. Else, store the data in temp location
-            int myDataLength = mTouchData.size();
-            boolean isResponseMessage = true;
-
-            // if the current data is longer than the received data, it's
-            // obviously not a response
-            if (myDataLength > data.size()) {
-                isResponseMessage = false;
-            } else { // else we will do some checks
-                for (int i=0; i < myDataLength; i++) {
-                    // if the two data aren't equals (not the same uuid), it's a brand new data,
-                    // and not a response message, we store it
-                    if (!mTouchData.get(i).uuid.equals(data.get(i).uuid)) {
-                        isResponseMessage = false; break;
-                    }
-                }
-            }
-
-            if (isResponseMessage) {
+            if (isResponse(data)) {
                 Log.i("TouchDisplayView", "It's a response data ! Displaying...");
                 // we only animate the new data, and immediately display the saved data
-                launchResponseAnimation(data);
+                mFirstByteTime = firstByteTime;
+                if (isShownLive) {
+                    showReceivedData(data);
+                } else {
+                    launchResponseAnimation(data);
+                }
             } else {
                 Log.i("TouchDisplayView", "Brand new data, but board full : storing...");
-                mTempReceivedData = data;
+                mReceivedTime = -1;
+                getInbox().add(data);
                 mLittleEnvelope.setVisibility(VISIBLE);
             }
         }
@@ -482,24 +752,41 @@ public class TouchDisplayView extends View {
      */
     public void clearCurrentTouchData() {
         mTouchData.clear();
+        mPathLayer.invalidate();
         this.postInvalidate();
     }
 
     /**
-     * Method called to launch animation with temp stored data
+     * Method called to launch animation with the next stored data. The envelope stays
+     * visible while other data are waiting.
      */
     public void launchTempStoredAnimation() {
-        // if the received data isn't empty
-        if (!mTempReceivedData.isEmpty()) {
+        ArrayList<TouchData> data = mInbox != null ? mInbox.poll() : null;
+        // if there is received data
+        if (data != null) {
+            Log.i("TouchDisplayView", "Showing stored data, " + mInbox.size() + " still waiting");
             // if the board is empty, just launch the animation on it
             if (mTouchData.isEmpty()) {
-                mTouchData = new ArrayList<>(mTempReceivedData);
-                mTempReceivedData.clear();
+                mTouchData = data;
+                mPathLayer.invalidate();
                 launchAnimation();
             } else { // else display in a popup
-                mPopupView.launchAnimation(mTempReceivedData);
+                mPopupView.launchAnimation(data);
             }
         }
+        if (mInbox != null && !mInbox.isEmpty()) {
+            mLittleEnvelope.setVisibility(VISIBLE);
+        }
+    }
+
+    /**
+     * @return the inbox, created the first time
+     */
+    private Inbox getInbox() {
+        if (mInbox == null) {
+            mInbox = new Inbox(getContext().getCacheDir(), Inbox.DEFAULT_MEMORY_BUDGET);
+        }
+        return mInbox;
     }
 
     public void setLetterButton(ImageButton letterButton) {
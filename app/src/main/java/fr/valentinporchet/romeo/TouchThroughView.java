@@ -4,14 +4,13 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.RectF;
+import android.os.SystemClock;
 import android.os.Vibrator;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 
-import java.util.ArrayList;
-
 /**
  * Created by Valentin on 25/01/2016.
  */
@@ -24,21 +23,24 @@ public class TouchThroughView extends View {
     private final float HEIGHT_RADIUS = 25.f;
     private final int DEFAULT_COLOR = 0xFFC31D40; // red
     private final int DEFAULT_OTHER_COLOR = 0xFF272F80; // blue
+    private final float COLLISION_DISTANCE = WIDTH_RADIUS + HEIGHT_RADIUS; // 2 * mean radius, approximation for collision
     //private final int DEFAULT_COLLISION_COLOR = 0xFF2EC196; // green
 
     /**
      * Private variables
      */
     private Paint mPaint = new Paint();
+    private RectF mOval = new RectF(); // reused for each circle
+    private CollisionGrid mCollisionGrid = new CollisionGrid(COLLISION_DISTANCE);
     private int mColor = DEFAULT_COLOR;
     private int mOtherColor = DEFAULT_OTHER_COLOR;
     private int mCollisionColor = mColor + mOtherColor;
-    private TTClientThread mClientThread;
-    private Thread mClientSocketThread;
+    private TTFanOut mFanOut = new TTFanOut(); // sends our positions to all the penpals
     private String mServerIP;
     private Vibrator mVibrator;
     private TTData mPositions;
     private TTData mOtherPositions;
+    private long mOtherPositionsTime = -1; // when the received positions were handled, until they're drawn
 
     public TouchThroughView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -63,8 +65,34 @@ public class TouchThroughView extends View {
         mOtherPositions = new TTData();
     }
 
+    /**
+     * @param serverIP address of the penpal, or addresses of the penpals (see Penpals)
+     */
     public void setServerIP(String serverIP) {
         mServerIP = serverIP;
+        mFanOut.setAddresses(serverIP);
+    }
+
+    /**
+     * Choose how our positions are sent to the penpal
+     * @param useDatagrams true to send them in UDP datagrams, false on a TCP connection
+     */
+    public void setUseDatagrams(boolean useDatagrams) {
+        mFanOut.setUseDatagrams(useDatagrams);
+    }
+
+    /**
+     * Open the connections used to stream our positions to the penpals
+     */
+    public void startSending() {
+        mFanOut.start();
+    }
+
+    /**
+     * Close the connections used to stream our positions
+     */
+    public void stopSending() {
+        mFanOut.stop();
     }
 
     /***** EVENT FUNCTIONS *****/
@@ -100,7 +128,7 @@ public class TouchThroughView extends View {
                 }
             }
         }
-        this.sendData(); // send the array list of positions
+        this.sendData(event.getEventTime()); // send the array list of positions
         // trigger redraw on UI thread
         this.postInvalidate();
         return true;
@@ -114,12 +142,17 @@ public class TouchThroughView extends View {
         mPositions.add(x, y);
     }
 
-    private void sendData() {
+    /**
+     * @param eventTime time of the touch event (see MotionEvent.getEventTime())
+     */
+    private void sendData(long eventTime) {
         Log.v("TouchThroughView", "Sending position data : " + mPositions + " to " + mServerIP);
-        mClientThread = new TTClientThread(mPositions, mServerIP);
-        // then we start it
-        mClientSocketThread = new Thread(mClientThread);
-        mClientSocketThread.start(); // we start the thread
+        if (mFanOut.isStarted()) {
+            // encoded now, so mPositions can be updated by the next event
+            mFanOut.send(mPositions);
+            Latency.get().record(Latency.TOUCH_THROUGH, Latency.ENCODE,
+                    (SystemClock.uptimeMillis() - eventTime) * 1000);
+        }
     }
 
     /***** DRAWING FUNCTIONS *****/
@@ -128,63 +161,24 @@ public class TouchThroughView extends View {
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
-        // if there the correspondant is not touching the screen
-        if (mOtherPositions.isEmpty()) {
-            for (TTData.Position p : mPositions) {
-                mPaint.setColor(mColor);
-                drawCircle(p, canvas);
-            }
-        } else {
-            // else if we are not touching the screen but the correspondant is
-            if (mPositions.isEmpty()) {
-                for (TTData.Position p : mOtherPositions) {
-                    mPaint.setColor(mOtherColor);
-                    drawCircle(p, canvas);
-                }
-            } else { // else, tests for collisions
-                boolean collision = false;
-                int collisionIntensity = 0;
-                TTData.Position p1, p2;
-
-                // List of collisions, in order to draw the circles
-                // in the right color
-                ArrayList<Boolean> collisions = new ArrayList<>();
-                ArrayList<Boolean> collisionsOther = new ArrayList<>();
-                for (int i=0; i < mPositions.size(); i++) { collisions.add(false); }
-                for (int i=0; i < mOtherPositions.size(); i++) { collisionsOther.add(false); }
-
-                for (int i=0; i < mPositions.size(); i++) {
-                    for (int j=0; j < mOtherPositions.size(); j++) {
-                        p1 = mPositions.get(i); p2 = mOtherPositions.get(j);
-
-                        if (collisionBetween(p1.x, p1.y, p2.x, p2.y)) {
-                            mPaint.setColor(mCollisionColor);
-                            drawCircle(p1, canvas); drawCircle(p2, canvas);
-                            collision = true; collisionIntensity += 100;
-
-                            collisions.set(i, true); collisionsOther.set(j, true);
-                        } else {
-                            if (collisions.get(i)) {
-                                mPaint.setColor(mCollisionColor);
-                            } else {
-                                mPaint.setColor(mColor);
-                            }
-                            drawCircle(p1, canvas);
-
-                            if (collisionsOther.get(j)) {
-                                mPaint.setColor(mCollisionColor);
-                            } else {
-                                mPaint.setColor(mOtherColor);
-                            }
-                            drawCircle(p2, canvas);
-                        }
-                    }
-                }
+        // we find the colliding positions first, so that each circle is drawn once in its color
+        int collisions = mCollisionGrid.detect(mPositions, mOtherPositions);
 
-                if (collision) {
-                    mVibrator.vibrate(collisionIntensity);
-                }
-            }
+        for (int i=0; i < mPositions.size(); i++) {
+            mPaint.setColor(mCollisionGrid.isColliding(i) ? mCollisionColor : mColor);
+            drawCircle(mPositions.get(i), canvas);
+        }
+        for (int j=0; j < mOtherPositions.size(); j++) {
+            mPaint.setColor(mCollisionGrid.isOtherColliding(j) ? mCollisionColor : mOtherColor);
+            drawCircle(mOtherPositions.get(j), canvas);
+        }
+
+        if (collisions > 0) {
+            mVibrator.vibrate(collisions * 100);
+        }
+        if (mOtherPositionsTime >= 0) {
+            Latency.get().record(Latency.TOUCH_THROUGH, Latency.DRAW, Latency.now() - mOtherPositionsTime);
+            mOtherPositionsTime = -1;
         }
     }
 
@@ -194,24 +188,8 @@ public class TouchThroughView extends View {
      * @param canvas Canvas on which we draw
      */
     private void drawCircle(TTData.Position p, Canvas canvas) {
-        canvas.drawOval(new RectF(p.x - WIDTH_RADIUS, p.y - HEIGHT_RADIUS,
-                p.x + WIDTH_RADIUS, p.y + HEIGHT_RADIUS), mPaint);
-    }
-
-    /**
-     * Collision between two circles
-     * @param aX x coordinates of first circle
-     * @param aY y coordinates of first circle
-     * @param bX x coordinates of second circle
-     * @param bY y coordinates of second circle
-     * @return true if collision
-     */
-    private boolean collisionBetween(float aX, float aY, float bX, float bY) {
-        float radius = (WIDTH_RADIUS + HEIGHT_RADIUS) / 2; // approximation for collision
-        double x = Math.abs(aX-bX);
-        double y = Math.abs(aY-bY);
-        double distance = Math.sqrt(x*x + y*y);
-        return distance < 2*radius;
+        mOval.set(p.x - WIDTH_RADIUS, p.y - HEIGHT_RADIUS, p.x + WIDTH_RADIUS, p.y + HEIGHT_RADIUS);
+        canvas.drawOval(mOval, mPaint);
     }
 
     // PUBLIC METHODS
@@ -223,6 +201,7 @@ public class TouchThroughView extends View {
     public void getOtherPositions(TTData mReceived) {
         Log.i("TouchThroughView", "Data received : " + mReceived);
         mOtherPositions = mReceived;
+        mOtherPositionsTime = Latency.now();
         mOtherColor = mReceived.getColor();
         mCollisionColor = mColor + mOtherColor;
         this.postInvalidate();
@@ -0,0 +1,67 @@
+package fr.valentinporchet.romeo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Variable length encoding of integers : 7 bits per byte, the high bit telling
+ * if another byte follows. Small values take 1 byte instead of 4.
+ * Signed values are zig-zag encoded first, so that small negative values are small too.
+ */
+public final class VarInts {
+    // maximum number of bytes taken by an encoded int
+    public static final int MAX_VARINT_LENGTH = 5;
+
+    private VarInts() {}
+
+    /**
+     * Write an unsigned value
+     * @param buffer buffer in which we write
+     * @param value value, seen as unsigned
+     */
+    public static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Write a signed value, zig-zag encoded
+     * @param buffer buffer in which we write
+     * @param value signed value
+     */
+    public static void putZigZag(ByteBuffer buffer, int value) {
+        putVarInt(buffer, (value << 1) ^ (value >> 31));
+    }
+
+    /**
+     * Read a value written by putVarInt()
+     * @param buffer buffer from which we read
+     * @return the value
+     * @throws IOException if the value is longer than 5 bytes
+     */
+    public static int getVarInt(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Read a value written by putZigZag()
+     * @param buffer buffer from which we read
+     * @return the signed value
+     * @throws IOException if the value is longer than 5 bytes
+     */
+    public static int getZigZag(ByteBuffer buffer) throws IOException {
+        int value = getVarInt(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,99 @@
+package fr.valentinporchet.romeo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the messages received in chunks, and of the transfers resumed
+ */
+public class ChunkStoreTest {
+    private File mDirectory;
+    private ChunkStore mStore;
+
+    @Before
+    public void createStore() throws Exception {
+        mDirectory = File.createTempFile("chunks", "");
+        assertTrue(mDirectory.delete() && mDirectory.mkdir());
+        mDirectory.deleteOnExit();
+        mStore = new ChunkStore(mDirectory);
+    }
+
+    @After
+    public void clearStore() {
+        mStore.clear();
+    }
+
+    private static ByteBuffer bytes(int from, int to) {
+        ByteBuffer chunk = ByteBuffer.allocate(to - from);
+        for (int i = from; i < to; i++) {
+            chunk.put((byte) i);
+        }
+        chunk.flip();
+        return chunk;
+    }
+
+    @Test
+    public void chunks_areWrittenInOrder() throws Exception {
+        UUID id = UUID.randomUUID();
+        assertEquals(0, mStore.open(id, 300));
+        assertEquals(100, mStore.write(id, 0, bytes(0, 100)));
+        // a chunk after a missing one is ignored, a chunk received twice is written once
+        assertEquals(100, mStore.write(id, 200, bytes(200, 300)));
+        assertEquals(150, mStore.write(id, 50, bytes(50, 150)));
+
+        // the transfer is resumed where it stopped
+        assertEquals(150, mStore.open(id, 300));
+        assertEquals(300, mStore.write(id, 150, bytes(150, 300)));
+        ByteBuffer received = mStore.map(id);
+        assertEquals(300, received.remaining());
+        for (int i=0; i < 300; i++) {
+            assertEquals((byte) i, received.get());
+        }
+    }
+
+    @Test
+    public void map_showsTheChunksWrittenAfterwards() throws Exception {
+        UUID id = UUID.randomUUID();
+        mStore.open(id, 200);
+        mStore.write(id, 0, bytes(0, 100));
+        ByteBuffer first = mStore.map(id);
+        assertEquals(100, first.remaining());
+
+        mStore.write(id, 100, bytes(100, 200));
+        ByteBuffer second = mStore.map(id);
+        assertEquals(200, second.remaining());
+        assertEquals((byte) 199, second.get(199));
+        // the first view keeps its limit
+        assertEquals(100, first.remaining());
+    }
+
+    @Test(expected = IOException.class)
+    public void chunk_afterTheEndOfTheMessage_isRejected() throws Exception {
+        UUID id = UUID.randomUUID();
+        mStore.open(id, 100);
+        mStore.write(id, 0, bytes(0, 101));
+    }
+
+    @Test
+    public void oldTransfers_areAbandoned() throws Exception {
+        UUID first = UUID.randomUUID();
+        mStore.open(first, 10);
+        mStore.write(first, 0, bytes(0, 5));
+        // a message opened again with another length is a new one
+        assertEquals(0, mStore.open(first, 20));
+        for (int i=0; i < 4; i++) {
+            mStore.open(UUID.randomUUID(), 10);
+        }
+        assertFalse(mStore.contains(first));
+        assertEquals(4, mStore.getIds().size());
+        assertEquals(4, mDirectory.listFiles().length);
+    }
+}
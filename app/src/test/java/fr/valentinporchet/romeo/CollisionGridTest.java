@@ -0,0 +1,66 @@
+package fr.valentinporchet.romeo;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the collision detection of the touch through view
+ */
+public class CollisionGridTest {
+    private static final float DISTANCE = 45;
+
+    @Test
+    public void detect_findsTheCloseCircles() {
+        TTData positions = new TTData(), otherPositions = new TTData();
+        positions.add(100, 100);
+        positions.add(500, 500);
+        otherPositions.add(130, 130); // 42 px away from the first one
+        otherPositions.add(-20, -20);
+
+        CollisionGrid grid = new CollisionGrid(DISTANCE);
+        assertEquals(1, grid.detect(positions, otherPositions));
+        assertTrue(grid.isColliding(0));
+        assertFalse(grid.isColliding(1));
+        assertTrue(grid.isOtherColliding(0));
+        assertFalse(grid.isOtherColliding(1));
+    }
+
+    @Test
+    public void detect_isTheSameAsTestingAllThePairs() {
+        Random random = new Random(42);
+        CollisionGrid grid = new CollisionGrid(DISTANCE);
+        for (int frame=0; frame < 100; frame++) {
+            TTData positions = new TTData(), otherPositions = new TTData();
+            for (int i = random.nextInt(40); i > 0; i--) {
+                positions.add(random.nextFloat() * 400 - 50, random.nextFloat() * 400 - 50);
+            }
+            for (int i = random.nextInt(40); i > 0; i--) {
+                otherPositions.add(random.nextFloat() * 400 - 50, random.nextFloat() * 400 - 50);
+            }
+
+            int pairs = 0;
+            boolean[] collisions = new boolean[positions.size()];
+            boolean[] otherCollisions = new boolean[otherPositions.size()];
+            for (int i=0; i < positions.size(); i++) {
+                for (int j=0; j < otherPositions.size(); j++) {
+                    TTData.Position a = positions.get(i), b = otherPositions.get(j);
+                    if (Math.hypot(a.x - b.x, a.y - b.y) < DISTANCE) {
+                        collisions[i] = otherCollisions[j] = true;
+                        pairs++;
+                    }
+                }
+            }
+
+            assertEquals(pairs, grid.detect(positions, otherPositions));
+            for (int i=0; i < positions.size(); i++) {
+                assertEquals(collisions[i], grid.isColliding(i));
+            }
+            for (int j=0; j < otherPositions.size(); j++) {
+                assertEquals(otherCollisions[j], grid.isOtherColliding(j));
+            }
+        }
+    }
+}
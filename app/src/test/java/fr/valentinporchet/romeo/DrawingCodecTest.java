@@ -0,0 +1,228 @@
+package fr.valentinporchet.romeo;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static fr.valentinporchet.romeo.Fixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the binary encoding of drawings
+ */
+public class DrawingCodecTest {
+    // ArrayList<TouchData> serialized by the old versions (before StrokeBuffer) : one path of
+    // 3 points and 2 samples, moveTo(10, 20), lineTo(13.25, 18.5) at 30 ms, lineTo(16.5, 17) at 61 ms
+    private static final String OLD_SERIALIZED_DRAWING =
+            "aced0005737200136a6176612e7574696c2e41727261794c6973747881d21d99c7619d03000149000473697a65787000" +
+            "0000017704000000017372002266722e76616c656e74696e706f72636865742e726f6d656f2e546f75636844617461ea" +
+            "3ececdc8ffa4ec02000649000a6d50617468436f6c6f7246000e6d50617468546869636b6e6573734c00056d50617468" +
+            "74002b4c66722f76616c656e74696e706f72636865742f726f6d656f2f53657269616c697a61626c65506174683b4c00" +
+            "106d54656d70506174684c656e677468737400154c6a6176612f7574696c2f41727261794c6973743b4c000d6d54696d" +
+            "65466f72506174687371007e00044c0004757569647400104c6a6176612f7574696c2f555549443b7870ffc31d404170" +
+            "00007372002966722e76616c656e74696e706f72636865742e726f6d656f2e53657269616c697a61626c6550617468ad" +
+            "14d8dba82c39c50200014c0007616374696f6e7371007e000478707371007e0000000000037704000000037372003466" +
+            "722e76616c656e74696e706f72636865742e726f6d656f2e53657269616c697a61626c655061746824416374696f6e4d" +
+            "6f76659c1b0fd07f8ba5d102000346000178460001794c000674686973243071007e000378704120000041a000007100" +
+            "7e00087372003466722e76616c656e74696e706f72636865742e726f6d656f2e53657269616c697a61626c6550617468" +
+            "24416374696f6e4c696e657348e1f67f05d3ad02000346000178460001794c000674686973243071007e000378704154" +
+            "00004194000071007e00087371007e000c418400004188000071007e0008787371007e00000000000277040000000273" +
+            "72000f6a6176612e6c616e672e466c6f6174daedc9a2db3cf0ec02000146000576616c7565787200106a6176612e6c61" +
+            "6e672e4e756d62657286ac951d0b94e08b0200007870406000007371007e001040e00000787371007e00000000000277" +
+            "04000000027372000e6a6176612e6c616e672e4c6f6e673b8be490cc8f23df0200014a000576616c75657871007e0011" +
+            "000000000000001e7371007e0015000000000000003d787372000e6a6176612e7574696c2e55554944bc9903f7986d85" +
+            "2f0200024a000c6c65617374536967426974734a000b6d6f737453696742697473787000000000000000020000000000" +
+            "00000178";
+
+    private void assertSameDrawing(ArrayList<TouchData> expected, ArrayList<TouchData> actual, float tolerance) {
+        assertEquals(expected.size(), actual.size());
+        for (int p=0; p < expected.size(); p++) {
+            TouchData a = expected.get(p), b = actual.get(p);
+            assertEquals(a.uuid, b.uuid);
+            assertEquals(a.mPathColor, b.mPathColor);
+            assertEquals(a.mPathThickness, b.mPathThickness, 0);
+            StrokeBuffer strokeA = a.mStroke, strokeB = b.mStroke;
+            assertEquals(strokeA.getSampleCount(), strokeB.getSampleCount());
+            for (int i=0; i < strokeA.getSampleCount(); i++) {
+                assertEquals(strokeA.getTime(i), strokeB.getTime(i));
+                // each point moved by 1/16 px at most
+                assertEquals(strokeA.getLength(i), strokeB.getLength(i), tolerance * 2 * (i + 1));
+            }
+            assertEquals(strokeA.getPointCount(), strokeB.getPointCount());
+            for (int i=0; i < strokeA.getPointCount(); i++) {
+                assertEquals(strokeA.getType(i), strokeB.getType(i));
+                assertEquals(strokeA.getX(i), strokeB.getX(i), tolerance);
+                assertEquals(strokeA.getY(i), strokeB.getY(i), tolerance);
+            }
+        }
+    }
+
+    private ArrayList<TouchData> decode(byte[] encoded) throws Exception {
+        return DrawingCodec.decode(new DataInputStream(new ByteArrayInputStream(encoded)));
+    }
+
+    @Test
+    public void rawEncodeDecode_isIdentity() throws Exception {
+        ArrayList<TouchData> drawing = createDrawing(12, 80);
+        assertSameDrawing(drawing, decode(DrawingCodec.encode(drawing, 0)), 0);
+    }
+
+    @Test
+    public void deltaEncodeDecode_isQuantized() throws Exception {
+        ArrayList<TouchData> drawing = createDrawing(12, 80);
+        assertSameDrawing(drawing, decode(DrawingCodec.encode(drawing, DrawingCodec.FLAG_DELTA)), 1 / 16.f);
+    }
+
+    @Test
+    public void deltaEncoding_fallsBackWhenLengthsCantBeRebuilt() throws Exception {
+        ArrayList<TouchData> drawing = createDrawing(3, 10);
+        drawing.get(1).mStroke.addSample(10000L, 1.f); // one more sample than lines
+        assertSameDrawing(drawing, decode(DrawingCodec.encode(drawing, DrawingCodec.FLAG_DELTA)), 0);
+    }
+
+    @Test
+    public void deltaEncoding_isSmallerThanRaw() throws Exception {
+        ArrayList<TouchData> drawing = createDrawing(20, 100);
+        assertTrue(DrawingCodec.encode(drawing, DrawingCodec.FLAG_DELTA).length * 3 < DrawingCodec.encode(drawing, 0).length);
+    }
+
+    @Test
+    public void response_isRebuiltFromHistory() throws Exception {
+        ArrayList<TouchData> drawing = createDrawing(10, 20);
+        DrawingHistory history = new DrawingHistory();
+        history.add(drawing.subList(0, 6));
+        assertEquals(6, history.findBase(drawing));
+
+        byte[] response = DrawingCodec.encode(drawing, 6, 0);
+        assertTrue(response.length * 2 < DrawingCodec.encode(drawing, 0).length);
+        assertSameDrawing(drawing, DrawingCodec.decode(new DataInputStream(new ByteArrayInputStream(response)), history), 0);
+    }
+
+    @Test(expected = DrawingCodec.MissingBaseException.class)
+    public void response_withUnknownBase_isRejected() throws Exception {
+        ArrayList<TouchData> drawing = createDrawing(10, 20);
+        DrawingHistory history = new DrawingHistory();
+        history.add(createDrawing(6, 20));
+        DrawingCodec.decode(new DataInputStream(new ByteArrayInputStream(DrawingCodec.encode(drawing, 6, 0))), history);
+    }
+
+    @Test
+    public void streamDecoder_decodesThePathsAsTheyAreReceived() throws Exception {
+        ArrayList<TouchData> drawing = createDrawing(5, 30);
+        byte[] encoded = DrawingCodec.encode(drawing, DrawingCodec.FLAG_DELTA);
+        DrawingCodec.StreamDecoder decoder = new DrawingCodec.StreamDecoder(null);
+        // the bytes are received one by one, after 3 bytes of a previous message
+        ByteBuffer received = ByteBuffer.allocate(3 + encoded.length);
+        received.put(new byte[3]);
+        int decodedCount = 0;
+        for (byte b : encoded) {
+            received.put(b);
+            ByteBuffer in = (ByteBuffer) received.duplicate().flip();
+            if (decoder.decodeAvailable(in, 3)) {
+                ArrayList<TouchData> paths = decoder.getPaths();
+                assertEquals(decodedCount + 1, paths.size());
+                decodedCount = paths.size();
+            }
+        }
+        assertEquals(5, decodedCount);
+        assertSameDrawing(drawing, decoder.finish(), 1 / 16.f);
+    }
+
+    @Test
+    public void streamDecoder_decodesTheBytesOfALongPathOnce() throws Exception {
+        ArrayList<TouchData> drawing = createDrawing(2, 3000);
+        for (int flags : new int[] { 0, DrawingCodec.FLAG_DELTA }) {
+            byte[] encoded = DrawingCodec.encode(drawing, flags);
+            DrawingCodec.StreamDecoder decoder = new DrawingCodec.StreamDecoder(null);
+            byte[] received = new byte[encoded.length];
+            for (int length = 0; length < encoded.length; ) {
+                int next = Math.min(encoded.length, length + 100);
+                System.arraycopy(encoded, length, received, length, next - length);
+                length = next;
+                decoder.decodeAvailable(ByteBuffer.wrap(received, 0, length), 0);
+                if (flags == DrawingCodec.FLAG_DELTA) {
+                    // the points are decoded as they arrive, at most the types of a path are waiting
+                    assertTrue(length - decoder.getDecodedLength() < 3000 / 8 + 100);
+                }
+                // the decoded bytes are not read again : they can be dropped
+                Arrays.fill(received, 0, decoder.getDecodedLength(), (byte) 0x7F);
+            }
+            assertSameDrawing(drawing, decoder.finish(), flags == 0 ? 0 : 1 / 16.f);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void streamDecoder_rejectsAnIncompleteDrawing() throws Exception {
+        byte[] encoded = DrawingCodec.encode(createDrawing(2, 10));
+        DrawingCodec.StreamDecoder decoder = new DrawingCodec.StreamDecoder(null);
+        decoder.decodeAvailable(ByteBuffer.wrap(encoded, 0, encoded.length - 1), 0);
+        decoder.finish();
+    }
+
+    @Test
+    public void serialization_keepsTheStroke() throws Exception {
+        ArrayList<TouchData> drawing = createDrawing(3, 40);
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(serialized);
+        out.writeObject(drawing);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized.toByteArray()));
+        ArrayList<TouchData> deserialized = (ArrayList<TouchData>) in.readObject();
+        assertSameDrawing(drawing, deserialized, 0);
+        // the path is still backed by the stroke
+        assertSame(deserialized.get(0).mStroke, deserialized.get(0).mPath.getStroke());
+    }
+
+    @Test
+    public void serialization_readsDrawingsOfOldVersions() throws Exception {
+        byte[] serialized = new byte[OLD_SERIALIZED_DRAWING.length() / 2];
+        for (int i=0; i < serialized.length; i++) {
+            serialized[i] = (byte) Integer.parseInt(OLD_SERIALIZED_DRAWING.substring(2 * i, 2 * i + 2), 16);
+        }
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+        ArrayList<TouchData> drawing = (ArrayList<TouchData>) in.readObject();
+        assertEquals(1, drawing.size());
+        TouchData touchData = drawing.get(0);
+        assertEquals(new UUID(1, 2), touchData.uuid);
+        assertEquals(0xFFC31D40, touchData.mPathColor);
+        assertEquals(15.f, touchData.mPathThickness, 0);
+        assertSame(touchData.mStroke, touchData.mPath.getStroke());
+        assertEquals(3, touchData.mStroke.getPointCount());
+        assertTrue(touchData.mStroke.isMove(0));
+        assertEquals(16.5f, touchData.mStroke.getX(2), 0);
+        assertEquals(17.f, touchData.mStroke.getY(2), 0);
+        assertEquals(2, touchData.mStroke.getSampleCount());
+        assertEquals(61, touchData.mStroke.getTime(1));
+        assertEquals(7.f, touchData.mStroke.getLength(1), 0);
+    }
+
+    @Test
+    public void encoded_isSmallerThanSerialization() throws Exception {
+        ArrayList<TouchData> drawing = createDrawing(20, 100);
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(serialized);
+        out.writeObject(drawing);
+        out.close();
+        assertTrue(DrawingCodec.encode(drawing).length * 2 < serialized.size());
+    }
+
+    @Test
+    public void serializationStream_isDetected() throws Exception {
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(serialized);
+        out.writeObject(createDrawing(1, 5));
+        out.close();
+        assertFalse(DrawingCodec.isEncodedDrawing(new BufferedInputStream(new ByteArrayInputStream(serialized.toByteArray()))));
+        assertTrue(DrawingCodec.isEncodedDrawing(new BufferedInputStream(new ByteArrayInputStream(DrawingCodec.encode(createDrawing(1, 5))))));
+    }
+}
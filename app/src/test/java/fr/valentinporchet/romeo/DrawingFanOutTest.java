@@ -0,0 +1,94 @@
+package fr.valentinporchet.romeo;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static fr.valentinporchet.romeo.Fixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the sending of drawings to several penpals, on the loopback interface
+ */
+public class DrawingFanOutTest {
+
+    @Test
+    public void addresses_areSplit() {
+        assertEquals(Arrays.asList("192.168.1.2", "192.168.1.3", "phone.local"),
+                Penpals.parse(" 192.168.1.2, 192.168.1.3;phone.local 192.168.1.2 "));
+        assertTrue(Penpals.parse("").isEmpty());
+        assertEquals("192.168.1.2", Penpals.getHost("192.168.1.2:8081"));
+        assertEquals(8081, Penpals.getPort("192.168.1.2:8081", 8080));
+        assertEquals(8080, Penpals.getPort("192.168.1.2", 8080));
+        assertEquals("fe80::1", Penpals.getHost("fe80::1"));
+    }
+
+    @Test
+    public void drawingKnownByAPenpal_isNotABaseForTheOthers() {
+        ArrayList<TouchData> drawing = new ArrayList<>();
+        drawing.add(new TouchData());
+        DrawingHistory history = new DrawingHistory();
+        assertTrue(history.getPenpal("192.168.1.2").add(drawing));
+        assertEquals(1, history.getPenpal("192.168.1.2").findBase(drawing));
+        assertEquals(0, history.getPenpal("192.168.1.3").findBase(drawing));
+        // but the server knows it, to decode the responses of this penpal
+        assertEquals(1, history.findBase(drawing));
+    }
+
+    @Test
+    public void message_isEncodedOnceForThePenpalsKnowingTheSamePaths() throws Exception {
+        ArrayList<TouchData> drawing = createDrawing(2, 1);
+        DrawingSender.Message message = new DrawingSender.Message(drawing);
+        assertSame(message.getDelta(1), message.getDelta(1));
+        assertTrue(message.getDelta(0).length > message.getDelta(1).length);
+    }
+
+    @Test
+    public void slowPenpal_doesntDelayTheOthers() throws Exception {
+        File directory = createDirectory("outbox");
+        LinkedBlockingQueue<ArrayList<TouchData>> received = new LinkedBlockingQueue<>();
+        MessageServer first = createServer(new DrawingHistory(), received);
+        MessageServer second = createServer(new DrawingHistory(), received);
+        // this penpal never answers, its sender waits for the acknowledgement
+        ServerSocket slow = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        final LinkedBlockingQueue<Integer> results = new LinkedBlockingQueue<>();
+        DrawingFanOut fanOut = new DrawingFanOut(MessageServer.PORT, new DrawingHistory(), directory, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new DrawingSender.Callback() {
+            @Override
+            public void onDrawingSent(ArrayList<TouchData> drawing, int status) {
+                results.add(status);
+            }
+        });
+        try {
+            fanOut.setAddresses("127.0.0.1:" + slow.getLocalPort() + ", 127.0.0.1:" + first.getPort()
+                    + ", 127.0.0.1:" + second.getPort());
+            ArrayList<TouchData> drawing = createDrawing(1, 1);
+            assertTrue(fanOut.send(drawing));
+            // the two other penpals get the drawing while the slow one still waits
+            for (int i = 0; i < 2; i++) {
+                assertEquals(drawing.get(0).uuid, received.poll(5, TimeUnit.SECONDS).get(0).uuid);
+            }
+            // one status for all the penpals, once the slow one is done : without acknowledgement,
+            // the drawing stays in its outbox
+            assertTrue(results.isEmpty());
+            assertEquals(DrawingSender.STATUS_PENDING, (int) results.poll(15, TimeUnit.SECONDS));
+            assertNull(results.poll(200, TimeUnit.MILLISECONDS));
+        } finally {
+            fanOut.shutdown();
+            first.close();
+            second.close();
+            slow.close();
+        }
+    }
+}
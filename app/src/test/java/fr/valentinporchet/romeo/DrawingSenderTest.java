@@ -0,0 +1,182 @@
+package fr.valentinporchet.romeo;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static fr.valentinporchet.romeo.Fixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the background sending of drawings, to servers on the loopback interface
+ */
+public class DrawingSenderTest {
+    private LinkedBlockingQueue<Integer> mResults = new LinkedBlockingQueue<>();
+
+    private DrawingSender createSender(int port, DrawingHistory history) throws Exception {
+        return createSender(port, history, createDirectory("outbox"));
+    }
+
+    private DrawingSender createSender(int port, DrawingHistory history, File directory) {
+        return new DrawingSender(port, history, directory, "127.0.0.1", new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new DrawingSender.Callback() {
+            @Override
+            public void onDrawingSent(ArrayList<TouchData> drawing, int status) {
+                mResults.add(status);
+            }
+        });
+    }
+
+    @Test
+    public void send_reportsTheResult() throws Exception {
+        DrawingHistory serverHistory = new DrawingHistory();
+        MessageServer server = createServer(serverHistory, new LinkedBlockingQueue<ArrayList<TouchData>>());
+        DrawingHistory history = new DrawingHistory();
+        DrawingSender sender = createSender(server.getPort(), history);
+        try {
+            ArrayList<TouchData> drawing = createDrawing(1, 1);
+            assertTrue(sender.send(drawing, "127.0.0.1"));
+            assertEquals(DrawingSender.STATUS_SENT, (int) mResults.poll(5, TimeUnit.SECONDS));
+            // acknowledged, so the next response will only contain the new paths
+            assertEquals(1, history.findBase(drawing));
+            assertEquals(1, serverHistory.findBase(drawing));
+        } finally {
+            sender.shutdown();
+            server.close();
+        }
+    }
+
+    @Test
+    public void drawingNotAcknowledged_staysInTheOutbox() throws Exception {
+        // this server reads the drawings, but never answers
+        final ServerSocket server = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    InputStream in = socket.getInputStream();
+                    while (in.read() >= 0) {
+                        // the drawing is ignored
+                    }
+                    socket.close();
+                } catch (IOException e) {
+                    // closed by the test
+                }
+            }
+        }).start();
+        DrawingHistory history = new DrawingHistory();
+        DrawingSender sender = createSender(server.getLocalPort(), history);
+        try {
+            ArrayList<TouchData> drawing = createDrawing(1, 1);
+            assertTrue(sender.send(drawing, "127.0.0.1"));
+            assertEquals(DrawingSender.STATUS_PENDING, (int) mResults.poll(15, TimeUnit.SECONDS));
+            assertEquals(1, sender.getQueueDepth());
+            // the penpal may not have it, so it's not a base for the next responses
+            assertEquals(0, history.findBase(drawing));
+        } finally {
+            server.close();
+            sender.shutdown();
+        }
+    }
+
+    @Test
+    public void send_ignoresADrawingAlreadyBeingSent() throws Exception {
+        // this server never answers, so the first send waits for the acknowledgement
+        ServerSocket server = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        DrawingSender sender = createSender(server.getLocalPort(), new DrawingHistory());
+        try {
+            ArrayList<TouchData> drawing = createDrawing(1, 1);
+            assertTrue(sender.send(drawing, "127.0.0.1"));
+            assertFalse(sender.send(new ArrayList<>(drawing), "127.0.0.1"));
+            assertTrue(sender.send(createDrawing(1, 1), "127.0.0.1"));
+        } finally {
+            server.close();
+            sender.shutdown();
+        }
+        assertNotNull(mResults.poll(15, TimeUnit.SECONDS));
+        assertNotNull(mResults.poll(15, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void stoppedSender_reportsAFailure() throws Exception {
+        DrawingSender sender = createSender(MessageServer.PORT, new DrawingHistory());
+        sender.shutdown();
+        assertFalse(sender.send(createDrawing(1, 1), "127.0.0.1"));
+        assertEquals(DrawingSender.STATUS_FAILED, (int) mResults.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void send_refusesTooManyDrawings() throws Exception {
+        ServerSocket server = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        DrawingSender sender = createSender(server.getLocalPort(), new DrawingHistory());
+        try {
+            int accepted = 0;
+            for (int i=0; i < 10; i++) {
+                if (sender.send(createDrawing(1, 1), "127.0.0.1")) {
+                    accepted++;
+                }
+            }
+            // the one being sent stays in the outbox until the penpal has it, so it's counted
+            assertEquals(DrawingSender.MAX_QUEUED, accepted);
+            // the user is told about the drawings refused
+            for (int i = accepted; i < 10; i++) {
+                assertEquals(DrawingSender.STATUS_REFUSED, (int) mResults.poll(1, TimeUnit.SECONDS));
+            }
+        } finally {
+            server.close();
+            sender.shutdown();
+        }
+    }
+
+    @Test
+    public void drawingsWaitingInTheOutbox_areSentAfterARestart() throws Exception {
+        File directory = createDirectory("outbox");
+        // nobody listens on this port yet
+        ServerSocket reserved = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        int port = reserved.getLocalPort();
+        reserved.close();
+        DrawingSender sender = createSender(port, new DrawingHistory(), directory);
+        ArrayList<TouchData> first = createDrawing(1, 1);
+        ArrayList<TouchData> second = createDrawing(1, 1);
+        assertTrue(sender.send(first, "127.0.0.1"));
+        assertTrue(sender.send(second, "127.0.0.1"));
+        assertEquals(DrawingSender.STATUS_PENDING, (int) mResults.poll(15, TimeUnit.SECONDS));
+        assertEquals(DrawingSender.STATUS_PENDING, (int) mResults.poll(15, TimeUnit.SECONDS));
+        assertEquals(2, sender.getQueueDepth());
+        sender.shutdown();
+
+        // the penpal is back, and the app was launched again
+        LinkedBlockingQueue<ArrayList<TouchData>> received = new LinkedBlockingQueue<>();
+        MessageServer server = createServer(new DrawingHistory(), received);
+        sender = createSender(server.getPort(), new DrawingHistory(), directory);
+        try {
+            ArrayList<TouchData> drawing = received.poll(15, TimeUnit.SECONDS);
+            assertNotNull(drawing);
+            assertEquals(first.get(0).uuid, drawing.get(0).uuid);
+            drawing = received.poll(15, TimeUnit.SECONDS);
+            assertNotNull(drawing);
+            assertEquals(second.get(0).uuid, drawing.get(0).uuid);
+            assertEquals(DrawingSender.STATUS_SENT, (int) mResults.poll(5, TimeUnit.SECONDS));
+            assertEquals(DrawingSender.STATUS_SENT, (int) mResults.poll(5, TimeUnit.SECONDS));
+            assertEquals(0, sender.getQueueDepth());
+            assertEquals(0, sender.getOldestQueuedAge());
+        } finally {
+            sender.shutdown();
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package fr.valentinporchet.romeo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drawings, directories and servers shared by the tests
+ */
+final class Fixtures {
+
+    private Fixtures() {}
+
+    /**
+     * @param prefix beginning of the name of the directory
+     * @return a new empty directory, deleted at the end of the tests
+     */
+    static File createDirectory(String prefix) throws Exception {
+        File directory = File.createTempFile(prefix, "");
+        assertTrue(directory.delete() && directory.mkdir());
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    /**
+     * @param paths number of paths of the drawing
+     * @param points number of points of each path, after the first one
+     * @return a new drawing, with the color and a thickness of the app
+     */
+    static ArrayList<TouchData> createDrawing(int paths, int points) {
+        ArrayList<TouchData> drawing = new ArrayList<>();
+        long time = 0;
+        for (int p=0; p < paths; p++) {
+            TouchData touchData = new TouchData();
+            touchData.mPathColor = 0xFFC31D40;
+            touchData.mPathThickness = 15.f * (1 + p % 2);
+            float x = 100 + p, y = 200, length = 0;
+            touchData.mPath.moveTo(x, y);
+            for (int i=0; i < points; i++) {
+                x += 3.25f; y -= 1.5f;
+                length += (float) Math.hypot(3.25f, 1.5f);
+                time += 30 + i % 7;
+                touchData.mPath.lineTo(x, y);
+                touchData.mStroke.addSample(time, length);
+            }
+            drawing.add(touchData);
+        }
+        return drawing;
+    }
+
+    /**
+     * Start a server on any free port
+     * @param history history of the server
+     * @param received queue getting the drawings received
+     * @return the running server, to close
+     */
+    static MessageServer createServer(DrawingHistory history, final LinkedBlockingQueue<ArrayList<TouchData>> received)
+            throws Exception {
+        MessageServer server = new MessageServer(0, -1, history, new MessageServer.Listener() {
+            @Override
+            public void onDrawingProgress(long drawingId, ArrayList<TouchData> paths, long firstByteTime) {}
+
+            @Override
+            public void onDrawingReceived(long drawingId, ArrayList<TouchData> drawing, long firstByteTime) {
+                received.add(drawing);
+            }
+
+            @Override
+            public void onPositionsReceived(TTData positions) {}
+
+            @Override
+            public void onInkReceived(LiveInk.Update update) {}
+        });
+        server.open();
+        new Thread(server).start();
+        return server;
+    }
+}
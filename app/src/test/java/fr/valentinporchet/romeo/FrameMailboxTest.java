@@ -0,0 +1,89 @@
+package fr.valentinporchet.romeo;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the mailbox used to send the newest touch through positions
+ */
+public class FrameMailboxTest {
+
+    @Test
+    public void take_returnsTheNewestElement() throws Exception {
+        FrameMailbox<Integer> mailbox = new FrameMailbox<>();
+        mailbox.put(1);
+        mailbox.put(2);
+        mailbox.put(3);
+        assertEquals(3, (int) mailbox.take());
+        assertNull(mailbox.poll());
+        assertEquals(3, mailbox.getPutCount());
+        assertEquals(2, mailbox.getDroppedCount());
+    }
+
+    @Test
+    public void poll_waitsAtMostTheGivenTime() throws Exception {
+        FrameMailbox<Integer> mailbox = new FrameMailbox<>();
+        long start = System.nanoTime();
+        assertNull(mailbox.poll(50));
+        assertTrue(System.nanoTime() - start >= 50 * 1000000L);
+        mailbox.put(1);
+        assertEquals(1, (int) mailbox.poll(50));
+    }
+
+    @Test
+    public void putBack_keepsTheNewerElement() throws Exception {
+        FrameMailbox<Integer> mailbox = new FrameMailbox<>();
+        mailbox.put(1);
+        assertEquals(1, (int) mailbox.take());
+        assertTrue(mailbox.putBack(1));
+        assertEquals(1, (int) mailbox.take());
+        mailbox.put(2);
+        assertFalse(mailbox.putBack(1));
+        assertEquals(2, (int) mailbox.take());
+        // given back, but not put again
+        assertEquals(2, mailbox.getPutCount());
+        assertEquals(0, mailbox.getDroppedCount());
+    }
+
+    @Test
+    public void take_waitsForAnElement() throws Exception {
+        final FrameMailbox<Integer> mailbox = new FrameMailbox<>();
+        final AtomicInteger last = new AtomicInteger(-1);
+        final AtomicInteger taken = new AtomicInteger();
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int element;
+                    do {
+                        element = mailbox.take();
+                        // the elements are always more recent than the previous one
+                        assertTrue(element > last.get());
+                        last.set(element);
+                        taken.incrementAndGet();
+                    } while (element < 9999);
+                } catch (InterruptedException e) {
+                    // end of the test
+                }
+            }
+        });
+        consumer.start();
+        for (int i=0; i < 10000; i++) {
+            mailbox.put(i);
+        }
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+        assertEquals(9999, last.get());
+        assertEquals(10000, taken.get() + mailbox.getDroppedCount());
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void take_canBeInterrupted() throws Exception {
+        FrameMailbox<Integer> mailbox = new FrameMailbox<>();
+        Thread.currentThread().interrupt();
+        mailbox.take();
+    }
+}
@@ -0,0 +1,56 @@
+package fr.valentinporchet.romeo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static fr.valentinporchet.romeo.Fixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the inbox of received drawings, and of its memory budget
+ */
+public class InboxTest {
+
+    @Test
+    public void drawingsOverTheBudget_areKeptInOrder() throws Exception {
+        int size = DrawingCodec.encode(createDrawing(1, 49), 0).length;
+        Inbox inbox = new Inbox(createDirectory("inbox"), 2 * size);
+        ArrayList<ArrayList<TouchData>> drawings = new ArrayList<>();
+        for (int i=0; i < 5; i++) {
+            drawings.add(createDrawing(1, 49));
+            inbox.add(drawings.get(i));
+            assertTrue(inbox.getResidentSize() <= 2 * size);
+        }
+        assertEquals(5, inbox.size());
+        assertEquals(2 * size, inbox.getResidentSize());
+
+        for (int i=0; i < 5; i++) {
+            ArrayList<TouchData> drawing = inbox.poll();
+            assertEquals(drawings.get(i).get(0).uuid, drawing.get(0).uuid);
+            assertEquals(50, drawing.get(0).mStroke.getPointCount());
+            assertEquals(4 - i, inbox.size());
+        }
+        assertNull(inbox.poll());
+        assertTrue(inbox.isEmpty());
+        assertEquals(0, inbox.getResidentSize());
+    }
+
+    @Test
+    public void nextDrawing_isInMemoryEvenIfTooBig() throws Exception {
+        Inbox inbox = new Inbox(createDirectory("inbox"), 16);
+        ArrayList<TouchData> first = createDrawing(1, 99);
+        ArrayList<TouchData> second = createDrawing(1, 99);
+        inbox.add(first);
+        inbox.add(second);
+        assertEquals(DrawingCodec.encode(first, 0).length, inbox.getResidentSize());
+
+        assertEquals(first.get(0).uuid, inbox.poll().get(0).uuid);
+        assertEquals(DrawingCodec.encode(second, 0).length, inbox.getResidentSize());
+        assertEquals(second.get(0).uuid, inbox.poll().get(0).uuid);
+
+        inbox.add(createDrawing(1, 9));
+        inbox.clear();
+        assertTrue(inbox.isEmpty());
+    }
+}
@@ -0,0 +1,92 @@
+package fr.valentinporchet.romeo;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the latency measures : histograms, stamps and clock offsets
+ */
+public class LatencyTest {
+
+    @Before
+    public void clear() {
+        Latency.get().clear();
+    }
+
+    private static Latency.Stamp readStamp(byte[] bytes) throws Exception {
+        return Latency.Stamp.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    @Test
+    public void percentiles_areTheBoundsOfTheirBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 0; i < 90; i++) {
+            histogram.record(800); // 0.5 to 1 ms
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(30000); // 20 to 50 ms
+        }
+        histogram.record(-5); // clock jump, counted as 0
+        assertEquals(101, histogram.getCount());
+        assertEquals(1000, histogram.getPercentile(50));
+        assertEquals(1000, histogram.getPercentile(90));
+        assertEquals(30000, histogram.getPercentile(99)); // the longest duration, below the bound
+        assertEquals(30000, histogram.getMax());
+
+        histogram.record(60 * 1000 * 1000); // longer than all the buckets
+        assertEquals(60 * 1000 * 1000, histogram.getPercentile(100));
+        assertEquals(LatencyHistogram.getBounds().length + 1, histogram.getCounts().length);
+    }
+
+    @Test
+    public void stamp_isOptional() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Latency.Stamp.write(new DataOutputStream(bytes), 42);
+        assertEquals(Latency.STAMP_LENGTH, bytes.size());
+        Latency.Stamp stamp = readStamp(bytes.toByteArray());
+        assertEquals(42, stamp.mSequence);
+        assertTrue(Math.abs(System.currentTimeMillis() - stamp.mSendTime) < 1000);
+        assertNull(readStamp(new byte[0])); // old sender
+    }
+
+    @Test
+    public void networkTime_usesTheClockWithTheShortestRoundTrip() {
+        Latency latency = Latency.get();
+        // without the clock of the penpal, only the sequence is used
+        latency.received(Latency.TOUCH_THROUGH, "10.0.0.2", new Latency.Stamp(1, 5000), 1000);
+        assertEquals(0, latency.getHistogram(Latency.TOUCH_THROUGH, Latency.NETWORK).getCount());
+
+        latency.addClockSample("10.0.0.2", 3000, 40);
+        latency.addClockSample("10.0.0.2", 4000, 2); // the most precise
+        latency.addClockSample("10.0.0.2", 5000, 30);
+        assertEquals(Long.valueOf(4000), latency.getClockOffset("10.0.0.2"));
+        assertNull(latency.getClockOffset("10.0.0.3"));
+
+        // sent at 5000 on the clock of the penpal, so 1000 on ours
+        latency.received(Latency.TOUCH_THROUGH, "10.0.0.2", new Latency.Stamp(4, 5000), 1010);
+        LatencyHistogram network = latency.getHistogram(Latency.TOUCH_THROUGH, Latency.NETWORK);
+        assertEquals(1, network.getCount());
+        assertEquals(10000, network.getMax());
+        assertEquals(2, latency.getMissedCount(Latency.TOUCH_THROUGH));
+        assertEquals(2, latency.getReceivedCount(Latency.TOUCH_THROUGH));
+
+        // received before it was sent : the clock is not precise enough, the sample is dropped
+        latency.received(Latency.TOUCH_THROUGH, "10.0.0.2", new Latency.Stamp(5, 5000), 990);
+        assertEquals(1, network.getCount());
+        assertEquals(3, latency.getReceivedCount(Latency.TOUCH_THROUGH));
+
+        // a restarted sender starts again, nothing is missed
+        latency.received(Latency.TOUCH_THROUGH, "10.0.0.2", new Latency.Stamp(1, 5000), 1010);
+        assertEquals(2, network.getCount());
+        assertEquals(2, latency.getMissedCount(Latency.TOUCH_THROUGH));
+        assertTrue(latency.getSummary().contains("10.0.0.2"));
+    }
+}
@@ -0,0 +1,138 @@
+package fr.valentinporchet.romeo;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the live ink frames, from the path being drawn to the path rebuilt by the penpal
+ */
+public class LiveInkTest {
+
+    private static LiveInk.Update points(TouchData touchData, int firstPoint, int firstSample) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        LiveInk.writePoints(new DataOutputStream(buffer), touchData, firstPoint, firstSample);
+        return LiveInk.read(Frames.TYPE_INK_POINTS,
+                new DataInputStream(new ByteArrayInputStream(buffer.toByteArray())));
+    }
+
+    private static void lineTo(TouchData touchData, float x, float y, long time) {
+        touchData.mPath.lineTo(x, y);
+        touchData.mStroke.addSample(time, touchData.mStroke.getLength());
+    }
+
+    @Test
+    public void pointsSentInSeveralFrames_rebuildThePath() throws Exception {
+        TouchData drawn = new TouchData();
+        drawn.mPathColor = 0xFF112233;
+        drawn.mPath.moveTo(10, 10);
+        ArrayList<TouchData> received = new ArrayList<>();
+        assertTrue(LiveInk.apply(received, points(drawn, 0, 0)));
+
+        drawn.mPathThickness = 20;
+        lineTo(drawn, 13, 14, 30);
+        lineTo(drawn, 16, 18, 60);
+        assertTrue(LiveInk.apply(received, points(drawn, 1, 0)));
+        lineTo(drawn, 19, 22, 90);
+        assertTrue(LiveInk.apply(received, points(drawn, 3, 2)));
+
+        assertEquals(1, received.size());
+        TouchData rebuilt = received.get(0);
+        assertEquals(drawn.uuid, rebuilt.uuid);
+        assertEquals(0xFF112233, rebuilt.mPathColor);
+        assertEquals(20, rebuilt.mPathThickness, 0);
+        assertEquals(4, rebuilt.mStroke.getPointCount());
+        assertTrue(rebuilt.mStroke.isMove(0));
+        assertEquals(19, rebuilt.mStroke.getX(3), 0);
+        assertEquals(3, rebuilt.mStroke.getSampleCount());
+        assertEquals(90, rebuilt.mStroke.getTime(2));
+        assertEquals(15, rebuilt.mStroke.getLength(2), 0.001);
+    }
+
+    @Test
+    public void missingPoints_areNotApplied() throws Exception {
+        TouchData drawn = new TouchData();
+        drawn.mPath.moveTo(0, 0);
+        lineTo(drawn, 3, 4, 30);
+        lineTo(drawn, 6, 8, 60);
+
+        // the beginning of the path was lost
+        ArrayList<TouchData> received = new ArrayList<>();
+        assertFalse(LiveInk.apply(received, points(drawn, 1, 0)));
+        assertTrue(received.isEmpty());
+
+        // frames in the middle were lost
+        assertTrue(LiveInk.apply(received, points(drawn, 0, 0)));
+        lineTo(drawn, 9, 12, 90);
+        assertFalse(LiveInk.apply(received, points(drawn, 4, 3)));
+        assertEquals(3, received.get(0).mStroke.getPointCount());
+    }
+
+    @Test
+    public void pathSentAgain_replacesTheMissingPoints() throws Exception {
+        TouchData drawn = new TouchData();
+        drawn.mPath.moveTo(0, 0);
+        lineTo(drawn, 3, 4, 30);
+        ArrayList<TouchData> received = new ArrayList<>();
+        assertTrue(LiveInk.apply(received, points(drawn, 0, 0)));
+        lineTo(drawn, 6, 8, 60);
+        lineTo(drawn, 9, 12, 90);
+        assertFalse(LiveInk.apply(received, points(drawn, 3, 2))); // the frame of the point 2 was lost
+
+        assertTrue(LiveInk.apply(received, points(drawn, 0, 0)));
+        assertEquals(1, received.size());
+        assertEquals(4, received.get(0).mStroke.getPointCount());
+        assertEquals(3, received.get(0).mStroke.getSampleCount());
+        assertEquals(9, received.get(0).mStroke.getX(3), 0);
+    }
+
+    @Test
+    public void longPath_isSentInSeveralFrames() throws Exception {
+        TouchData drawn = new TouchData();
+        drawn.mPath.moveTo(0, 0);
+        for (int i=1; i < LiveInk.MAX_COUNT + 10; i++) {
+            lineTo(drawn, i, i, i);
+        }
+        ArrayList<TouchData> received = new ArrayList<>();
+        LiveInk.Update first = points(drawn, 0, 0);
+        assertEquals(LiveInk.MAX_COUNT, first.types.length);
+        assertTrue(LiveInk.apply(received, first));
+        assertTrue(LiveInk.apply(received, points(drawn, LiveInk.MAX_COUNT, LiveInk.MAX_COUNT)));
+        assertEquals(LiveInk.MAX_COUNT + 10, received.get(0).mStroke.getPointCount());
+        assertEquals(LiveInk.MAX_COUNT + 9, received.get(0).mStroke.getSampleCount());
+    }
+
+    @Test
+    public void receivedPaths_areBounded() throws Exception {
+        ArrayList<TouchData> received = new ArrayList<>();
+        TouchData drawn = null;
+        for (int i=0; i < LiveInk.MAX_PATHS + 1; i++) {
+            drawn = new TouchData();
+            drawn.mPath.moveTo(i, i);
+            assertTrue(LiveInk.apply(received, points(drawn, 0, 0)));
+        }
+        assertEquals(LiveInk.MAX_PATHS, received.size());
+        assertEquals(drawn.uuid, received.get(received.size() - 1).uuid);
+    }
+
+    @Test
+    public void endFrames_areRead() throws Exception {
+        TouchData drawn = new TouchData();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        LiveInk.writeEndStroke(new DataOutputStream(buffer), drawn);
+        LiveInk.Update end = LiveInk.read(Frames.TYPE_INK_END_STROKE,
+                new DataInputStream(new ByteArrayInputStream(buffer.toByteArray())));
+        assertEquals(drawn.uuid, end.uuid);
+
+        LiveInk.Update endMessage = LiveInk.read(Frames.TYPE_INK_END_MESSAGE,
+                new DataInputStream(new ByteArrayInputStream(new byte[0])));
+        assertEquals(Frames.TYPE_INK_END_MESSAGE, endMessage.type);
+        assertTrue(LiveInk.apply(new ArrayList<TouchData>(), endMessage));
+    }
+}
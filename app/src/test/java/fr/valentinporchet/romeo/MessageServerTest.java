@@ -0,0 +1,435 @@
+package fr.valentinporchet.romeo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static fr.valentinporchet.romeo.Fixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the server, with clients on the loopback interface
+ */
+public class MessageServerTest {
+    private LinkedBlockingQueue<Object> mReceived = new LinkedBlockingQueue<>();
+    private LinkedBlockingQueue<ArrayList<TouchData>> mProgress = new LinkedBlockingQueue<>();
+    private LinkedBlockingQueue<Long> mDrawingIds = new LinkedBlockingQueue<>(); // of the progress and the drawings
+    private DrawingHistory mHistory = new DrawingHistory();
+    private MessageServer mServer;
+    private InetAddress mLoopback;
+
+    @Before
+    public void startServer() throws Exception {
+        mLoopback = InetAddress.getByName("127.0.0.1");
+        mServer = new MessageServer(0, -1, mHistory, createListener());
+        mServer.setReadTimeout(2000);
+        mServer.open();
+        new Thread(mServer).start();
+    }
+
+    @After
+    public void stopServer() {
+        mServer.close();
+    }
+
+    private MessageServer.Listener createListener() {
+        return new MessageServer.Listener() {
+            @Override
+            public void onDrawingProgress(long drawingId, ArrayList<TouchData> paths, long firstByteTime) {
+                mDrawingIds.add(drawingId);
+                mProgress.add(paths);
+            }
+
+            @Override
+            public void onDrawingReceived(long drawingId, ArrayList<TouchData> drawing, long firstByteTime) {
+                mDrawingIds.add(drawingId);
+                mReceived.add(drawing);
+            }
+
+            @Override
+            public void onPositionsReceived(TTData positions) {
+                mReceived.add(positions);
+            }
+
+            @Override
+            public void onInkReceived(LiveInk.Update update) {
+                mReceived.add(update);
+            }
+        };
+    }
+
+    private ArrayList<TouchData> createBigDrawing() {
+        ArrayList<TouchData> drawing = new ArrayList<>();
+        for (int p=0; p < 10; p++) {
+            TouchData touchData = new TouchData();
+            touchData.mPath.moveTo(10, 10);
+            for (int i=1; i <= 1000; i++) {
+                touchData.mPath.lineTo(10 + i * 1.37f, 10 + (i * 7919 % 311));
+                touchData.mStroke.addSample(i * 30, touchData.mStroke.getLength());
+            }
+            drawing.add(touchData);
+        }
+        return drawing;
+    }
+
+    private static void writeFrame(OutputStream out, byte type, ByteArrayOutputStream payload) throws Exception {
+        DataOutputStream dataOut = new DataOutputStream(out);
+        Frames.write(dataOut, type, payload.toByteArray(), payload.size());
+        dataOut.flush();
+    }
+
+    private static int readChunkAck(Socket client, UUID id) throws Exception {
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        assertEquals(Frames.TYPE_CHUNK_ACK, Frames.readType(in));
+        Frames.readLength(in);
+        assertEquals(id, ChunkStore.readUuid(in));
+        int received = in.readInt();
+        assertEquals(ChunkStore.STATUS_IN_PROGRESS, in.readUnsignedByte());
+        return received;
+    }
+
+    private byte[] positionsFrame(float x) throws Exception {
+        TTData positions = new TTData();
+        positions.add(x, 2 * x);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        positions.writeTo(new DataOutputStream(payload));
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        Frames.write(new DataOutputStream(frame), Frames.TYPE_TT_DATA, payload.toByteArray(), payload.size());
+        return frame.toByteArray();
+    }
+
+    private Object nextMessage() throws Exception {
+        Object message = mReceived.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No message received", message);
+        return message;
+    }
+
+    @Test
+    public void positions_areReceivedOnAStream() throws Exception {
+        Socket client = new Socket(mLoopback, mServer.getPort());
+        try {
+            OutputStream out = client.getOutputStream();
+            byte[] frame = positionsFrame(5);
+            // the frame is split, the server must wait for the end of it
+            out.write(frame, 0, 3);
+            out.flush();
+            Thread.sleep(50);
+            out.write(frame, 3, frame.length - 3);
+            out.write(positionsFrame(6));
+            out.flush();
+            assertEquals(5, ((TTData) nextMessage()).get(0).x, 0);
+            assertEquals(6, ((TTData) nextMessage()).get(0).x, 0);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void drawing_isAcknowledgedAndAddedToTheHistory() throws Exception {
+        ArrayList<TouchData> drawing = createDrawing(1, 20);
+        Socket client = new Socket(mLoopback, mServer.getPort());
+        try {
+            client.setSoTimeout(5000);
+            client.getOutputStream().write(DrawingCodec.encode(drawing));
+            assertEquals(DrawingCodec.ACK_OK, client.getInputStream().read());
+        } finally {
+            client.close();
+        }
+        ArrayList<TouchData> received = (ArrayList<TouchData>) nextMessage();
+        assertEquals(drawing.get(0).uuid, received.get(0).uuid);
+        assertEquals(1, mHistory.findBase(drawing));
+    }
+
+    @Test
+    public void drawingReceivedAgain_isAcknowledgedButGivenOnce() throws Exception {
+        ArrayList<TouchData> drawing = createDrawing(1, 20);
+        // the sender didn't get the first acknowledgement, so it sends the drawing again
+        for (int i = 0; i < 2; i++) {
+            Socket client = new Socket(mLoopback, mServer.getPort());
+            try {
+                client.setSoTimeout(5000);
+                client.getOutputStream().write(DrawingCodec.encode(drawing));
+                assertEquals(DrawingCodec.ACK_OK, client.getInputStream().read());
+            } finally {
+                client.close();
+            }
+        }
+        assertEquals(drawing.get(0).uuid, ((ArrayList<TouchData>) nextMessage()).get(0).uuid);
+        assertNull(mReceived.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void firstPaths_areGivenBeforeTheEndOfTheDrawing() throws Exception {
+        ArrayList<TouchData> drawing = createDrawing(1, 20);
+        drawing.addAll(createDrawing(1, 20));
+        int twoPathsLength = DrawingCodec.encode(drawing).length;
+        drawing.addAll(createDrawing(1, 20));
+        byte[] encoded = DrawingCodec.encode(drawing);
+        Socket client = new Socket(mLoopback, mServer.getPort());
+        try {
+            // the third path is not entirely sent
+            OutputStream out = client.getOutputStream();
+            out.write(encoded, 0, twoPathsLength + 5);
+            out.flush();
+            ArrayList<TouchData> progress = mProgress.poll(5, TimeUnit.SECONDS);
+            assertNotNull("No progress received", progress);
+            assertEquals(2, progress.size());
+            assertTrue(mReceived.isEmpty());
+
+            out.write(encoded, twoPathsLength + 5, encoded.length - twoPathsLength - 5);
+            out.flush();
+            ArrayList<TouchData> received = (ArrayList<TouchData>) nextMessage();
+            assertEquals(3, received.size());
+            // the paths already given are not decoded again
+            assertSame(progress.get(1), received.get(1));
+            assertEquals(drawing.get(2).uuid, received.get(2).uuid);
+            // the progress and the drawing have the same number, the next drawing another one
+            long drawingId = mDrawingIds.poll();
+            assertEquals(drawingId, (long) mDrawingIds.poll());
+            out.write(DrawingCodec.encode(createDrawing(1, 20)));
+            out.flush();
+            nextMessage();
+            assertTrue(drawingId != mDrawingIds.poll());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void chunkedTransfer_isResumedOnANewConnection() throws Exception {
+        byte[] encoded = DrawingCodec.encode(createBigDrawing());
+        assertTrue(encoded.length > 2 * ChunkStore.CHUNK_SIZE);
+        UUID id = UUID.randomUUID();
+        ByteArrayOutputStream open = new ByteArrayOutputStream();
+        ChunkStore.writeOpen(new DataOutputStream(open), id, encoded.length);
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        ChunkStore.writeChunk(new DataOutputStream(chunk), id, 0, encoded, ChunkStore.CHUNK_SIZE);
+
+        // the first connection breaks after one chunk
+        Socket client = new Socket(mLoopback, mServer.getPort());
+        try {
+            client.setSoTimeout(5000);
+            writeFrame(client.getOutputStream(), Frames.TYPE_CHUNK_OPEN, open);
+            assertEquals(0, readChunkAck(client, id));
+            writeFrame(client.getOutputStream(), Frames.TYPE_CHUNK, chunk);
+            assertEquals(ChunkStore.CHUNK_SIZE, readChunkAck(client, id));
+        } finally {
+            client.close();
+        }
+
+        // the second one only needs to send the rest
+        client = new Socket(mLoopback, mServer.getPort());
+        try {
+            client.setSoTimeout(5000);
+            writeFrame(client.getOutputStream(), Frames.TYPE_CHUNK_OPEN, open);
+            assertEquals(ChunkStore.CHUNK_SIZE, readChunkAck(client, id));
+        } finally {
+            client.close();
+        }
+        assertTrue(mReceived.isEmpty());
+    }
+
+    @Test
+    public void bigDrawing_isSentInChunks() throws Exception {
+        ArrayList<TouchData> drawing = createBigDrawing();
+        DrawingHistory history = new DrawingHistory();
+        new ClientThread(drawing, mLoopback, mServer.getPort(), history).send();
+        ArrayList<TouchData> received = (ArrayList<TouchData>) nextMessage();
+        assertEquals(10, received.size());
+        assertEquals(drawing.get(9).uuid, received.get(9).uuid);
+        assertEquals(1000, received.get(9).mStroke.getSampleCount());
+        assertEquals(10, history.findBase(drawing));
+        // the first paths were given before the end of the transfer
+        assertNotNull(mProgress.poll());
+    }
+
+    @Test
+    public void response_toAnUnknownDrawing_isRefused() throws Exception {
+        ArrayList<TouchData> drawing = createDrawing(1, 20);
+        drawing.addAll(createDrawing(1, 20));
+        Socket client = new Socket(mLoopback, mServer.getPort());
+        try {
+            client.setSoTimeout(5000);
+            client.getOutputStream().write(DrawingCodec.encode(drawing, 1, DrawingCodec.FLAG_DELTA));
+            assertEquals(DrawingCodec.ACK_MISSING_BASE, client.getInputStream().read());
+            // the client then sends everything on the same connection
+            client.getOutputStream().write(DrawingCodec.encode(drawing));
+            assertEquals(DrawingCodec.ACK_OK, client.getInputStream().read());
+        } finally {
+            client.close();
+        }
+        assertEquals(2, ((ArrayList<TouchData>) nextMessage()).size());
+    }
+
+    @Test
+    public void serializedDrawing_isReceived() throws Exception {
+        ArrayList<TouchData> drawing = createDrawing(1, 20);
+        Socket client = new Socket(mLoopback, mServer.getPort());
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(client.getOutputStream());
+            out.writeObject(drawing);
+            out.flush();
+            ArrayList<TouchData> received = (ArrayList<TouchData>) nextMessage();
+            assertEquals(drawing.get(0).uuid, received.get(0).uuid);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void positionsOfOldClients_areReceivedOnTheLegacyPort() throws Exception {
+        ServerSocket reserved = new ServerSocket(0, 10, mLoopback);
+        int legacyPort = reserved.getLocalPort();
+        reserved.close();
+        MessageServer server = new MessageServer(0, legacyPort, mHistory, createListener());
+        server.open();
+        new Thread(server).start();
+        try {
+            // serialized on a new connection
+            TTData positions = new TTData();
+            positions.add(4, 8);
+            Socket client = new Socket(mLoopback, legacyPort);
+            try {
+                ObjectOutputStream out = new ObjectOutputStream(client.getOutputStream());
+                out.writeObject(positions);
+                out.flush();
+                assertEquals(4, ((TTData) nextMessage()).get(0).x, 0);
+            } finally {
+                client.close();
+            }
+
+            // in a datagram
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            TTDatagrams.write(new DataOutputStream(bytes), 1, 1, positions);
+            DatagramSocket datagramClient = new DatagramSocket();
+            try {
+                datagramClient.send(new DatagramPacket(bytes.toByteArray(), bytes.size(), mLoopback, legacyPort));
+                assertEquals(4, ((TTData) nextMessage()).get(0).x, 0);
+            } finally {
+                datagramClient.close();
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void slowClient_doesntBlockTheOthers() throws Exception {
+        Socket slowClient = new Socket(mLoopback, mServer.getPort());
+        Socket client = new Socket(mLoopback, mServer.getPort());
+        try {
+            // the slow client only sends the beginning of a drawing
+            slowClient.getOutputStream().write(DrawingCodec.encode(createDrawing(1, 20)), 0, 12);
+            client.getOutputStream().write(positionsFrame(7));
+            assertEquals(7, ((TTData) nextMessage()).get(0).x, 0);
+        } finally {
+            client.close();
+            slowClient.close();
+        }
+    }
+
+    @Test
+    public void stalledClient_isDisconnected() throws Exception {
+        Socket client = new Socket(mLoopback, mServer.getPort());
+        try {
+            client.setSoTimeout(10000);
+            client.getOutputStream().write(DrawingCodec.encode(createDrawing(1, 20)), 0, 12);
+            // the server closes the connection instead of waiting for the end of the drawing
+            assertEquals(-1, client.getInputStream().read());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void drawingsOfSeveralClients_areDecodedAtTheSameTime() throws Exception {
+        Socket[] clients = new Socket[8];
+        ArrayList<UUID> sent = new ArrayList<>();
+        try {
+            for (int i=0; i < clients.length; i++) {
+                ArrayList<TouchData> drawing = createBigDrawing();
+                sent.add(drawing.get(0).uuid);
+                clients[i] = new Socket(mLoopback, mServer.getPort());
+                clients[i].setSoTimeout(10000);
+                // not chunked : each one is decoded from the buffer of its connection
+                clients[i].getOutputStream().write(DrawingCodec.encode(drawing, 0));
+            }
+            for (Socket client : clients) {
+                assertEquals(DrawingCodec.ACK_OK, client.getInputStream().read());
+            }
+        } finally {
+            for (Socket client : clients) {
+                if (client != null) {
+                    client.close();
+                }
+            }
+        }
+        ArrayList<UUID> received = new ArrayList<>();
+        for (int i=0; i < clients.length; i++) {
+            received.add(((ArrayList<TouchData>) nextMessage()).get(0).uuid);
+        }
+        assertTrue(received.containsAll(sent));
+    }
+
+    @Test
+    public void ping_givesTheClockUsedForTheNetworkTime() throws Exception {
+        Latency.get().clear();
+        Socket client = new Socket(mLoopback, mServer.getPort());
+        try {
+            client.setSoTimeout(5000);
+            Latency.ping(client);
+            Long offset = Latency.get().getClockOffset(mLoopback.getHostAddress());
+            assertNotNull(offset);
+            assertTrue(Math.abs(offset) < 1000); // same clock
+
+            // stamped positions, then a stamped drawing
+            TTData positions = new TTData();
+            positions.add(3, 4);
+            client.getOutputStream().write(TTClientThread.Packet.encode(positions, false, 0, 7).mBytes);
+            assertEquals(7, ((TTData) nextMessage()).getStamp().mSequence);
+            ByteArrayOutputStream stamp = new ByteArrayOutputStream();
+            Latency.Stamp.write(new DataOutputStream(stamp), 1);
+            writeFrame(client.getOutputStream(), Frames.TYPE_STAMP, stamp);
+            client.getOutputStream().write(DrawingCodec.encode(createDrawing(1, 20)));
+            assertEquals(DrawingCodec.ACK_OK, client.getInputStream().read());
+            nextMessage();
+        } finally {
+            client.close();
+        }
+        assertEquals(1, Latency.get().getHistogram(Latency.TOUCH_THROUGH, Latency.NETWORK).getCount());
+        assertEquals(1, Latency.get().getHistogram(Latency.TOUCH_THROUGH, Latency.DECODE).getCount());
+        assertEquals(1, Latency.get().getHistogram(Latency.DRAWING, Latency.NETWORK).getCount());
+        assertEquals(1, Latency.get().getHistogram(Latency.DRAWING, Latency.DECODE).getCount());
+        assertEquals(1, Latency.get().getReceivedCount(Latency.DRAWING));
+    }
+
+    @Test
+    public void positions_areReceivedInDatagrams() throws Exception {
+        TTData positions = new TTData();
+        positions.add(8, 16);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TTDatagrams.write(new DataOutputStream(bytes), 1, 1, positions);
+        DatagramSocket client = new DatagramSocket();
+        try {
+            client.send(new DatagramPacket(bytes.toByteArray(), bytes.size(), mLoopback, mServer.getPort()));
+            assertEquals(8, ((TTData) nextMessage()).get(0).x, 0);
+        } finally {
+            client.close();
+        }
+    }
+}
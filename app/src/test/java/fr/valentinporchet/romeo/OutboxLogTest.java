@@ -0,0 +1,92 @@
+package fr.valentinporchet.romeo;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the outbox, and of what it keeps between two launches of the app
+ */
+public class OutboxLogTest {
+    private File mDirectory;
+
+    @Before
+    public void createDirectory() throws Exception {
+        mDirectory = File.createTempFile("outbox", "");
+        assertTrue(mDirectory.delete() && mDirectory.mkdir());
+        mDirectory.deleteOnExit();
+    }
+
+    @Test
+    public void messages_areReadInOrderAndRemovedOnceSent() throws Exception {
+        OutboxLog log = new OutboxLog(mDirectory, "test", OutboxLog.FSYNC_ALWAYS);
+        log.append(new byte[] {1}, 100);
+        log.append(new byte[] {2, 2}, 200);
+        log.append(new byte[] {3, 3, 3}, 300);
+        assertEquals(3, log.size());
+        assertEquals(100, log.getOldestTime());
+
+        ArrayList<byte[]> messages = log.peek(2);
+        assertEquals(2, messages.size());
+        assertArrayEquals(new byte[] {1}, messages.get(0));
+        assertArrayEquals(new byte[] {2, 2}, messages.get(1));
+
+        log.remove(1);
+        assertEquals(2, log.size());
+        assertEquals(200, log.getOldestTime());
+        assertArrayEquals(new byte[] {2, 2}, log.peek(1).get(0));
+
+        log.remove(2);
+        assertEquals(0, log.size());
+        assertEquals(-1, log.getOldestTime());
+        assertTrue(log.peek(4).isEmpty());
+        assertEquals(0, new File(mDirectory, "test.log").length());
+        log.close();
+    }
+
+    @Test
+    public void messagesNotSent_areLoadedAgain() throws Exception {
+        OutboxLog log = new OutboxLog(mDirectory, "test", OutboxLog.FSYNC_BATCH);
+        log.append(new byte[] {1}, 100);
+        log.append(new byte[] {2, 2}, 200);
+        log.remove(1);
+        log.close();
+
+        log = new OutboxLog(mDirectory, "test", OutboxLog.FSYNC_BATCH);
+        assertEquals(1, log.size());
+        assertEquals(200, log.getOldestTime());
+        assertArrayEquals(new byte[] {2, 2}, log.peek(4).get(0));
+        log.close();
+    }
+
+    @Test
+    public void messagePartiallyWritten_isDropped() throws Exception {
+        OutboxLog log = new OutboxLog(mDirectory, "test", OutboxLog.FSYNC_ALWAYS);
+        log.append(new byte[] {1}, 100);
+        log.append(new byte[] {2, 2, 2, 2}, 200);
+        log.close();
+
+        // the app was killed while the second message was written
+        File file = new File(mDirectory, "test.log");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(file.length() - 2);
+        randomAccessFile.close();
+
+        log = new OutboxLog(mDirectory, "test", OutboxLog.FSYNC_ALWAYS);
+        assertEquals(1, log.size());
+        assertArrayEquals(new byte[] {1}, log.peek(4).get(0));
+        // the next messages are written after the valid ones
+        log.append(new byte[] {3}, 300);
+        log.close();
+
+        log = new OutboxLog(mDirectory, "test", OutboxLog.FSYNC_ALWAYS);
+        assertEquals(2, log.size());
+        assertArrayEquals(new byte[] {3}, log.peek(4).get(1));
+        log.close();
+    }
+}
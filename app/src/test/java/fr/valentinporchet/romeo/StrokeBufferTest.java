@@ -0,0 +1,99 @@
+package fr.valentinporchet.romeo;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the primitive storage of paths
+ */
+public class StrokeBufferTest {
+
+    @Test
+    public void points_growAndKeepTheirOrder() {
+        StrokeBuffer stroke = new StrokeBuffer();
+        stroke.moveTo(0, 0);
+        for (int i=1; i < 1000; i++) {
+            stroke.lineTo(i, -i);
+            stroke.addSample(i * 30, i);
+        }
+        assertEquals(1000, stroke.getPointCount());
+        assertEquals(999, stroke.getSampleCount());
+        assertTrue(stroke.isMove(0));
+        assertFalse(stroke.isMove(500));
+        assertEquals(500, stroke.getX(500), 0);
+        assertEquals(-500, stroke.getY(500), 0);
+        assertEquals(500 * 30, stroke.getTime(499));
+    }
+
+    @Test
+    public void findSample_countsTheSamplesBeforeATime() {
+        StrokeBuffer stroke = new StrokeBuffer();
+        assertEquals(0, stroke.findSample(100));
+        stroke.addSample(10, 1);
+        stroke.addSample(20, 2);
+        stroke.addSample(20, 3);
+        stroke.addSample(40, 4);
+        assertEquals(0, stroke.findSample(5));
+        assertEquals(0, stroke.findSample(10));
+        assertEquals(1, stroke.findSample(11));
+        assertEquals(1, stroke.findSample(20));
+        assertEquals(3, stroke.findSample(21));
+        assertEquals(4, stroke.findSample(1000));
+    }
+
+    @Test
+    public void lengthAt_isInterpolatedBetweenSamples() {
+        StrokeBuffer stroke = new StrokeBuffer();
+        stroke.addSample(100, 10);
+        stroke.addSample(200, 30);
+        stroke.addSample(200, 40);
+        assertEquals(0, stroke.getLengthAt(50), 0);
+        assertEquals(0, stroke.getLengthAt(100), 0);
+        assertEquals(20, stroke.getLengthAt(150), 1e-4);
+        assertEquals(30, stroke.getLengthAt(200), 0);
+        assertEquals(40, stroke.getLengthAt(201), 0);
+    }
+
+    @Test
+    public void length_isUpdatedWithEachLine() {
+        StrokeBuffer stroke = new StrokeBuffer();
+        stroke.moveTo(10, 10);
+        assertEquals(0, stroke.getLength(), 0);
+        stroke.lineTo(13, 14);
+        assertEquals(5, stroke.getLength(), 0);
+        stroke.lineTo(13, 24);
+        assertEquals(15, stroke.getLength(), 0);
+    }
+
+    @Test
+    public void length_onlyMeasuresTheFirstContour() {
+        StrokeBuffer stroke = new StrokeBuffer();
+        stroke.moveTo(0, 0);
+        stroke.moveTo(1, 1); // a contour without length is skipped, like PathMeasure does
+        stroke.lineTo(1, 4);
+        stroke.moveTo(50, 50);
+        stroke.lineTo(60, 60);
+        assertEquals(3, stroke.getLength(), 0);
+    }
+
+    @Test
+    public void length_isRestoredAfterSerialization() throws Exception {
+        StrokeBuffer stroke = new StrokeBuffer();
+        stroke.moveTo(0, 0);
+        stroke.lineTo(6, 8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(stroke);
+        out.close();
+        StrokeBuffer read = (StrokeBuffer) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(10, read.getLength(), 0);
+        read.lineTo(6, 9);
+        assertEquals(11, read.getLength(), 0);
+    }
+}
@@ -0,0 +1,115 @@
+package fr.valentinporchet.romeo;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the touch through datagrams, sent on the loopback interface
+ */
+public class TTDatagramsTest {
+
+    @Test
+    public void receiver_ignoresOlderPositions() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        DatagramSocket server = new DatagramSocket(0, loopback);
+        DatagramSocket client = new DatagramSocket();
+        try {
+            server.setSoTimeout(2000);
+            // sequences 1, 3, then 2 which arrived late, then a new session of the sender
+            send(client, server, 7, 1, 10);
+            send(client, server, 7, 3, 30);
+            send(client, server, 7, 2, 20);
+            send(client, server, 8, 1, 40);
+
+            TTDatagrams.Receiver receiver = new TTDatagrams.Receiver();
+            assertEquals(10, receive(server, receiver).get(0).x, 0);
+            assertEquals(30, receive(server, receiver).get(0).x, 0);
+            assertNull(receive(server, receiver));
+            assertEquals(40, receive(server, receiver).get(0).x, 0);
+            assertEquals(1, receiver.getStaleCount());
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void receiver_acceptsSequencesWrappingAround() throws Exception {
+        TTDatagrams.Receiver receiver = new TTDatagrams.Receiver();
+        assertNotNull(read(receiver, 1, Integer.MAX_VALUE));
+        assertNotNull(read(receiver, 1, Integer.MIN_VALUE));
+        assertNull(read(receiver, 1, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void client_sendsTheEmptyPositionsAgain() throws Exception {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        DatagramSocket server = new DatagramSocket(0, loopback);
+        TTClientThread client = new TTClientThread("127.0.0.1", server.getLocalPort());
+        client.setUseDatagrams(true);
+        Thread thread = new Thread(client);
+        thread.start();
+        try {
+            server.setSoTimeout(2000);
+            TTData data = new TTData();
+            data.add(10, 20);
+            client.send(TTClientThread.Packet.encode(data, true, 7, 1));
+            TTDatagrams.Receiver receiver = new TTDatagrams.Receiver();
+            assertEquals(1, receive(server, receiver).size());
+
+            // the fingers are up : the empty positions are received once, then ignored
+            client.send(TTClientThread.Packet.encode(new TTData(), true, 7, 2));
+            assertTrue(receive(server, receiver).isEmpty());
+            for (int i=0; i < TTDatagrams.EMPTY_REPEAT_COUNT; i++) {
+                assertNull(receive(server, receiver));
+            }
+            server.setSoTimeout((int) TTDatagrams.EMPTY_REPEAT_INTERVAL * 5);
+            try {
+                receive(server, receiver);
+                fail("The empty positions are sent again only " + TTDatagrams.EMPTY_REPEAT_COUNT + " times");
+            } catch (SocketTimeoutException e) {
+                // expected
+            }
+            assertEquals(2, client.getSentCount());
+        } finally {
+            client.stop();
+            thread.interrupt();
+            server.close();
+        }
+    }
+
+    private static void send(DatagramSocket client, DatagramSocket server, int session, int sequence, float x)
+            throws Exception {
+        byte[] datagram = encode(session, sequence, x);
+        client.send(new DatagramPacket(datagram, datagram.length, server.getLocalAddress(), server.getLocalPort()));
+    }
+
+    private static TTData receive(DatagramSocket server, TTDatagrams.Receiver receiver) throws Exception {
+        byte[] buffer = new byte[TTDatagrams.MAX_DATAGRAM_LENGTH];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        server.receive(packet);
+        return receiver.read(buffer, packet.getLength());
+    }
+
+    private static TTData read(TTDatagrams.Receiver receiver, int session, int sequence) throws Exception {
+        byte[] datagram = encode(session, sequence, 0);
+        return receiver.read(datagram, datagram.length);
+    }
+
+    private static byte[] encode(int session, int sequence, float x) throws Exception {
+        TTData data = new TTData();
+        data.setColor(0xFF272F80);
+        data.add(x, 2 * x);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TTDatagrams.write(new DataOutputStream(bytes), session, sequence, data);
+        return bytes.toByteArray();
+    }
+}
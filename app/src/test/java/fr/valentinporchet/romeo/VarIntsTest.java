@@ -0,0 +1,35 @@
+package fr.valentinporchet.romeo;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the variable length encoding of integers
+ */
+public class VarIntsTest {
+
+    @Test
+    public void zigZag_roundTrips() throws Exception {
+        int[] values = {0, 1, -1, 63, -64, 64, 300, -300, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * VarInts.MAX_VARINT_LENGTH);
+        for (int value : values) { VarInts.putZigZag(buffer, value); }
+        buffer.flip();
+        for (int value : values) { assertEquals(value, VarInts.getZigZag(buffer)); }
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void smallValues_takeOneByte() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(VarInts.MAX_VARINT_LENGTH);
+        VarInts.putZigZag(buffer, -64);
+        assertEquals(1, buffer.position());
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void tooLongValue_isRejected() throws Exception {
+        VarInts.getVarInt(ByteBuffer.wrap(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1}));
+    }
+}
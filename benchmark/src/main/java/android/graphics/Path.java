@@ -0,0 +1,12 @@
+package android.graphics;
+
+/**
+ * Stand-in for the Path of Android, which only exists on the phones. The points of the
+ * drawings are kept by StrokeBuffer, which is what the wire formats write : the benchmarks
+ * don't need the path itself.
+ */
+public class Path {
+    public void moveTo(float x, float y) {}
+
+    public void lineTo(float x, float y) {}
+}
@@ -0,0 +1,64 @@
+package fr.valentinporchet.romeo.benchmark;
+
+import fr.valentinporchet.romeo.TouchData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the encoding and of the decoding of a drawing, in each wire format (see
+ * WireFormat), for a short note and for a long drawing. Run with the gc profiler (see the
+ * jmh task of the module), the allocations per drawing are given by gc.alloc.rate.norm.
+ * The sizes of the drawings are given by WireSizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DrawingCodecBenchmark {
+    private static final long SEED = 42;
+
+    // JMH sets the parameters, the fields must be public
+    @Param({ "SERIALIZATION", "CODEC_EXACT", "CODEC_DELTA" })
+    public WireFormat format;
+
+    @Param({ "10", "100" })
+    public int strokes;
+
+    @Param({ "60", "300" }) // 1 s and 5 s of drawing per stroke
+    public int points;
+
+    private ArrayList<TouchData> mDrawing;
+    private byte[] mEncoded;
+
+    @Setup
+    public void createDrawing() throws IOException {
+        mDrawing = SyntheticDrawings.create(strokes, points, SEED);
+        mEncoded = format.encode(mDrawing);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return format.encode(mDrawing);
+    }
+
+    @Benchmark
+    public ArrayList<TouchData> decode() throws IOException {
+        return format.decode(mEncoded);
+    }
+}
@@ -0,0 +1,67 @@
+package fr.valentinporchet.romeo.benchmark;
+
+import fr.valentinporchet.romeo.TouchData;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Drawings like the ones of TouchDisplayView, generated from a seed so that each run
+ * measures the same ones : each stroke starts with a moveTo, then a lineTo and a sample
+ * for each touch event, at 60 events per second. The pen turns slowly and changes speed,
+ * as a hand does, so the points are not on a grid and the deltas are not constant.
+ */
+public final class SyntheticDrawings {
+    private static final int WIDTH = 1280; // in px, size of the drawing area of a tablet
+    private static final int HEIGHT = 800;
+    private static final long EVENT_INTERVAL = 16; // in ms, between two touch events
+    private static final long STROKE_PAUSE = 300; // in ms, between two strokes
+    private static final int[] COLORS = { 0xFF242424, 0xFFC31D40, 0xFF2EC196, 0xFF272F80 };
+
+    private SyntheticDrawings() {}
+
+    /**
+     * @param strokeCount number of strokes (paths) of the drawing
+     * @param pointCount number of points of each stroke, its moveTo included
+     * @param seed seed of the generator, the same seed giving the same drawing
+     * @return the drawing
+     */
+    public static ArrayList<TouchData> create(int strokeCount, int pointCount, long seed) {
+        Random random = new Random(seed);
+        ArrayList<TouchData> drawing = new ArrayList<>(strokeCount);
+        long time = 0; // since the first touch, like the samples of the app
+        for (int s = 0; s < strokeCount; s++) {
+            // the uuids also come from the seed
+            TouchData touchData = new TouchData(new UUID(random.nextLong(), random.nextLong()));
+            touchData.mPathColor = COLORS[random.nextInt(COLORS.length)];
+            touchData.mPathThickness = 15.f * (1 + random.nextFloat()); // see MAX_TIME_THICKNESS of the app
+
+            float x = random.nextFloat() * WIDTH;
+            float y = random.nextFloat() * HEIGHT;
+            double angle = random.nextDouble() * 2 * Math.PI;
+            double speed = 2 + random.nextDouble() * 4; // in px per event
+            touchData.mPath.moveTo(x, y);
+            for (int p = 1; p < pointCount; p++) {
+                angle += random.nextGaussian() * 0.2;
+                speed = Math.max(0.5, Math.min(12, speed + random.nextGaussian() * 0.5));
+                // the pen bounces on the sides of the area
+                x = bounce(x + (float) (Math.cos(angle) * speed), WIDTH);
+                y = bounce(y + (float) (Math.sin(angle) * speed), HEIGHT);
+                time += EVENT_INTERVAL + random.nextInt(3) - 1; // the events are not exactly regular
+                touchData.mPath.lineTo(x, y);
+                touchData.mStroke.addSample(time, touchData.mStroke.getLength());
+            }
+            drawing.add(touchData);
+            time += STROKE_PAUSE;
+        }
+        return drawing;
+    }
+
+    private static float bounce(float coordinate, int size) {
+        if (coordinate < 0) {
+            return -coordinate;
+        }
+        return coordinate > size ? 2 * size - coordinate : coordinate;
+    }
+}
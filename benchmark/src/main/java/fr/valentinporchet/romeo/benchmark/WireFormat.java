@@ -0,0 +1,78 @@
+package fr.valentinporchet.romeo.benchmark;
+
+import fr.valentinporchet.romeo.DrawingCodec;
+import fr.valentinporchet.romeo.TouchData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+
+/**
+ * The ways a drawing can be written on the network or in the outbox of the app
+ */
+public enum WireFormat {
+    /**
+     * Java serialization of the list, sent by the old phones, and still the fallback of
+     * ClientThread when a drawing can't be encoded
+     */
+    SERIALIZATION {
+        @Override
+        public byte[] encode(ArrayList<TouchData> drawing) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(drawing);
+            out.close();
+            return bytes.toByteArray();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public ArrayList<TouchData> decode(byte[] encoded) throws IOException {
+            try {
+                return (ArrayList<TouchData>) new ObjectInputStream(new ByteArrayInputStream(encoded)).readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Invalid serialized drawing", e);
+            }
+        }
+    },
+
+    /**
+     * DrawingCodec without flags : the exact points, as written in the outbox
+     */
+    CODEC_EXACT {
+        @Override
+        public byte[] encode(ArrayList<TouchData> drawing) throws IOException {
+            return DrawingCodec.encode(drawing, 0);
+        }
+    },
+
+    /**
+     * DrawingCodec with FLAG_DELTA : the points quantized and written as varints, as sent to the penpal
+     */
+    CODEC_DELTA {
+        @Override
+        public byte[] encode(ArrayList<TouchData> drawing) throws IOException {
+            return DrawingCodec.encode(drawing, DrawingCodec.FLAG_DELTA);
+        }
+    };
+
+    /**
+     * @param drawing the drawing
+     * @return the bytes written for it
+     * @throws IOException if the drawing can't be written in this format
+     */
+    public abstract byte[] encode(ArrayList<TouchData> drawing) throws IOException;
+
+    /**
+     * @param encoded bytes written by encode()
+     * @return the drawing
+     * @throws IOException if the bytes are not valid
+     */
+    public ArrayList<TouchData> decode(byte[] encoded) throws IOException {
+        return DrawingCodec.decode(new DataInputStream(new ByteArrayInputStream(encoded)));
+    }
+}
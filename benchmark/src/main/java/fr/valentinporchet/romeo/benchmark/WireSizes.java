@@ -0,0 +1,44 @@
+package fr.valentinporchet.romeo.benchmark;
+
+import fr.valentinporchet.romeo.TouchData;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Prints the size of the drawings of DrawingCodecBenchmark in each wire format, in bytes
+ * per point : unlike the throughput, it doesn't depend on the machine.
+ */
+public final class WireSizes {
+    private static final long SEED = 42;
+    private static final int[] STROKE_COUNTS = { 10, 100 };
+    private static final int[] POINT_COUNTS = { 60, 300 };
+
+    private WireSizes() {}
+
+    /**
+     * @param strokeCount number of strokes of the drawing
+     * @param pointCount number of points of each stroke
+     * @param format the wire format
+     * @return the number of bytes written per point of the drawing
+     * @throws IOException if the drawing can't be written in this format
+     */
+    public static double getBytesPerPoint(int strokeCount, int pointCount, WireFormat format) throws IOException {
+        ArrayList<TouchData> drawing = SyntheticDrawings.create(strokeCount, pointCount, SEED);
+        return format.encode(drawing).length / (double) (strokeCount * pointCount);
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.out.println("strokes\tpoints\tformat\tbytes\tbytes/point");
+        for (int strokeCount : STROKE_COUNTS) {
+            for (int pointCount : POINT_COUNTS) {
+                for (WireFormat format : WireFormat.values()) {
+                    double bytesPerPoint = getBytesPerPoint(strokeCount, pointCount, format);
+                    System.out.println(String.format(Locale.US, "%d\t%d\t%s\t%d\t%.2f", strokeCount, pointCount,
+                            format, Math.round(bytesPerPoint * strokeCount * pointCount), bytesPerPoint));
+                }
+            }
+        }
+    }
+}
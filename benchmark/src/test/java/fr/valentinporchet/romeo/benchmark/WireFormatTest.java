@@ -0,0 +1,57 @@
+package fr.valentinporchet.romeo.benchmark;
+
+import fr.valentinporchet.romeo.StrokeBuffer;
+import fr.valentinporchet.romeo.TouchData;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the drawings of the benchmarks : they must be decoded as they were encoded,
+ * else the benchmarks would compare formats which don't do the same work
+ */
+public class WireFormatTest {
+
+    @Test
+    public void syntheticDrawings_dependOnlyOnTheSeed() {
+        ArrayList<TouchData> first = SyntheticDrawings.create(3, 20, 7);
+        ArrayList<TouchData> second = SyntheticDrawings.create(3, 20, 7);
+        assertEquals(3, first.size());
+        for (int s = 0; s < first.size(); s++) {
+            assertEquals(first.get(s).uuid, second.get(s).uuid);
+            assertEquals(20, first.get(s).mStroke.getPointCount());
+            assertEquals(19, first.get(s).mStroke.getSampleCount());
+            assertEquals(first.get(s).mStroke.getX(10), second.get(s).mStroke.getX(10), 0);
+        }
+    }
+
+    @Test
+    public void allFormats_giveBackTheDrawing() throws Exception {
+        ArrayList<TouchData> drawing = SyntheticDrawings.create(5, 60, 42);
+        for (WireFormat format : WireFormat.values()) {
+            ArrayList<TouchData> decoded = format.decode(format.encode(drawing));
+            assertEquals(drawing.size(), decoded.size());
+            for (int s = 0; s < drawing.size(); s++) {
+                StrokeBuffer expected = drawing.get(s).mStroke, actual = decoded.get(s).mStroke;
+                assertEquals(drawing.get(s).uuid, decoded.get(s).uuid);
+                assertEquals(expected.getPointCount(), actual.getPointCount());
+                assertEquals(expected.getSampleCount(), actual.getSampleCount());
+                // the delta encoding quantizes the points to 1/8 px
+                assertEquals(expected.getX(30), actual.getX(30), 1 / 16.f);
+                assertEquals(expected.getTime(30), actual.getTime(30));
+            }
+        }
+    }
+
+    @Test
+    public void deltaEncoding_isTheSmallest() throws Exception {
+        double serialization = WireSizes.getBytesPerPoint(10, 60, WireFormat.SERIALIZATION);
+        double exact = WireSizes.getBytesPerPoint(10, 60, WireFormat.CODEC_EXACT);
+        double delta = WireSizes.getBytesPerPoint(10, 60, WireFormat.CODEC_DELTA);
+        assertTrue(delta < exact);
+        assertTrue(exact < serialization);
+    }
+}
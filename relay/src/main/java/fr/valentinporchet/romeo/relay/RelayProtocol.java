@@ -0,0 +1,85 @@
+package fr.valentinporchet.romeo.relay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Frames understood by the relay. They use the framing of the phones (see Frames in the app) :
+ * [type (1 byte)][payload length (4 bytes)][payload]
+ * A phone first sends TYPE_JOIN with the id of its session (the pair of penpals), then all
+ * its frames are given as is to the other phones of the session, like the touch through
+ * positions and the live ink. Only frames go through the relay : a drawing must be sent in
+ * chunks even when it's small (see ChunkStore in the app), as a drawing sent alone would be
+ * read as a frame. The acknowledgements of the chunks are only given to
+ * the phone which opened the transfer.
+ * Each time a phone joins or leaves a session, the relay sends TYPE_PRESENCE to its phones.
+ */
+public final class RelayProtocol {
+    // types of frames, not used by the app
+    public static final byte TYPE_JOIN = 8; // payload : id of the session (writeUTF)
+    public static final byte TYPE_PRESENCE = 9; // payload : number of phones in the session (int)
+    // types of frames of the app read by the relay, like Frames in the app
+    public static final byte TYPE_CHUNK_OPEN = 5; // payload : uuid of the transfer, ...
+    public static final byte TYPE_CHUNK_ACK = 7; // payload : uuid of the transfer, ...
+    // first bytes of a drawing sent alone (see DrawingCodec.MAGIC in the app), refused
+    public static final int DRAWING_MAGIC = 0x524F4D45;
+
+    public static final int FRAME_HEADER_LENGTH = 5; // type, length
+    // a frame bigger than this is considered as a corrupted stream, like Frames.MAX_PAYLOAD_LENGTH
+    public static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+    private RelayProtocol() {}
+
+    /**
+     * @param sessionId id of the session to join
+     * @return the TYPE_JOIN frame
+     */
+    public static byte[] join(String sessionId) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        new DataOutputStream(payload).writeUTF(sessionId);
+        return frame(TYPE_JOIN, payload.toByteArray());
+    }
+
+    /**
+     * @param count number of phones in the session
+     * @return the TYPE_PRESENCE frame
+     */
+    public static byte[] presence(int count) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        new DataOutputStream(payload).writeInt(count);
+        return frame(TYPE_PRESENCE, payload.toByteArray());
+    }
+
+    /**
+     * Read the uuid of a chunked transfer, at the start of the payload of its frames
+     * (see ChunkStore in the app)
+     * @param in buffer containing the frame
+     * @param start start of the frame in the buffer
+     * @param frameLength length of the frame, header included
+     * @return the uuid
+     * @throws IOException if the frame is too short to contain it
+     */
+    public static UUID readTransferId(ByteBuffer in, int start, int frameLength) throws IOException {
+        if (frameLength < FRAME_HEADER_LENGTH + 16) {
+            throw new IOException("Chunk frame too short : " + frameLength);
+        }
+        return new UUID(in.getLong(start + FRAME_HEADER_LENGTH), in.getLong(start + FRAME_HEADER_LENGTH + 8));
+    }
+
+    /**
+     * @param type type of the frame
+     * @param payload content of the frame
+     * @return the frame, header included
+     */
+    public static byte[] frame(byte type, byte[] payload) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(FRAME_HEADER_LENGTH + payload.length);
+        DataOutputStream out = new DataOutputStream(frame);
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+        return frame.toByteArray();
+    }
+}
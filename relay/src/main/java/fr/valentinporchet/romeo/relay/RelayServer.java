@@ -0,0 +1,518 @@
+package fr.valentinporchet.romeo.relay;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Relay between the phones : each phone keeps one connection to it, and the frames it sends
+ * are given to the other phones of its session (see RelayProtocol). So the phones don't need
+ * to be on the same network, nor to know the address of each other.
+ * All the connections are non-blocking and handled by one Selector, on one thread : the relay
+ * only copies bytes, so it handles thousands of sessions this way.
+ * Each phone has its own queue of frames to send. When a phone doesn't read fast enough and
+ * its queue goes over HIGH_WATER bytes, the phones sending to it are not read anymore, until
+ * its queue goes under LOW_WATER : the memory of the relay stays bounded, and the senders
+ * are slowed down by TCP.
+ * The frames are not read, except the ones of the chunked transfers of drawings : their
+ * acknowledgements are only given to the phone which opened the transfer, not to all the
+ * phones of the session.
+ * A phone which doesn't join a session, stops in the middle of a frame or doesn't read its
+ * frames is disconnected after READ_TIMEOUT ms.
+ */
+public class RelayServer implements Runnable {
+    public static final int DEFAULT_PORT = 8090;
+
+    private static final Logger LOG = Logger.getLogger("RelayServer");
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    private static final int HIGH_WATER = 1024 * 1024; // in bytes
+    private static final int LOW_WATER = HIGH_WATER / 4;
+    private static final int READ_TIMEOUT = 30000; // in ms
+    private static final int MAX_PEERS = 8; // phones in a session
+    private static final int MAX_GATHERED_WRITES = 16; // frames given to the socket at once
+    private static final int MAX_TRANSFERS = 16; // chunked transfers remembered by a session
+
+    /**
+     * A phone connected to the relay
+     */
+    private static class Peer {
+        final SocketChannel mChannel;
+        final SelectionKey mKey;
+        ByteBuffer mIn = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        Session mSession; // null until the phone joins
+        ArrayDeque<ByteBuffer> mOut = new ArrayDeque<>();
+        int mQueuedBytes = 0;
+        ArrayList<Peer> mPausedSenders = new ArrayList<>(); // phones not read because of our queue
+        int mPauseCount = 0; // number of phones for which we are not read
+        long mLastActivity = now();
+
+        Peer(SocketChannel channel, SelectionKey key) {
+            mChannel = channel;
+            mKey = key;
+        }
+    }
+
+    /**
+     * Phones sharing their frames
+     */
+    private static class Session {
+        final String mId;
+        final ArrayList<Peer> mPeers = new ArrayList<>(2);
+        // phone which opened each chunked transfer, the oldest first
+        final LinkedHashMap<UUID, Peer> mOpeners = new LinkedHashMap<UUID, Peer>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Peer> eldest) {
+                return size() > MAX_TRANSFERS;
+            }
+        };
+
+        Session(String id) {
+            mId = id;
+        }
+    }
+
+    private final int mPort;
+    private int mReadTimeout = READ_TIMEOUT;
+    private Selector mSelector;
+    private ServerSocketChannel mServerChannel;
+    private volatile boolean mRunning = true;
+    private HashMap<String, Session> mSessions = new HashMap<>();
+
+    // statistics, for the logs and the tests
+    private volatile int mPeerCount = 0;
+    private volatile int mSessionCount = 0;
+    private volatile long mRelayedFrames = 0;
+
+    /**
+     * @param port port of the relay (0 for any free port)
+     */
+    public RelayServer(int port) {
+        mPort = port;
+    }
+
+    public static void main(String[] args) throws IOException {
+        RelayServer relay = new RelayServer(args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT);
+        relay.open();
+        relay.run();
+    }
+
+    /**
+     * Change the time after which a stalled phone is disconnected. Must be called before run().
+     * @param readTimeout the time, in ms
+     */
+    public void setReadTimeout(int readTimeout) {
+        mReadTimeout = readTimeout;
+    }
+
+    /**
+     * Open the port of the relay. Done by run() if it wasn't done before.
+     * @throws IOException if the port can't be opened
+     */
+    public synchronized void open() throws IOException {
+        if (mSelector != null) {
+            return;
+        }
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(new InetSocketAddress(mPort), 1024);
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * @return the port of the relay, once opened
+     */
+    public int getPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    public int getPeerCount() {
+        return mPeerCount;
+    }
+
+    public int getSessionCount() {
+        return mSessionCount;
+    }
+
+    public long getRelayedFrames() {
+        return mRelayedFrames;
+    }
+
+    /**
+     * Stop the relay and close all its connections
+     */
+    public void close() {
+        mRunning = false;
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            open();
+            LOG.info("Relay listening on port " + getPort());
+            while (mRunning) {
+                mSelector.select(Math.max(1, mReadTimeout / 4));
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        handle(key);
+                    } catch (IOException e) {
+                        if (key.attachment() instanceof Peer) {
+                            // only this phone is concerned
+                            LOG.fine("Connection closed : " + e.getMessage());
+                            closePeer((Peer) key.attachment());
+                        } else { // the server channel stays opened
+                            LOG.log(Level.WARNING, "Error", e);
+                        }
+                    }
+                }
+                closeStalledPeers();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Relay stopped", e);
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void handle(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            // all the waiting phones, as they can arrive by thousands
+            SocketChannel channel;
+            while ((channel = mServerChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true); // the frames are already batched by the phones
+                SelectionKey peerKey = channel.register(mSelector, SelectionKey.OP_READ);
+                peerKey.attach(new Peer(channel, peerKey));
+                mPeerCount++;
+            }
+            return;
+        }
+        Peer peer = (Peer) key.attachment();
+        if (key.isWritable()) {
+            flush(peer);
+        }
+        if (key.isValid() && key.isReadable() && peer.mPauseCount == 0) {
+            read(peer);
+        }
+    }
+
+    /***************** READING *****************/
+
+    private void read(Peer peer) throws IOException {
+        int count = peer.mChannel.read(peer.mIn);
+        if (count == -1) {
+            if (peer.mIn.position() > 0) {
+                throw new IOException("Connection closed in the middle of a frame");
+            }
+            closePeer(peer);
+            return;
+        }
+        peer.mLastActivity = now();
+        peer.mIn.flip();
+        try {
+            handleFrames(peer);
+        } finally {
+            peer.mIn.compact();
+        }
+    }
+
+    /**
+     * Handle all the complete frames of the buffer (in read mode). An incomplete frame
+     * stays in the buffer, which is grown if needed to receive all of it.
+     */
+    private void handleFrames(Peer peer) throws IOException {
+        ByteBuffer in = peer.mIn;
+        while (peer.mKey.isValid() && in.remaining() >= RelayProtocol.FRAME_HEADER_LENGTH) {
+            int start = in.position();
+            if (in.getInt(start) == RelayProtocol.DRAWING_MAGIC) {
+                throw new IOException("Drawing not in a frame, it must be sent in chunks");
+            }
+            int length = in.getInt(start + 1);
+            if (length < 0 || length > RelayProtocol.MAX_PAYLOAD_LENGTH) {
+                throw new IOException("Invalid frame length : " + length);
+            }
+            int frameLength = RelayProtocol.FRAME_HEADER_LENGTH + length;
+            if (in.remaining() < frameLength) {
+                if (frameLength > in.capacity()) {
+                    // the buffer is in read mode here, and compacted by the caller
+                    ByteBuffer bigger = ByteBuffer.allocate(frameLength);
+                    bigger.put(in);
+                    bigger.flip();
+                    peer.mIn = bigger;
+                }
+                return;
+            }
+
+            byte type = in.get(start);
+            if (type == RelayProtocol.TYPE_JOIN) {
+                join(peer, readSessionId(in, start + RelayProtocol.FRAME_HEADER_LENGTH, length));
+            } else if (peer.mSession == null) {
+                throw new IOException("Frame received before joining a session");
+            } else if (type == RelayProtocol.TYPE_CHUNK_ACK) {
+                UUID id = RelayProtocol.readTransferId(in, start, frameLength);
+                byte[] frame = new byte[frameLength];
+                in.get(frame);
+                relayAck(peer, id, frame);
+            } else {
+                if (type == RelayProtocol.TYPE_CHUNK_OPEN) {
+                    // the transfer may have been opened before, on a broken connection
+                    peer.mSession.mOpeners.put(RelayProtocol.readTransferId(in, start, frameLength), peer);
+                }
+                byte[] frame = new byte[frameLength];
+                in.get(frame);
+                relay(peer, frame);
+            }
+            in.position(start + frameLength);
+        }
+    }
+
+    private static String readSessionId(ByteBuffer in, int start, int length) throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(in.array(), in.arrayOffset() + start, length)).readUTF();
+    }
+
+    /***************** SESSIONS *****************/
+
+    private void join(Peer peer, String sessionId) throws IOException {
+        if (peer.mSession != null) {
+            throw new IOException("Already in a session");
+        }
+        Session session = mSessions.get(sessionId);
+        if (session == null) {
+            session = new Session(sessionId);
+            mSessions.put(sessionId, session);
+            mSessionCount = mSessions.size();
+        }
+        if (session.mPeers.size() >= MAX_PEERS) {
+            throw new IOException("Session full : " + sessionId);
+        }
+        session.mPeers.add(peer);
+        peer.mSession = session;
+        sendPresence(session);
+    }
+
+    private void leave(Peer peer) {
+        Session session = peer.mSession;
+        if (session == null) {
+            return;
+        }
+        peer.mSession = null;
+        session.mPeers.remove(peer);
+        session.mOpeners.values().removeAll(Collections.singleton(peer));
+        // the phones waiting for us, or for which we were waiting, are read again
+        resumeSenders(peer);
+        for (Peer other : session.mPeers) {
+            if (other.mPausedSenders.remove(peer)) {
+                peer.mPauseCount--;
+            }
+        }
+        if (session.mPeers.isEmpty()) {
+            mSessions.remove(session.mId);
+            mSessionCount = mSessions.size();
+        } else {
+            try {
+                sendPresence(session);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Presence not sent", e); // never for a ByteArrayOutputStream
+            }
+        }
+    }
+
+    private void sendPresence(Session session) throws IOException {
+        byte[] presence = RelayProtocol.presence(session.mPeers.size());
+        // a copy, as a phone which can't be written is closed and leaves the session
+        for (Peer peer : new ArrayList<>(session.mPeers)) {
+            send(peer, presence);
+        }
+    }
+
+    /**
+     * Give a frame to the other phones of the session. The frame is shared by their queues.
+     */
+    private void relay(Peer sender, byte[] frame) {
+        mRelayedFrames++;
+        for (Peer receiver : new ArrayList<>(sender.mSession.mPeers)) {
+            if (receiver != sender) {
+                relay(sender, receiver, frame);
+            }
+        }
+    }
+
+    /**
+     * Give the acknowledgement of a chunk to the phone which opened the transfer. If it left
+     * the session, the acknowledgement is dropped : it will open the transfer again.
+     */
+    private void relayAck(Peer sender, UUID id, byte[] frame) {
+        mRelayedFrames++;
+        Peer opener = sender.mSession.mOpeners.get(id);
+        if (opener != null && opener != sender) {
+            relay(sender, opener, frame);
+        } else {
+            LOG.fine("Acknowledgement of an unknown transfer dropped : " + id);
+        }
+    }
+
+    private void relay(Peer sender, Peer receiver, byte[] frame) {
+        send(receiver, frame);
+        if (receiver.mQueuedBytes > HIGH_WATER && receiver.mKey.isValid()
+                && !receiver.mPausedSenders.contains(sender)) {
+            // the receiver is too slow, we stop reading the sender
+            receiver.mPausedSenders.add(sender);
+            sender.mPauseCount++;
+            updateInterest(sender);
+        }
+    }
+
+    /***************** WRITING *****************/
+
+    /**
+     * Add a frame to the queue of a phone, and send what can be sent now. If the phone
+     * can't be written, it's closed.
+     */
+    private void send(Peer peer, byte[] frame) {
+        if (!peer.mKey.isValid()) {
+            return;
+        }
+        peer.mOut.add(ByteBuffer.wrap(frame));
+        peer.mQueuedBytes += frame.length;
+        try {
+            flush(peer);
+        } catch (IOException e) {
+            LOG.fine("Connection closed : " + e.getMessage());
+            closePeer(peer);
+        }
+    }
+
+    private void flush(Peer peer) throws IOException {
+        ArrayDeque<ByteBuffer> out = peer.mOut;
+        ByteBuffer[] buffers = new ByteBuffer[Math.min(out.size(), MAX_GATHERED_WRITES)];
+        while (!out.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer buffer : out) {
+                if (count == buffers.length) {
+                    break;
+                }
+                buffers[count++] = buffer;
+            }
+            long written = peer.mChannel.write(buffers, 0, count);
+            if (written > 0) {
+                peer.mLastActivity = now();
+            }
+            peer.mQueuedBytes -= written;
+            while (!out.isEmpty() && !out.peek().hasRemaining()) {
+                out.poll();
+            }
+            if (written == 0 || !out.isEmpty() && out.peek().position() > 0) {
+                break; // the socket is full, we wait until we can write again
+            }
+        }
+        if (peer.mQueuedBytes <= LOW_WATER) {
+            resumeSenders(peer);
+        }
+        updateInterest(peer);
+    }
+
+    private void resumeSenders(Peer peer) {
+        for (Peer sender : peer.mPausedSenders) {
+            sender.mPauseCount--;
+            updateInterest(sender);
+        }
+        peer.mPausedSenders.clear();
+    }
+
+    private static void updateInterest(Peer peer) {
+        if (!peer.mKey.isValid()) {
+            return;
+        }
+        int ops = peer.mPauseCount == 0 ? SelectionKey.OP_READ : 0;
+        if (!peer.mOut.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        peer.mKey.interestOps(ops);
+    }
+
+    /***************** CLOSING *****************/
+
+    /**
+     * Close the phones which didn't join a session, stopped in the middle of a frame, or
+     * don't read their frames
+     */
+    private void closeStalledPeers() {
+        long now = now();
+        for (SelectionKey key : new ArrayList<>(mSelector.keys())) {
+            if (!(key.attachment() instanceof Peer) || !key.isValid()) {
+                continue;
+            }
+            Peer peer = (Peer) key.attachment();
+            boolean isWaiting = peer.mSession == null || peer.mIn.position() > 0 || !peer.mOut.isEmpty();
+            if (isWaiting && peer.mPauseCount == 0 && now - peer.mLastActivity > mReadTimeout) {
+                LOG.fine("Stalled connection closed");
+                closePeer(peer);
+            }
+        }
+    }
+
+    private void closePeer(Peer peer) {
+        if (!peer.mKey.isValid()) {
+            return;
+        }
+        peer.mKey.cancel();
+        mPeerCount--;
+        try {
+            peer.mChannel.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Error while closing", e);
+        }
+        leave(peer);
+    }
+
+    private void closeAll() {
+        if (mSelector == null) {
+            return;
+        }
+        for (SelectionKey key : mSelector.keys()) {
+            if (key.attachment() instanceof Peer) {
+                closePeer((Peer) key.attachment());
+            }
+        }
+        try {
+            mServerChannel.close();
+            mSelector.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Error while closing", e);
+        }
+    }
+
+    /**
+     * @return the time used for the read timeout (in ms), which only goes forward
+     */
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
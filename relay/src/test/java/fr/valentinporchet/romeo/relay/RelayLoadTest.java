@@ -0,0 +1,113 @@
+package fr.valentinporchet.romeo.relay;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Load test of the relay on the loopback interface : all the sessions are opened at once,
+ * then each pair exchanges frames shaped like touch through positions and drawing chunks.
+ * The number of sessions is given by the system property relay.loadSessions (see build.gradle).
+ */
+public class RelayLoadTest {
+    private static final int FRAMES_PER_PHONE = 20;
+    private static final int CLIENT_THREADS = 16;
+
+    @Test
+    public void manySessions_areRelayedAtOnce() throws Exception {
+        final int sessionCount = Integer.getInteger("relay.loadSessions", 500);
+        RelayServer relay = new RelayServer(0);
+        relay.open();
+        new Thread(relay).start();
+        final Socket[][] pairs = new Socket[sessionCount][2];
+        try {
+            InetAddress loopback = InetAddress.getByName("127.0.0.1");
+            for (int i=0; i < sessionCount; i++) {
+                for (int j=0; j < 2; j++) {
+                    pairs[i][j] = new Socket(loopback, relay.getPort());
+                    pairs[i][j].setSoTimeout(30000);
+                    pairs[i][j].getOutputStream().write(RelayProtocol.join("session-" + i));
+                }
+            }
+
+            final byte[] positions = RelayProtocol.frame((byte) 1, new byte[40]);
+            final byte[] chunk = RelayProtocol.frame((byte) 6, new byte[16 * 1024 + 20]);
+            ExecutorService clients = Executors.newFixedThreadPool(CLIENT_THREADS);
+            ArrayList<Future<Integer>> results = new ArrayList<>();
+            for (int t=0; t < CLIENT_THREADS; t++) {
+                final int first = t;
+                results.add(clients.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int received = 0;
+                        for (int i=first; i < sessionCount; i += CLIENT_THREADS) {
+                            received += exchange(pairs[i][0], pairs[i][1], positions, chunk);
+                        }
+                        return received;
+                    }
+                }));
+            }
+            int received = 0;
+            for (Future<Integer> result : results) {
+                received += result.get(5, TimeUnit.MINUTES);
+            }
+            clients.shutdown();
+
+            assertEquals(sessionCount * 2 * FRAMES_PER_PHONE, received);
+            assertEquals(sessionCount, relay.getSessionCount());
+            assertEquals(2 * sessionCount, relay.getPeerCount());
+        } finally {
+            for (Socket[] pair : pairs) {
+                for (Socket phone : pair) {
+                    if (phone != null) {
+                        phone.close();
+                    }
+                }
+            }
+            relay.close();
+        }
+    }
+
+    /**
+     * Both phones of a pair send their frames, then read the ones of the other
+     * @return the number of frames received
+     */
+    private static int exchange(Socket romeo, Socket juliet, byte[] positions, byte[] chunk) throws Exception {
+        waitForPenpal(romeo);
+        waitForPenpal(juliet);
+        for (int i=0; i < FRAMES_PER_PHONE; i++) {
+            romeo.getOutputStream().write(i % 5 == 0 ? chunk : positions);
+            juliet.getOutputStream().write(positions);
+        }
+        int received = 0;
+        for (int i=0; i < FRAMES_PER_PHONE; i++) {
+            assertEquals(i % 5 == 0 ? chunk.length : positions.length, RelayServerTest.readFrame(juliet).length);
+            assertEquals(positions.length, RelayServerTest.readFrame(romeo).length);
+            received += 2;
+        }
+        return received;
+    }
+
+    /**
+     * Read the presence frames until both phones of the pair are in the session
+     */
+    private static void waitForPenpal(Socket phone) throws Exception {
+        DataInputStream in = new DataInputStream(phone.getInputStream());
+        int count = 0;
+        while (count < 2) {
+            assertEquals(RelayProtocol.TYPE_PRESENCE, in.readByte());
+            assertEquals(4, in.readInt());
+            count = in.readInt();
+        }
+    }
+}
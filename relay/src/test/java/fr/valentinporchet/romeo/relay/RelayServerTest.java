@@ -0,0 +1,248 @@
+package fr.valentinporchet.romeo.relay;
+
+import fr.valentinporchet.romeo.DrawingCodec;
+import fr.valentinporchet.romeo.Frames;
+import fr.valentinporchet.romeo.TouchData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the relay, with phones on the loopback interface
+ */
+public class RelayServerTest {
+    private RelayServer mRelay;
+
+    @Before
+    public void startRelay() throws Exception {
+        mRelay = new RelayServer(0);
+        mRelay.setReadTimeout(2000);
+        mRelay.open();
+        new Thread(mRelay).start();
+    }
+
+    @After
+    public void stopRelay() {
+        mRelay.close();
+    }
+
+    private Socket join(String sessionId) throws Exception {
+        Socket phone = new Socket(InetAddress.getByName("127.0.0.1"), mRelay.getPort());
+        phone.setSoTimeout(5000);
+        phone.getOutputStream().write(RelayProtocol.join(sessionId));
+        return phone;
+    }
+
+    /**
+     * Read the next frame received by a phone
+     * @return the frame, header included
+     */
+    static byte[] readFrame(Socket phone) throws Exception {
+        DataInputStream in = new DataInputStream(phone.getInputStream());
+        byte type = in.readByte();
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        return RelayProtocol.frame(type, payload);
+    }
+
+    /**
+     * @param value length of the message, offset of the chunk, or number of bytes received
+     * @return a frame of a chunked transfer, written like ChunkStore in the app
+     */
+    private static byte[] chunkFrame(byte type, UUID id, int value, byte[] bytes) throws Exception {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+        out.writeInt(value);
+        out.write(bytes);
+        return RelayProtocol.frame(type, payload.toByteArray());
+    }
+
+    private static byte[] encodeDrawing(ArrayList<TouchData> drawing) throws Exception {
+        TouchData touchData = new TouchData();
+        touchData.mPath.moveTo(10, 10);
+        for (int i=1; i <= 20; i++) {
+            touchData.mPath.lineTo(10 + i, 10 + 2 * i);
+            touchData.mStroke.addSample(i * 30, touchData.mStroke.getLength());
+        }
+        drawing.add(touchData);
+        return DrawingCodec.encode(drawing);
+    }
+
+    private static void assertNothingReceived(Socket phone) throws Exception {
+        phone.setSoTimeout(200);
+        try {
+            phone.getInputStream().read();
+            fail("Unexpected frame received");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+    }
+
+    private static int readPresence(Socket phone) throws Exception {
+        DataInputStream in = new DataInputStream(phone.getInputStream());
+        assertEquals(RelayProtocol.TYPE_PRESENCE, in.readByte());
+        assertEquals(4, in.readInt());
+        return in.readInt();
+    }
+
+    @Test
+    public void frames_areGivenToTheOtherPhoneOfTheSession() throws Exception {
+        Socket romeo = join("pair-1");
+        assertEquals(1, readPresence(romeo));
+        Socket juliet = join("pair-1");
+        Socket other = join("pair-2");
+        try {
+            assertEquals(2, readPresence(romeo));
+            assertEquals(2, readPresence(juliet));
+            assertEquals(1, readPresence(other));
+
+            byte[] frame = RelayProtocol.frame((byte) 1, new byte[] {1, 2, 3});
+            romeo.getOutputStream().write(frame);
+            assertArrayEquals(frame, readFrame(juliet));
+            byte[] answer = RelayProtocol.frame((byte) 2, new byte[] {4});
+            juliet.getOutputStream().write(answer);
+            assertArrayEquals(answer, readFrame(romeo));
+
+            // the other session received nothing
+            assertNothingReceived(other);
+            assertEquals(2, mRelay.getSessionCount());
+        } finally {
+            romeo.close();
+            juliet.close();
+            other.close();
+        }
+    }
+
+    @Test
+    public void smallDrawing_goesThroughInChunks() throws Exception {
+        ArrayList<TouchData> drawing = new ArrayList<>();
+        byte[] encoded = encodeDrawing(drawing);
+        assertTrue(encoded.length < 16 * 1024); // a drawing sent alone, outside the relay
+        Socket romeo = join("pair");
+        assertEquals(1, readPresence(romeo));
+        Socket juliet = join("pair");
+        assertEquals(2, readPresence(romeo));
+        assertEquals(2, readPresence(juliet));
+        Socket nurse = join("pair");
+        try {
+            assertEquals(3, readPresence(romeo));
+            assertEquals(3, readPresence(juliet));
+            assertEquals(3, readPresence(nurse));
+
+            UUID id = UUID.randomUUID();
+            byte[] open = chunkFrame(Frames.TYPE_CHUNK_OPEN, id, encoded.length, new byte[0]);
+            byte[] chunk = chunkFrame(Frames.TYPE_CHUNK, id, 0, encoded);
+            romeo.getOutputStream().write(open);
+            romeo.getOutputStream().write(chunk);
+            assertArrayEquals(open, readFrame(juliet));
+            byte[] received = readFrame(juliet);
+            assertArrayEquals(chunk, received);
+            ArrayList<TouchData> decoded = DrawingCodec.decode(new DataInputStream(new ByteArrayInputStream(
+                    received, RelayProtocol.FRAME_HEADER_LENGTH + 20, encoded.length)));
+            assertEquals(drawing.get(0).uuid, decoded.get(0).uuid);
+            assertEquals(21, decoded.get(0).mStroke.getPointCount());
+            assertArrayEquals(open, readFrame(nurse));
+            assertArrayEquals(chunk, readFrame(nurse));
+
+            // the acknowledgement is only given to the phone which opened the transfer
+            byte[] ack = chunkFrame(Frames.TYPE_CHUNK_ACK, id, encoded.length, new byte[] {DrawingCodec.ACK_OK});
+            juliet.getOutputStream().write(ack);
+            assertArrayEquals(ack, readFrame(romeo));
+            assertNothingReceived(nurse);
+        } finally {
+            romeo.close();
+            juliet.close();
+            nurse.close();
+        }
+    }
+
+    @Test
+    public void drawingNotInAFrame_isRefused() throws Exception {
+        byte[] encoded = encodeDrawing(new ArrayList<TouchData>());
+        Socket romeo = join("pair");
+        try {
+            assertEquals(1, readPresence(romeo));
+            romeo.getOutputStream().write(encoded);
+            romeo.setSoTimeout(10000);
+            assertEquals(-1, romeo.getInputStream().read());
+        } finally {
+            romeo.close();
+        }
+    }
+
+    @Test
+    public void leavingPhone_isAnnounced() throws Exception {
+        Socket romeo = join("pair");
+        assertEquals(1, readPresence(romeo));
+        Socket juliet = join("pair");
+        try {
+            assertEquals(2, readPresence(romeo));
+            juliet.close();
+            assertEquals(1, readPresence(romeo));
+        } finally {
+            romeo.close();
+        }
+    }
+
+    @Test
+    public void phoneNotJoining_isDisconnected() throws Exception {
+        Socket phone = new Socket(InetAddress.getByName("127.0.0.1"), mRelay.getPort());
+        try {
+            phone.setSoTimeout(10000);
+            assertEquals(-1, phone.getInputStream().read());
+        } finally {
+            phone.close();
+        }
+    }
+
+    @Test
+    public void bigFrame_isRelayedToASlowReader() throws Exception {
+        Socket romeo = join("pair");
+        assertEquals(1, readPresence(romeo));
+        Socket juliet = join("pair");
+        try {
+            assertEquals(2, readPresence(romeo));
+            assertEquals(2, readPresence(juliet));
+            // more than the queue of the relay : romeo is paused until juliet reads
+            final byte[] frame = RelayProtocol.frame((byte) 6, new byte[3 * 1024 * 1024]);
+            final Socket sender = romeo;
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i=0; i < 3; i++) {
+                            sender.getOutputStream().write(frame);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            writer.start();
+            Thread.sleep(500);
+            for (int i=0; i < 3; i++) {
+                assertEquals(frame.length, readFrame(juliet).length);
+            }
+            writer.join(5000);
+            assertEquals(3, mRelay.getRelayedFrames());
+        } finally {
+            romeo.close();
+            juliet.close();
+        }
+    }
+}